@@ -20,6 +20,7 @@ public final class MedievalMarketsPlugin extends JavaPlugin {
     private MarketService marketService;
 
     private BukkitTask ledgerAutosaveTask;
+    private BukkitTask treasuryFlushTask;
 
     @Override
     public void onEnable() {
@@ -65,7 +66,7 @@ public final class MedievalMarketsPlugin extends JavaPlugin {
                     getConfig().getString("economy.default-currency", "SHEKEL")
             );
 
-            // INIT loads defaults + ledger.yml and builds the PriceEngine
+            // INIT loads defaults + ledger snapshot/journal and builds the PriceEngine
             marketService.init();
 
             getLogger().info("MarketService loaded with "
@@ -102,9 +103,9 @@ public final class MedievalMarketsPlugin extends JavaPlugin {
             }
 
             /* =========================
-               Autosave ledger.yml
+               Autosave ledger shards
                ========================= */
-            // every 5 minutes (async): minimizes loss on power-off
+            // every 5 minutes (async): trades are journaled as they happen, this writes changed towns and folds the journal into them
             ledgerAutosaveTask = Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> {
                 try {
                     if (marketService != null) marketService.saveLedger();
@@ -113,6 +114,19 @@ public final class MedievalMarketsPlugin extends JavaPlugin {
                 }
             }, 20L * 300, 20L * 300);
 
+            /* =========================
+               Treasury netting flush
+               ========================= */
+            // town-side trade flows accumulate per town/currency and go to MPC as one transfer per interval (async)
+            long flushTicks = 20L * Math.max(1, getConfig().getInt("market.treasury-netting.flush-seconds", 10));
+            treasuryFlushTask = Bukkit.getScheduler().runTaskTimerAsynchronously(this, () -> {
+                try {
+                    if (marketService != null) marketService.flushTreasuryNets();
+                } catch (Throwable t) {
+                    getLogger().warning("Treasury flush failed: " + t.getMessage());
+                }
+            }, flushTicks, flushTicks);
+
             getLogger().info("MedievalMarkets hooks + services ready.");
         });
 
@@ -126,11 +140,15 @@ public final class MedievalMarketsPlugin extends JavaPlugin {
             ledgerAutosaveTask.cancel();
             ledgerAutosaveTask = null;
         }
+        if (treasuryFlushTask != null) {
+            treasuryFlushTask.cancel();
+            treasuryFlushTask = null;
+        }
 
-        // Save ledger one last time
+        // Save ledger one last time and close the journal
         try {
             if (marketService != null) {
-                marketService.saveLedger();
+                marketService.shutdown();
             }
         } catch (Throwable t) {
             getLogger().warning("Final ledger save failed: " + t.getMessage());
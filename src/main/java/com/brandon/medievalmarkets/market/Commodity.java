@@ -4,19 +4,51 @@ import org.bukkit.Material;
 
 public final class Commodity {
     private final String id;
+    private final int ordinal;
     private final Material material;
     private final double baseValue;
     private final double elasticity;
+    private final PowCurve curve;
+    private final PricingModel model;
 
     public Commodity(String id, Material material, double baseValue, double elasticity) {
+        this(id, -1, material, baseValue, elasticity, PowCurve.exact(elasticity), PricingModel.POWER_LAW);
+    }
+
+    private Commodity(String id, int ordinal, Material material, double baseValue, double elasticity, PowCurve curve,
+                      PricingModel model) {
         this.id = id;
+        this.ordinal = ordinal;
         this.material = material;
         this.baseValue = baseValue;
         this.elasticity = elasticity;
+        this.curve = curve;
+        this.model = model;
+    }
+
+    /** Same commodity bound to its {@link CommodityIndex} ordinal (done by MarketService#register). */
+    Commodity withOrdinal(int ordinal) {
+        return new Commodity(id, ordinal, material, baseValue, elasticity, curve, model);
+    }
+
+    /** Same commodity priced through a shared curve for its elasticity (done by MarketService#loadDefaults). */
+    Commodity withCurve(PowCurve curve) {
+        return new Commodity(id, ordinal, material, baseValue, elasticity, curve, model);
+    }
+
+    /** Same commodity under another pricing model (done by MarketService#loadDefaults). */
+    Commodity withModel(PricingModel model) {
+        return new Commodity(id, ordinal, material, baseValue, elasticity, curve, model);
     }
 
     public String id() { return id; }
+    /** Dense ledger ordinal, or -1 if this commodity was never registered. */
+    public int ordinal() { return ordinal; }
     public Material material() { return material; }
     public double baseValue() { return baseValue; }
     public double elasticity() { return elasticity; }
+    /** (demand/supply)^elasticity evaluator. */
+    PowCurve curve() { return curve; }
+    /** Price formula; {@link PricingModel#POWER_LAW} unless configured otherwise. */
+    public PricingModel model() { return model; }
 }
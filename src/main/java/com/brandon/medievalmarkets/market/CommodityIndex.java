@@ -0,0 +1,76 @@
+package com.brandon.medievalmarkets.market;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns commodity ids to dense int ordinals so the ledger can keep each town's row
+ * as primitive arrays instead of String-keyed maps.
+ *
+ * Ordinals are append-only: once an id is interned it keeps its ordinal for the lifetime
+ * of the index (config reloads only ever add ids). They are NOT stable across restarts,
+ * so anything persisted must store the id, not the ordinal.
+ */
+public final class CommodityIndex {
+
+    private final Map<String, Integer> ordinals = new ConcurrentHashMap<>();
+    private volatile String[] ids = new String[0];
+
+    /**
+     * Returns the ordinal for this id, assigning the next free one if it is new.
+     * Returns -1 for null/blank ids.
+     */
+    public int intern(String commodityId) {
+        int existing = ordinal(commodityId);
+        if (existing >= 0) return existing;
+
+        String id = norm(commodityId);
+        if (id.isBlank()) return -1;
+
+        synchronized (this) {
+            Integer again = ordinals.get(id);
+            if (again != null) return again;
+
+            String[] cur = ids;
+            int ord = cur.length;
+            String[] next = Arrays.copyOf(cur, ord + 1);
+            next[ord] = id;
+
+            // publish the id table before the mapping so readers never see an ordinal past the end
+            ids = next;
+            ordinals.put(id, ord);
+            return ord;
+        }
+    }
+
+    /** Ordinal for this id, or -1 if it has never been interned. Never allocates for already-lowercase ids. */
+    public int ordinal(String commodityId) {
+        if (commodityId == null) return -1;
+
+        Integer ord = ordinals.get(commodityId);
+        if (ord != null) return ord;
+
+        // Slow path: callers passing mixed-case ids (commands, old ledgers)
+        String id = norm(commodityId);
+        if (id.equals(commodityId)) return -1;
+        ord = ordinals.get(id);
+        return ord == null ? -1 : ord;
+    }
+
+    /** Commodity id for an ordinal, or null if out of range. */
+    public String id(int ordinal) {
+        String[] cur = ids;
+        return (ordinal < 0 || ordinal >= cur.length) ? null : cur[ordinal];
+    }
+
+    /** Number of ordinals handed out so far (every ordinal is in [0, size)). */
+    public int size() {
+        return ids.length;
+    }
+
+    public static String norm(String id) {
+        return (id == null) ? "" : id.toLowerCase(Locale.ROOT);
+    }
+}
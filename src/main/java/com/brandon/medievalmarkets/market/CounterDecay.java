@@ -0,0 +1,75 @@
+package com.brandon.medievalmarkets.market;
+
+/**
+ * Exponential decay of supply/demand counts back toward the ledger baseline.
+ *
+ * Decay is lazy: a ledger cell keeps its last written value plus the second it was last touched,
+ * and the current value is derived on access as
+ * {@code baseline + (value - baseline) * 2^(-elapsed / halfLife)}. Nothing ever sweeps the
+ * ledger, so the cost is O(1) per access regardless of how many towns exist.
+ *
+ * Times are whole seconds on the ledger clock (seconds since 2024-01-01 UTC, which fits an int
+ * for decades); 0 means "no timestamp".
+ */
+final class CounterDecay {
+
+    /** Decay switched off: values are returned exactly as written. */
+    static final CounterDecay NONE = new CounterDecay(0L);
+
+    private static final long CLOCK_EPOCH_MILLIS = 1_704_067_200_000L; // 2024-01-01T00:00:00Z
+
+    private final long halfLifeSeconds;
+    private final double lambda; // ln 2 / half-life, per second
+
+    CounterDecay(long halfLifeSeconds) {
+        this.halfLifeSeconds = Math.max(0L, halfLifeSeconds);
+        this.lambda = (this.halfLifeSeconds == 0L) ? 0.0 : Math.log(2.0) / this.halfLifeSeconds;
+    }
+
+    static int now() {
+        return (int) Math.max(1L, (System.currentTimeMillis() - CLOCK_EPOCH_MILLIS) / 1000L);
+    }
+
+    boolean enabled() {
+        return halfLifeSeconds > 0L;
+    }
+
+    long halfLifeSeconds() {
+        return halfLifeSeconds;
+    }
+
+    /** {@code value} (last written at {@code from}) as seen at {@code to}; 0 (absent) stays 0. */
+    int apply(int value, int baseline, int from, int to) {
+        if (value == 0 || value == baseline || !enabled() || from == 0 || to <= from) return value;
+        double f = Math.exp(-(to - from) * lambda);
+        return (int) Math.round(baseline + (value - baseline) * f);
+    }
+
+    /**
+     * Last second (inclusive, from {@code now}) at which {@link #apply} still returns the same
+     * rounded value for a cell last written at {@code from}; Integer.MAX_VALUE if it never changes
+     * (decay off, absent, or already rounded to the baseline). Conservative: may end a second early.
+     */
+    int stableUntil(int value, int baseline, int from, int now) {
+        if (value == 0 || value == baseline || !enabled() || from == 0) return Integer.MAX_VALUE;
+        double excess = Math.abs(value - baseline) * Math.exp(-Math.max(0, now - from) * lambda);
+        double threshold = Math.abs(apply(value, baseline, from, now) - baseline) - 0.5;
+        if (threshold <= 0.0) return Integer.MAX_VALUE;
+        double seconds = Math.log(excess / threshold) / lambda;
+        return (int) Math.min(Integer.MAX_VALUE - 1L, now + (long) Math.max(0.0, Math.floor(seconds)));
+    }
+
+    /**
+     * 2^((t - origin) / halfLife). Running totals store each cell's excess over the baseline
+     * multiplied by the weight of its timestamp; dividing the sum by the weight of "now" decays
+     * the whole column at once.
+     */
+    double weight(int t, int origin) {
+        return Math.exp((t - origin) * lambda);
+    }
+
+    /** Half-lives elapsed between two clock readings. */
+    double halfLives(int from, int to) {
+        return enabled() ? (to - from) / (double) halfLifeSeconds : 0.0;
+    }
+}
@@ -0,0 +1,45 @@
+package com.brandon.medievalmarkets.market;
+
+import com.brandon.mpcbridge.api.MpcEconomy;
+
+import java.util.UUID;
+
+/**
+ * The economy calls the market makes, whoever answers them: MPCBridge on a live server, or
+ * {@link SimulatedEconomy} in standalone mode and benchmarks. {@link EconomyGuard} wraps one.
+ */
+interface EconomyBackend {
+
+    String name();
+
+    double balance(UUID walletId, String currency);
+
+    /** True if the coins were taken, false if refused (e.g. insufficient funds). */
+    boolean withdraw(UUID walletId, String currency, double amount);
+
+    void deposit(UUID walletId, String currency, double amount);
+
+    static EconomyBackend of(MpcEconomy mpc) {
+        return new EconomyBackend() {
+            @Override
+            public String name() {
+                return "MPCBridge";
+            }
+
+            @Override
+            public double balance(UUID walletId, String currency) {
+                return mpc.balance(walletId, currency);
+            }
+
+            @Override
+            public boolean withdraw(UUID walletId, String currency, double amount) {
+                return mpc.withdraw(walletId, currency, amount);
+            }
+
+            @Override
+            public void deposit(UUID walletId, String currency, double amount) {
+                mpc.deposit(walletId, currency, amount);
+            }
+        };
+    }
+}
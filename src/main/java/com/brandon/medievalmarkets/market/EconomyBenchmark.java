@@ -0,0 +1,83 @@
+package com.brandon.medievalmarkets.market;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Settles synthetic trades through {@link TradeLegs}, the settle stage MarketService uses, against
+ * a fresh {@link SimulatedEconomy} behind an {@link EconomyGuard} ({@link SimulatedTrades}), and
+ * reports throughput and whether any coins were created or destroyed.
+ *
+ * Each trade moves 1-100 coins player to town (a buy) or town to player (a sell), town side
+ * straight to the economy, reversing the first leg if the second throws. Trades run on
+ * {@code threads} workers at once over 64 players and 8 towns. Once the workers and any late
+ * reversals of timed-out calls are done, every coin must be accounted for: {@code unrecovered} is
+ * what failed reversals knowingly created (positive) or destroyed (negative), and {@code drift} is
+ * any change in the sum of all balances beyond that, which should be zero.
+ *
+ * Always runs against its own simulated economy, never the live one.
+ */
+public final class EconomyBenchmark {
+
+    public record Result(String profile, int trades, int threads, double seconds, long completed, long refused,
+                         long failed, long trips, double drift, double unrecovered) {
+
+        public double tradesPerSecond() {
+            return (seconds <= 0.0) ? 0.0 : trades / seconds;
+        }
+    }
+
+    private static final int PLAYERS = 64;
+    private static final int TOWNS = 8;
+
+    private EconomyBenchmark() {}
+
+    static Result run(SimulatedEconomy.Profile profile, long timeoutMillis, int breakerFailures, int openSeconds,
+                      int callThreads, int trades, int threads) {
+        SimulatedTrades sim = SimulatedTrades.direct(profile, PLAYERS, TOWNS);
+        EconomyGuard guard = sim.guard();
+        guard.configure(timeoutMillis, timeoutMillis, breakerFailures, openSeconds, callThreads);
+        double before = sim.total();
+
+        LongAdder completed = new LongAdder(), refused = new LongAdder(), failed = new LongAdder();
+
+        int workers = Math.max(1, threads);
+        ExecutorService pool = Executors.newFixedThreadPool(workers, task -> {
+            Thread t = new Thread(task, "MedievalMarkets-EconomyBench");
+            t.setDaemon(true);
+            return t;
+        });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < trades; i++) {
+            pool.execute(() -> {
+                switch (sim.settle(sim.next())) {
+                    case SETTLED -> completed.increment();
+                    case REFUSED -> refused.increment();
+                    case FAILED -> failed.increment();
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(10, TimeUnit.MINUTES);
+            sim.awaitQuiet(profile.stallMillis() + 10_000L);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        EconomyGuard.Status st = guard.status();
+        double lost = sim.reported();
+        double drift = sim.total() - before - lost;
+        sim.close();
+
+        String desc = String.format(Locale.ROOT, "median %.1fms, p99 %.1fms, fail %.1f%%, stall %.1f%%",
+                profile.medianMillis(), profile.p99Millis(), 100 * profile.failureRate(), 100 * profile.stallRate());
+        return new Result(desc, trades, workers, seconds, completed.sum(), refused.sum(), failed.sum(),
+                st.trips(), drift, lost);
+    }
+}
@@ -0,0 +1,353 @@
+package com.brandon.medievalmarkets.market;
+
+import org.bukkit.Bukkit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Every economy call the market makes goes through here: timed against a deadline, recorded in a
+ * per-operation latency histogram, and behind a circuit breaker.
+ *
+ * A call that throws or misses its deadline is a failure; a withdrawal MPC refuses is not (that
+ * is an answer). After {@code failureThreshold} failures in a row the breaker opens and calls fail
+ * at once with {@link UnavailableException}, which MarketService reads as "read-only": quotes
+ * carry on from cached balances, trades are turned away, and treasury nets wait. After
+ * {@code openSeconds} one call is let through as a probe; if it succeeds the breaker closes.
+ *
+ * Main-thread calls get a tighter deadline than settlement-thread calls, so a hung backend costs
+ * a tick at most that long. A transfer that times out is reported as failed and, if MPC completes
+ * it later anyway, reversed, so the caller's view stays true. Reversals that fail are counted in
+ * {@link Status#unreversed()}; those wallets need a manual look.
+ *
+ * Calls run on a bounded pool ({@code callThreads} threads, {@value #CALL_QUEUE} queued calls), so
+ * a hung backend ties up a fixed number of threads rather than one more per call. A call the full
+ * pool turns away is a failure like a timeout, and trips the breaker the same way. A call that
+ * times out while still queued is dropped and never reaches MPC.
+ */
+public final class EconomyGuard {
+
+    public enum Op { BALANCE, WITHDRAW, DEPOSIT }
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /** Thrown instead of calling MPC while the breaker is open, and for calls that time out. */
+    public static final class UnavailableException extends RuntimeException {
+        UnavailableException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * Latencies in milliseconds; quantiles are bucket upper bounds (within a factor of 2), capped at the max.
+     * {@code failures} includes {@code timeouts} and {@code rejected} (turned away by the full call pool).
+     */
+    public record OpStats(Op op, long calls, long failures, long timeouts, long rejected,
+                          double p50Millis, double p99Millis, double maxMillis) {}
+
+    public record Status(String backend, State state, int consecutiveFailures, long trips, long retryInMillis,
+                         long unreversed, List<OpStats> ops) {}
+
+    private final EconomyBackend backend;
+    private final Logger log;
+    private final BooleanSupplier onMainThread;
+    private final ThreadPoolExecutor calls;
+
+    private volatile long timeoutNanos;
+    private volatile long mainThreadTimeoutNanos;
+    private volatile int failureThreshold;
+    private volatile long openNanos;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicLong openedAt = new AtomicLong();
+    private final LongAdder trips = new LongAdder();
+    private final LongAdder unreversed = new LongAdder();
+    private final DoubleAdder unreversedCoins = new DoubleAdder(); // + created, - destroyed
+    private final Histogram[] histograms = new Histogram[Op.values().length];
+
+    private static final int CALL_QUEUE = 64;
+
+    EconomyGuard(EconomyBackend backend, Logger log) {
+        this(backend, log, Bukkit::isPrimaryThread);
+    }
+
+    /** {@code onMainThread} picks the main-thread deadline; callers off a server pass their own. */
+    EconomyGuard(EconomyBackend backend, Logger log, BooleanSupplier onMainThread) {
+        this.backend = backend;
+        this.log = log;
+        this.onMainThread = onMainThread;
+        for (Op op : Op.values()) histograms[op.ordinal()] = new Histogram();
+        AtomicInteger n = new AtomicInteger();
+        this.calls = new ThreadPoolExecutor(8, 8, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(CALL_QUEUE), task -> {
+            Thread t = new Thread(task, "MedievalMarkets-Economy-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        calls.allowCoreThreadTimeOut(true);
+        configure(2_000L, 100L, 5, 30, 8);
+    }
+
+    /**
+     * Deadlines in ms (0 = call inline, no deadline), failures in a row to trip, seconds open, and
+     * threads that may be waiting on MPC at once.
+     */
+    void configure(long timeoutMillis, long mainThreadTimeoutMillis, int failureThreshold, int openSeconds,
+                   int callThreads) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, timeoutMillis));
+        this.mainThreadTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, mainThreadTimeoutMillis));
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = TimeUnit.SECONDS.toNanos(Math.max(1, openSeconds));
+
+        // core == max (the queue only fills once every thread is busy); order keeps core <= max
+        int threads = Math.max(1, callThreads);
+        if (threads >= calls.getMaximumPoolSize()) {
+            calls.setMaximumPoolSize(threads);
+            calls.setCorePoolSize(threads);
+        } else {
+            calls.setCorePoolSize(threads);
+            calls.setMaximumPoolSize(threads);
+        }
+    }
+
+    /** False while the breaker is open and not yet due for a probe: the market is read-only. */
+    boolean available() {
+        return switch (state.get()) {
+            case CLOSED -> true;
+            case HALF_OPEN -> false;
+            case OPEN -> System.nanoTime() - openedAt.get() >= openNanos;
+        };
+    }
+
+    /* =========================
+       Calls
+       ========================= */
+
+    double balance(UUID walletId, String currency) {
+        return call(Op.BALANCE, () -> backend.balance(walletId, currency), null);
+    }
+
+    /** True if MPC took the coins, false if it refused. Throws if it failed or did not answer in time. */
+    boolean withdraw(UUID walletId, String currency, double amount) {
+        return call(Op.WITHDRAW, () -> backend.withdraw(walletId, currency, amount), late -> {
+            if (!late) return;
+            try {
+                backend.deposit(walletId, currency, amount);
+                log.warning("[MedievalMarkets] Reversed a timed-out withdrawal of " + amount + " " + currency
+                        + " from " + walletId + " that completed late");
+            } catch (RuntimeException ex) {
+                unreversed(-amount);
+                log.severe("[MedievalMarkets] A timed-out withdrawal of " + amount + " " + currency + " from "
+                        + walletId + " completed late and could not be reversed: " + ex.getMessage());
+            }
+        });
+    }
+
+    /** Throws if MPC failed or did not answer in time. */
+    void deposit(UUID walletId, String currency, double amount) {
+        call(Op.DEPOSIT, () -> {
+            backend.deposit(walletId, currency, amount);
+            return Boolean.TRUE;
+        }, late -> {
+            boolean reversed;
+            try {
+                reversed = backend.withdraw(walletId, currency, amount);
+            } catch (RuntimeException ex) {
+                reversed = false;
+            }
+            if (reversed) {
+                log.warning("[MedievalMarkets] Reversed a timed-out deposit of " + amount + " " + currency
+                        + " to " + walletId + " that completed late");
+            } else {
+                unreversed(amount);
+                log.severe("[MedievalMarkets] A timed-out deposit of " + amount + " " + currency + " to "
+                        + walletId + " completed late and could not be reversed");
+            }
+        });
+    }
+
+    private void unreversed(double coins) {
+        unreversed.increment();
+        unreversedCoins.add(coins);
+    }
+
+    /** Net coins late, unreversed calls moved without the caller knowing: positive if created. */
+    double unreversedCoins() {
+        return unreversedCoins.sum();
+    }
+
+    private interface LateResult<T> {
+        void completed(T result);
+    }
+
+    private <T> T call(Op op, Supplier<T> body, LateResult<T> undo) {
+        if (!permit()) throw new UnavailableException("economy circuit breaker is open");
+
+        Histogram h = histograms[op.ordinal()];
+        long deadline = onMainThread.getAsBoolean() ? mainThreadTimeoutNanos : timeoutNanos;
+        long start = System.nanoTime();
+        try {
+            T result;
+            if (deadline == 0L) {
+                result = body.get();
+            } else {
+                CompletableFuture<T> f = new CompletableFuture<>();
+                AtomicBoolean started = new AtomicBoolean();
+                Runnable task = () -> {
+                    if (!started.compareAndSet(false, true)) return; // timed out while queued
+                    try {
+                        f.complete(body.get());
+                    } catch (Throwable t) {
+                        f.completeExceptionally(t);
+                    }
+                };
+                try {
+                    calls.execute(task);
+                } catch (RejectedExecutionException ex) {
+                    h.rejected.increment();
+                    throw new UnavailableException(op + " rejected: " + calls.getMaximumPoolSize()
+                            + " economy calls already waiting on MPC and " + CALL_QUEUE + " queued");
+                }
+                try {
+                    result = f.get(deadline, TimeUnit.NANOSECONDS);
+                } catch (TimeoutException ex) {
+                    h.timeouts.increment();
+                    if (started.compareAndSet(false, true)) {
+                        calls.remove(task); // never ran, nothing to undo
+                    } else if (undo != null) {
+                        f.thenAccept(late -> {
+                            try {
+                                undo.completed(late);
+                            } catch (RuntimeException inner) {
+                                log.severe("[MedievalMarkets] Reversing a late " + op + " failed: " + inner.getMessage());
+                            }
+                        });
+                    }
+                    throw new UnavailableException(op + " timed out after " + TimeUnit.NANOSECONDS.toMillis(deadline) + "ms");
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new UnavailableException(op + " interrupted");
+                } catch (ExecutionException ex) {
+                    throw (ex.getCause() instanceof RuntimeException re) ? re : new RuntimeException(ex.getCause());
+                }
+            }
+            h.record(System.nanoTime() - start);
+            succeeded();
+            return result;
+        } catch (RuntimeException ex) {
+            h.record(System.nanoTime() - start);
+            h.failures.increment();
+            failed(ex);
+            throw ex;
+        }
+    }
+
+    /* =========================
+       Breaker
+       ========================= */
+
+    private boolean permit() {
+        while (true) {
+            State s = state.get();
+            if (s == State.CLOSED) return true;
+            if (s == State.HALF_OPEN) return false; // a probe is in flight
+            if (System.nanoTime() - openedAt.get() < openNanos) return false;
+            if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) return true; // this call is the probe
+        }
+    }
+
+    private void succeeded() {
+        consecutiveFailures.set(0);
+        if (state.getAndSet(State.CLOSED) != State.CLOSED) {
+            log.info("[MedievalMarkets] Economy responding again; market trading resumed.");
+        }
+    }
+
+    private void failed(RuntimeException ex) {
+        int n = consecutiveFailures.incrementAndGet();
+        State s = state.get();
+        if (s == State.HALF_OPEN) {
+            openedAt.set(System.nanoTime());
+            state.set(State.OPEN);
+        } else if (s == State.CLOSED && n >= failureThreshold && state.compareAndSet(State.CLOSED, State.OPEN)) {
+            openedAt.set(System.nanoTime());
+            trips.increment();
+            log.warning("[MedievalMarkets] Economy failed " + n + " calls in a row (last: " + ex.getMessage()
+                    + "); market is read-only until it recovers.");
+        }
+    }
+
+    Status status() {
+        State s = state.get();
+        long retry = (s == State.OPEN)
+                ? Math.max(0L, TimeUnit.NANOSECONDS.toMillis(openNanos - (System.nanoTime() - openedAt.get())))
+                : 0L;
+        List<OpStats> ops = new ArrayList<>(histograms.length);
+        for (Op op : Op.values()) ops.add(histograms[op.ordinal()].stats(op));
+        return new Status(backend.name(), s, consecutiveFailures.get(), trips.sum(), retry, unreversed.sum(), ops);
+    }
+
+    void close() {
+        calls.shutdownNow();
+    }
+
+    /* =========================
+       Histogram
+       ========================= */
+
+    // Bucket i counts latencies below 2^i microseconds (bucket 0: under 1us); the last is open-ended
+    private static final class Histogram {
+        private static final int BUCKETS = 32;
+
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final LongAdder failures = new LongAdder();
+        final LongAdder timeouts = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = Math.max(0L, nanos / 1_000L);
+            int b = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            counts.incrementAndGet(b);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        OpStats stats(Op op) {
+            long[] c = new long[BUCKETS];
+            long total = 0L;
+            for (int i = 0; i < BUCKETS; i++) total += (c[i] = counts.get(i));
+            double max = maxNanos.get() / 1e6;
+            return new OpStats(op, total, failures.sum(), timeouts.sum(), rejected.sum(),
+                    Math.min(max, quantile(c, total, 0.50)), Math.min(max, quantile(c, total, 0.99)), max);
+        }
+
+        private static double quantile(long[] c, long total, double q) {
+            if (total == 0L) return 0.0;
+            long rank = (long) Math.ceil(q * total);
+            long seen = 0L;
+            for (int i = 0; i < c.length; i++) {
+                seen += c[i];
+                if (seen >= rank) return (1L << i) / 1_000.0;
+            }
+            return (1L << (c.length - 1)) / 1_000.0;
+        }
+    }
+}
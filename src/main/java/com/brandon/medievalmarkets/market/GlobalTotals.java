@@ -0,0 +1,146 @@
+package com.brandon.medievalmarkets.market;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running server-wide supply/demand totals per commodity ordinal, kept in step with the
+ * ledger rows so global reads are O(1) instead of a scan over every town.
+ *
+ * For each ordinal we track the sum of recorded cells and how many towns have a recorded
+ * cell at all (the ledger falls back to BASELINE when no town has traded a commodity).
+ * Counters are {@link LongAdder}s so concurrent trades in different towns don't contend.
+ *
+ * With counter decay enabled the ledger also keeps, per ordinal, the sum of each cell's excess
+ * over the baseline weighted by its last-touch time (see {@link CounterDecay#weight}), which
+ * gives the decayed column total in O(1).
+ */
+final class GlobalTotals {
+
+    private volatile Slot[] slots = new Slot[0];
+
+    void addSupply(int ordinal, long delta, int townsDelta) {
+        if (delta == 0 && townsDelta == 0) return;
+        Slot s = slot(ordinal);
+        s.supply.add(delta);
+        if (townsDelta != 0) s.supplyTowns.add(townsDelta);
+    }
+
+    void addDemand(int ordinal, long delta, int townsDelta) {
+        if (delta == 0 && townsDelta == 0) return;
+        Slot s = slot(ordinal);
+        s.demand.add(delta);
+        if (townsDelta != 0) s.demandTowns.add(townsDelta);
+    }
+
+    void addSupplyExcess(int ordinal, double weighted) {
+        if (weighted == 0.0) return;
+        slot(ordinal).supplyExcess.add(weighted);
+    }
+
+    void addDemandExcess(int ordinal, double weighted) {
+        if (weighted == 0.0) return;
+        slot(ordinal).demandExcess.add(weighted);
+    }
+
+    double supplyExcess(int ordinal) {
+        Slot s = peek(ordinal);
+        return (s == null) ? 0.0 : s.supplyExcess.sum();
+    }
+
+    double demandExcess(int ordinal) {
+        Slot s = peek(ordinal);
+        return (s == null) ? 0.0 : s.demandExcess.sum();
+    }
+
+    void resetExcess() {
+        for (Slot s : slots) {
+            if (s == null) continue;
+            s.supplyExcess.reset();
+            s.demandExcess.reset();
+        }
+    }
+
+    // Caller holds writers out (exclusive capture gate)
+    void scaleExcess(double factor) {
+        for (Slot s : slots) {
+            if (s == null) continue;
+            double sup = s.supplyExcess.sumThenReset();
+            double dem = s.demandExcess.sumThenReset();
+            s.supplyExcess.add(sup * factor);
+            s.demandExcess.add(dem * factor);
+        }
+    }
+
+    long supply(int ordinal) {
+        Slot s = peek(ordinal);
+        return (s == null) ? 0L : s.supply.sum();
+    }
+
+    long demand(int ordinal) {
+        Slot s = peek(ordinal);
+        return (s == null) ? 0L : s.demand.sum();
+    }
+
+    long supplyTowns(int ordinal) {
+        Slot s = peek(ordinal);
+        return (s == null) ? 0L : s.supplyTowns.sum();
+    }
+
+    long demandTowns(int ordinal) {
+        Slot s = peek(ordinal);
+        return (s == null) ? 0L : s.demandTowns.sum();
+    }
+
+    int width() {
+        return slots.length;
+    }
+
+    /** Rough heap bytes: slot array plus six striped adders per slot (uncontended size). */
+    long footprintBytes() {
+        return 16L + 4L * slots.length + slots.length * (16L + 6 * 24L);
+    }
+
+    void reset() {
+        for (Slot s : slots) {
+            if (s == null) continue;
+            s.supply.reset();
+            s.demand.reset();
+            s.supplyTowns.reset();
+            s.demandTowns.reset();
+            s.supplyExcess.reset();
+            s.demandExcess.reset();
+        }
+    }
+
+    private Slot peek(int ordinal) {
+        Slot[] cur = slots;
+        return (ordinal < 0 || ordinal >= cur.length) ? null : cur[ordinal];
+    }
+
+    private Slot slot(int ordinal) {
+        Slot s = peek(ordinal);
+        return (s != null) ? s : grow(ordinal);
+    }
+
+    // Slots are shared objects, so copying the array on growth never loses an in-flight add
+    private synchronized Slot grow(int ordinal) {
+        Slot[] cur = slots;
+        if (ordinal < cur.length) return cur[ordinal];
+
+        Slot[] next = Arrays.copyOf(cur, Math.max(ordinal + 1, cur.length * 2));
+        for (int i = cur.length; i < next.length; i++) next[i] = new Slot();
+        slots = next;
+        return next[ordinal];
+    }
+
+    private static final class Slot {
+        final LongAdder supply = new LongAdder();
+        final LongAdder demand = new LongAdder();
+        final LongAdder supplyTowns = new LongAdder();
+        final LongAdder demandTowns = new LongAdder();
+        final DoubleAdder supplyExcess = new DoubleAdder();
+        final DoubleAdder demandExcess = new DoubleAdder();
+    }
+}
@@ -1,5 +1,9 @@
 package com.brandon.medievalmarkets.market;
 
+import com.brandon.medievalmarkets.market.storage.LedgerJournal;
+import com.brandon.medievalmarkets.market.storage.LedgerJournal.Op;
+import com.brandon.medievalmarkets.market.storage.LedgerShardStore;
+import com.brandon.medievalmarkets.market.storage.LedgerSnapshotFile;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.plugin.Plugin;
@@ -7,26 +11,191 @@ import org.bukkit.plugin.Plugin;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
-import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntConsumer;
+import java.util.logging.Logger;
 
+/**
+ * Per-town supply/demand/stock counters.
+ *
+ * Concurrency: there is no ledger-wide monitor. Each town row has its own {@link StampedLock};
+ * writers take that row's write lock, readers use optimistic reads and only fall back to the
+ * read lock if a writer raced them. Trades in different towns never contend.
+ *
+ * Durability: when a {@link LedgerJournal} is attached, every mutation is appended to it under
+ * the row lock. Writers also share a "capture gate" that a save takes exclusively only for the
+ * instant it rotates the journal and bumps the capture version, so a snapshot and its journal
+ * segment never overlap.
+ *
+ * Copy-on-write capture: rows are copied after the gate is released. Until the saver has
+ * visited a row, the first writer to touch it copies it for the save before mutating, so the
+ * save still sees every row exactly as it stood at the capture version. The pause writers see
+ * is O(1) in the number of towns, and serialization and disk I/O run with no lock held.
+ *
+ * Decay: with a half-life configured, supply/demand decay back toward BASELINE so old volume
+ * stops drowning out new trades. Each cell stores its value and last-touch second; decay is
+ * applied lazily on read and materialized on the next write ({@link CounterDecay}).
+ *
+ * Shards: each town is persisted as its own file ({@link LedgerShardStore}). Autosave rewrites
+ * only the towns touched since the last save, so its I/O follows trading activity rather than the
+ * number of towns. Rows load on first access and clean rows are evicted when idle or beyond a
+ * resident cap; the global totals always cover every town, resident or not.
+ */
 public final class MarketLedger {
 
-    // townId -> (commodityId -> count)
-    private final Map<UUID, Map<String, Integer>> supply = new HashMap<>();
-    private final Map<UUID, Map<String, Integer>> demand = new HashMap<>();
-    private final Map<UUID, Map<String, Integer>> stock  = new HashMap<>();
+    // commodityId <-> dense ordinal (shared with MarketService)
+    private final CommodityIndex index;
+
+    // townId -> primitive row indexed by commodity ordinal
+    private final Map<UUID, TownRow> towns = new ConcurrentHashMap<>();
+
+    // running server-wide supply/demand sums, updated alongside every row mutation
+    private final GlobalTotals totals = new GlobalTotals();
+
+    // writers hold it shared; snapshot capture holds it exclusively (see class doc)
+    private final StampedLock gate = new StampedLock();
+
+    // null while detached (e.g. during replay) or when journaling is disabled
+    private volatile LedgerJournal journal;
+
+    // serializes whole saves (autosave vs. shutdown) without blocking readers
+    private final Object saveMonitor = new Object();
+
+    // serializes consistency rebuilds; two at once would both apply the same correction
+    private final Object rebuildMonitor = new Object();
+
+    // towns changed / towns cleared since the last persisted save
+    private final Set<UUID> dirtyTowns = ConcurrentHashMap.newKeySet();
+    private final Set<UUID> removedTowns = ConcurrentHashMap.newKeySet();
+
+    // null until attached; towns with a shard on disk (resident or not)
+    private volatile LedgerShardStore store;
+    private final Set<UUID> stored = ConcurrentHashMap.newKeySet();
+    private volatile Residency residency = Residency.ALL_RESIDENT;
+    private final LongAdder shardLoads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private volatile Logger log;
+
+    // next save rewrites every resident town and deletes all other shards (import, migration)
+    private boolean forceFull = true;
+
+    // manifest must be rewritten even if no town changed (totals recomputed, failed save)
+    private volatile boolean manifestStale;
+
+    // bumped under the exclusive gate by every capture; rows remember the last version copied
+    private volatile long captureVersion;
+
+    // bumped under the exclusive gate by publish(); a save captured before a publish is stale
+    private volatile long publishCount;
+
+    // save whose rows are still being copied; writers preserve rows for it (see class doc)
+    private volatile PendingCapture pending;
+
+    private volatile SaveStats lastSave;
+
+    // counter decay (NONE = off); origin is the clock second the weighted excess sums are relative to
+    private volatile CounterDecay decay = CounterDecay.NONE;
+
+    // told about supply/demand changes (price cache); NONE until one is attached
+    private volatile ChangeListener listener = ChangeListener.NONE;
+    private volatile int decayOrigin = CounterDecay.now();
+
+    // Re-derive the weighted sums before weights outgrow double precision
+    private static final double DECAY_REBASE_HALF_LIVES = 256.0;
 
     /** Default liquidity baseline (prevents “dead markets”) */
-    private static final int BASELINE = 1000;
+    static final int BASELINE = 1000;
 
     // Clamp counts so bad data doesn't break math
-    private static final int MIN_COUNT = 1;
-    private static final int MAX_COUNT = 50_000_000;
+    static final int MIN_COUNT = 1;
+    static final int MAX_COUNT = 50_000_000;
 
     // Stock can be 0
     private static final int MIN_STOCK = 0;
     private static final int MAX_STOCK = 50_000_000;
 
+    // Cell value meaning "never recorded" (counts are clamped to >= MIN_COUNT, so 0 is free)
+    private static final int ABSENT = 0;
+
+    // Footprint estimates (compressed oops): TownRow fields + StampedLock, one ConcurrentHashMap
+    // node plus its UUID key, one concurrent-set entry
+    private static final long ROW_OVERHEAD_BYTES = 96 + 32;
+    private static final long MAP_ENTRY_BYTES = 32 + 32;
+    private static final long SET_ENTRY_BYTES = 32 + 32;
+
+    public MarketLedger(CommodityIndex index) {
+        this.index = Objects.requireNonNull(index, "index");
+    }
+
+    public CommodityIndex index() {
+        return index;
+    }
+
+    /** Journal to replay on load and append mutations to; attach before {@link #loadFromFile}. */
+    public void attachJournal(LedgerJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sets the supply/demand half-life (0 disables decay). Call before {@link #loadFromFile}:
+     * the global sums are derived for one half-life, and a manifest saved under another is
+     * recomputed from the shards on load.
+     */
+    public void configureDecay(long halfLifeSeconds) {
+        long g = gate.writeLock();
+        try {
+            decay = new CounterDecay(halfLifeSeconds);
+            decayOrigin = CounterDecay.now();
+            totals.resetExcess();
+        } finally {
+            gate.unlockWrite(g);
+        }
+    }
+
+    /**
+     * Hears about changes that can move a price. Calls are made under the town's row lock right
+     * after the change is applied, so they must be cheap and must not call back into the ledger.
+     */
+    public interface ChangeListener {
+        ChangeListener NONE = new ChangeListener() {
+            @Override public void supplyDemandChanged(UUID townId, int ordinal) {}
+            @Override public void townDropped(UUID townId) {}
+            @Override public void allChanged() {}
+        };
+
+        /** Supply or demand of one cell changed. */
+        void supplyDemandChanged(UUID townId, int ordinal);
+
+        /** Stock of one cell changed (only stock-aware pricing models care). */
+        default void stockChanged(UUID townId, int ordinal) {}
+
+        /** The town was cleared or evicted; anything cached for it can go. */
+        void townDropped(UUID townId);
+
+        /** Every town was replaced (import, load). */
+        void allChanged();
+    }
+
+    public void setChangeListener(ChangeListener listener) {
+        this.listener = (listener == null) ? ChangeListener.NONE : listener;
+    }
+
+    /** Current second on the ledger clock (the timestamps journal records and cells carry). */
+    public static int clockNow() {
+        return CounterDecay.now();
+    }
+
+    public long decayHalfLifeSeconds() {
+        return decay.halfLifeSeconds();
+    }
+
     /* =========================
        Seeding (NEW)
        ========================= */
@@ -35,20 +204,37 @@ public final class MarketLedger {
      * Ensures a town has baseline supply/demand for all commodities so prices can form immediately.
      * Safe to call repeatedly.
      */
-    public synchronized void seedTownIfMissing(UUID townId, Collection<String> commodityIds) {
-        if (townId == null || commodityIds == null || commodityIds.isEmpty()) return;
-
-        supply.computeIfAbsent(townId, k -> new HashMap<>());
-        demand.computeIfAbsent(townId, k -> new HashMap<>());
+    public void seedTownIfMissing(UUID townId, Collection<String> commodityIds) {
+        seedTownIfMissing(townId, commodityIds, CounterDecay.now());
+    }
 
-        Map<String, Integer> s = supply.get(townId);
-        Map<String, Integer> d = demand.get(townId);
+    /** As above, stamped at ledger clock second {@code at} (journal replay passes the original time). */
+    public void seedTownIfMissing(UUID townId, Collection<String> commodityIds, int at) {
+        if (townId == null || commodityIds == null || commodityIds.isEmpty()) return;
 
         for (String cid : commodityIds) {
-            String id = norm(cid);
-            if (id.isBlank()) continue;
-            s.putIfAbsent(id, BASELINE);
-            d.putIfAbsent(id, BASELINE);
+            int ord = index.intern(cid);
+            if (ord < 0) continue;
+
+            TownRow row = lockRow(townId);
+            try {
+                int i = row.find(ord);
+                if (i < 0) {
+                    // Baseline on both sides needs no cell: just the seeded bit, counted in the totals
+                    if (row.isSeeded(ord)) continue;
+                    row.setSeeded(ord, true);
+                    totals.addSupply(ord, BASELINE, 1);
+                    totals.addDemand(ord, BASELINE, 1);
+                } else {
+                    if (row.supply[i] != ABSENT && row.demand[i] != ABSENT) continue;
+                    touch(row, i, at);
+                    if (row.supply[i] == ABSENT) setSupply(row, i, BASELINE);
+                    if (row.demand[i] == ABSENT) setDemand(row, i, BASELINE);
+                }
+                mutated(row, Op.SEED, townId, ord, 0, at);
+            } finally {
+                unlock(row);
+            }
         }
     }
 
@@ -56,70 +242,112 @@ public final class MarketLedger {
        Recording
        ========================= */
 
-    public synchronized void recordSupply(UUID townId, String commodityId, int qty) {
-        if (townId == null || commodityId == null || qty <= 0) return;
-        supply.computeIfAbsent(townId, k -> new HashMap<>())
-                .merge(norm(commodityId), qty, Integer::sum);
-        clampCountMap(townId, supply);
+    public void recordSupply(UUID townId, String commodityId, int qty) {
+        if (commodityId == null) return;
+        recordSupply(townId, index.intern(commodityId), qty);
+    }
+
+    public void recordDemand(UUID townId, String commodityId, int qty) {
+        if (commodityId == null) return;
+        recordDemand(townId, index.intern(commodityId), qty);
+    }
+
+    public void recordSupply(UUID townId, int ordinal, int qty) {
+        recordSupply(townId, ordinal, qty, CounterDecay.now());
     }
 
-    public synchronized void recordDemand(UUID townId, String commodityId, int qty) {
-        if (townId == null || commodityId == null || qty <= 0) return;
-        demand.computeIfAbsent(townId, k -> new HashMap<>())
-                .merge(norm(commodityId), qty, Integer::sum);
-        clampCountMap(townId, demand);
+    public void recordDemand(UUID townId, int ordinal, int qty) {
+        recordDemand(townId, ordinal, qty, CounterDecay.now());
+    }
+
+    /** Records at ledger clock second {@code at}; journal replay passes the original time. */
+    public void recordSupply(UUID townId, int ordinal, int qty, int at) {
+        if (townId == null || ordinal < 0 || qty <= 0) return;
+        TownRow row = lockRow(townId);
+        try {
+            int i = row.slot(ordinal);
+            touch(row, i, at);
+            setSupply(row, i, clampCount((long) row.supply[i] + qty));
+            mutated(row, Op.SUPPLY, townId, ordinal, qty, at);
+        } finally {
+            unlock(row);
+        }
+    }
+
+    /** Records at ledger clock second {@code at}; journal replay passes the original time. */
+    public void recordDemand(UUID townId, int ordinal, int qty, int at) {
+        if (townId == null || ordinal < 0 || qty <= 0) return;
+        TownRow row = lockRow(townId);
+        try {
+            int i = row.slot(ordinal);
+            touch(row, i, at);
+            setDemand(row, i, clampCount((long) row.demand[i] + qty));
+            mutated(row, Op.DEMAND, townId, ordinal, qty, at);
+        } finally {
+            unlock(row);
+        }
     }
 
     /* =========================
        Stock
        ========================= */
 
-    public synchronized int stock(UUID townId, String commodityId) {
-        if (townId == null || commodityId == null) return 0;
-        return stock.getOrDefault(townId, Map.of()).getOrDefault(norm(commodityId), 0);
+    public int stock(UUID townId, String commodityId) {
+        return stock(townId, index.ordinal(commodityId));
     }
 
-    public synchronized void addStock(UUID townId, String commodityId, int qty) {
-        if (townId == null || commodityId == null || qty <= 0) return;
-        stock.computeIfAbsent(townId, k -> new HashMap<>())
-                .merge(norm(commodityId), qty, Integer::sum);
-        clampStockMap(townId);
+    public void addStock(UUID townId, String commodityId, int qty) {
+        if (commodityId == null) return;
+        addStock(townId, index.intern(commodityId), qty);
     }
 
-    public synchronized int removeStock(UUID townId, String commodityId, int qty) {
-        if (townId == null || commodityId == null || qty <= 0) return 0;
-        Map<String, Integer> m = stock.get(townId);
-        if (m == null) return 0;
-
-        String id = norm(commodityId);
-        int have = m.getOrDefault(id, 0);
-        int take = Math.min(have, qty);
-        if (take <= 0) return 0;
+    public int removeStock(UUID townId, String commodityId, int qty) {
+        return removeStock(townId, index.ordinal(commodityId), qty);
+    }
 
-        int left = have - take;
-        if (left <= 0) m.remove(id);
-        else m.put(id, left);
+    public int stock(UUID townId, int ordinal) {
+        if (townId == null || ordinal < 0) return 0;
+        TownRow row = resident(townId);
+        return (row == null) ? 0 : row.read(Cell.STOCK, ordinal);
+    }
 
-        return take;
+    /** Fills {@code out[ordinal]} with the town's stock (0 where none), all from one row version. */
+    public void stockInto(UUID townId, int[] out) {
+        Arrays.fill(out, 0);
+        TownRow row = (townId == null) ? null : resident(townId);
+        if (row != null) row.stockInto(out);
     }
 
-    private void clampStockMap(UUID townId) {
-        Map<String, Integer> m = stock.get(townId);
-        if (m == null) return;
-        for (Map.Entry<String, Integer> e : new ArrayList<>(m.entrySet())) {
-            int v = e.getValue() == null ? 0 : e.getValue();
-            if (v < MIN_STOCK) v = MIN_STOCK;
-            if (v > MAX_STOCK) v = MAX_STOCK;
-            m.put(e.getKey(), v);
+    public void addStock(UUID townId, int ordinal, int qty) {
+        if (townId == null || ordinal < 0 || qty <= 0) return;
+        TownRow row = lockRow(townId);
+        try {
+            int i = row.slot(ordinal);
+            row.stock[i] = clampStock((long) row.stock[i] + qty);
+            mutated(row, Op.ADD_STOCK, townId, ordinal, qty, CounterDecay.now());
+        } finally {
+            unlock(row);
         }
     }
 
-    private void clampCountMap(UUID townId, Map<UUID, Map<String, Integer>> target) {
-        Map<String, Integer> m = target.get(townId);
-        if (m == null) return;
-        for (Map.Entry<String, Integer> e : new ArrayList<>(m.entrySet())) {
-            int v = e.getValue() == null ? BASELINE : e.getValue();
-            m.put(e.getKey(), clampCount(v));
+    public int removeStock(UUID townId, int ordinal, int qty) {
+        if (townId == null || ordinal < 0 || qty <= 0) return 0;
+        TownRow row = lockExistingRow(townId);
+        if (row == null) return 0;
+
+        try {
+            int i = row.find(ordinal);
+            if (i < 0) return 0;
+
+            int have = row.stock[i];
+            int take = Math.min(have, qty);
+            if (take <= 0) return 0;
+
+            row.stock[i] = have - take;
+            mutated(row, Op.REMOVE_STOCK, townId, ordinal, take, CounterDecay.now());
+            return take;
+        } finally {
+            unlock(row);
         }
     }
 
@@ -127,193 +355,1615 @@ public final class MarketLedger {
        Reading (per-town)
        ========================= */
 
-    public synchronized int supply(UUID townId, String commodityId) {
-        if (townId == null || commodityId == null) return BASELINE;
-        return supply.getOrDefault(townId, Map.of()).getOrDefault(norm(commodityId), BASELINE);
+    public int supply(UUID townId, String commodityId) {
+        return supply(townId, index.ordinal(commodityId));
+    }
+
+    public int demand(UUID townId, String commodityId) {
+        return demand(townId, index.ordinal(commodityId));
+    }
+
+    public int supply(UUID townId, int ordinal) {
+        return packedSupply(supplyDemand(townId, ordinal));
+    }
+
+    public int demand(UUID townId, int ordinal) {
+        return packedDemand(supplyDemand(townId, ordinal));
+    }
+
+    /**
+     * Supply and demand for one cell read together from the same row version, packed as
+     * {@code (supply << 32) | demand}. Use {@link #packedSupply}/{@link #packedDemand} to unpack.
+     * Lets the price engine read both sides without two lookups or a torn pair.
+     * Values are decayed to the current second when decay is enabled.
+     */
+    public long supplyDemand(UUID townId, int ordinal) {
+        if (townId == null || ordinal < 0) return pack(BASELINE, BASELINE);
+        TownRow row = resident(townId);
+        if (row == null) return pack(BASELINE, BASELINE);
+
+        long packed = row.readPair(ordinal, decay, CounterDecay.now());
+        return pack(orBaseline(packedSupply(packed)), orBaseline(packedDemand(packed)));
+    }
+
+    /**
+     * Every commodity's decayed supply and demand into {@code supply[ordinal]} / {@code demand[ordinal]}
+     * (BASELINE where the town has no cell), all from one row version.
+     */
+    public void supplyDemandInto(UUID townId, int[] supply, int[] demand) {
+        Arrays.fill(supply, BASELINE);
+        Arrays.fill(demand, BASELINE);
+        TownRow row = (townId == null) ? null : resident(townId);
+        if (row != null) row.pairsInto(supply, demand, decay, CounterDecay.now());
+    }
+
+    /**
+     * Last ledger clock second (inclusive) until which {@link #supplyDemand} keeps returning the
+     * current value for this cell, barring new trades; Integer.MAX_VALUE if decay cannot move it.
+     */
+    public int supplyDemandStableUntil(UUID townId, int ordinal) {
+        CounterDecay dc = decay;
+        if (townId == null || ordinal < 0 || !dc.enabled()) return Integer.MAX_VALUE;
+        TownRow row = resident(townId);
+        return (row == null) ? Integer.MAX_VALUE : row.stableUntil(ordinal, dc, CounterDecay.now());
+    }
+
+    public static int packedSupply(long packed) {
+        return (int) (packed >>> 32);
+    }
+
+    public static int packedDemand(long packed) {
+        return (int) packed;
+    }
+
+    private static long pack(int supply, int demand) {
+        return ((long) supply << 32) | (demand & 0xFFFF_FFFFL);
+    }
+
+    /**
+     * Consistent copy of one town's row (all three arrays from the same version),
+     * or null if the town has never traded. Safe to call from any thread.
+     */
+    public RowSnapshot snapshotTown(UUID townId) {
+        if (townId == null) return null;
+        TownRow row = resident(townId);
+        return (row == null) ? null : row.copy();
     }
 
-    public synchronized int demand(UUID townId, String commodityId) {
-        if (townId == null || commodityId == null) return BASELINE;
-        return demand.getOrDefault(townId, Map.of()).getOrDefault(norm(commodityId), BASELINE);
+    /**
+     * Immutable-by-convention copy of a town row in the ledger's sparse form: cell arrays are
+     * parallel to {@code ordinals} (ascending) and follow the ABSENT=0 convention; {@code seeded}
+     * is a bitset of commodities at BASELINE supply/demand that have no cell.
+     * Supply/demand are as last written (not decayed); {@code touched} holds each cell's ledger clock second.
+     */
+    public record RowSnapshot(int[] ordinals, int[] supply, int[] demand, int[] stock, int[] touched, long[] seeded) {
+
+        public int cells() {
+            return ordinals.length;
+        }
+
+        public void forEachSeeded(IntConsumer action) {
+            forEachBit(seeded, action);
+        }
+
+        /** Highest ordinal with a cell or seeded bit, or -1 for an empty row. */
+        public int maxOrdinal() {
+            int max = (ordinals.length == 0) ? -1 : ordinals[ordinals.length - 1];
+            for (int word = seeded.length - 1; word >= 0; word--) {
+                if (seeded[word] != 0) return Math.max(max, (word << 6) + 63 - Long.numberOfLeadingZeros(seeded[word]));
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Timings of the last completed save, in nanoseconds: {@code gateWaitNanos} is how long the
+     * saver waited for in-flight writes, {@code captureNanos} how long writers were then held out, {@code copyNanos} the row copying done afterwards (of which
+     * {@code copiedByWriters} rows were copied by writers first), {@code writeNanos} encoding and I/O.
+     * {@code resident} is the number of towns in memory after the save evicted {@code evicted}.
+     */
+    public record SaveStats(long version, boolean full, int towns, int removed, long bytes,
+                            long gateWaitNanos, long captureNanos, long copyNanos, long writeNanos, int copiedByWriters,
+                            int resident, int evicted) {}
+
+    /** Null until the first save completes. */
+    public SaveStats lastSaveStats() {
+        return lastSave;
+    }
+
+    /**
+     * Estimated heap use of the ledger. Cell counts are those of resident towns; {@code seeded}
+     * commodities sit at the baseline with no cell. {@code denseBytes} is what the resident rows
+     * would take as full per-commodity arrays, for comparison.
+     */
+    public record Footprint(int residentTowns, int knownTowns, long cells, long seeded,
+                            long rowBytes, long mapBytes, long trackingBytes, long totalsBytes, long denseBytes) {
+
+        public long totalBytes() {
+            return rowBytes + mapBytes + trackingBytes + totalsBytes;
+        }
+    }
+
+    /** Walks the resident rows without locking them, so figures may be off by in-flight trades. */
+    public Footprint footprint() {
+        int resident = 0;
+        long cells = 0L, seeded = 0L, rowBytes = 0L;
+        for (TownRow row : towns.values()) {
+            resident++;
+            cells += row.size;
+            seeded += row.seededCount();
+            rowBytes += row.footprintBytes();
+        }
+
+        int known = knownTowns();
+        long tracking = SET_ENTRY_BYTES * ((long) stored.size() + dirtyTowns.size() + removedTowns.size());
+        long dense = resident * (ROW_OVERHEAD_BYTES + 4L * arrayBytes(index.size(), 4));
+        return new Footprint(resident, known, cells, seeded, rowBytes, MAP_ENTRY_BYTES * resident, tracking,
+                totals.footprintBytes(), dense);
     }
 
     /* =========================
        Reading (GLOBAL)
        ========================= */
 
-    public synchronized int globalSupply(String commodityId) {
-        String id = norm(commodityId);
-        long total = 0L;
-        boolean any = false;
+    public int globalSupply(String commodityId) {
+        return globalSupply(index.ordinal(commodityId));
+    }
+
+    public int globalDemand(String commodityId) {
+        return globalDemand(index.ordinal(commodityId));
+    }
+
+    /** O(1): served from the running totals, not a scan over towns. */
+    public int globalSupply(int ordinal) {
+        if (ordinal < 0) return BASELINE;
+        long townCount = totals.supplyTowns(ordinal);
+        if (!decay.enabled()) return globalOf(townCount > 0, totals.supply(ordinal));
+        return globalOf(townCount > 0, decayedTotal(townCount, totals.supplyExcess(ordinal)));
+    }
+
+    /** O(1): served from the running totals, not a scan over towns. */
+    public int globalDemand(int ordinal) {
+        if (ordinal < 0) return BASELINE;
+        long townCount = totals.demandTowns(ordinal);
+        if (!decay.enabled()) return globalOf(townCount > 0, totals.demand(ordinal));
+        return globalOf(townCount > 0, decayedTotal(townCount, totals.demandExcess(ordinal)));
+    }
+
+    // Sum of every town's decayed cell: n * BASELINE + (weighted excess / weight of now)
+    private long decayedTotal(long townCount, double weightedExcess) {
+        double excess = weightedExcess / decay.weight(CounterDecay.now(), decayOrigin);
+        return Math.round(townCount * (double) BASELINE + excess);
+    }
+
+    /**
+     * Consistency check: recomputes global totals from every town (resident rows and shard files)
+     * and corrects any drift in the running sums. Returns how many commodity ordinals had drifted.
+     *
+     * Corrections are applied as deltas, so trades that land during the scan are not lost;
+     * at worst such a trade is reported as drift and fixed on the next check.
+     *
+     * Reads the shard of every evicted town, so call it off the main thread; rebuilds run one
+     * at a time.
+     */
+    public int rebuildGlobalTotals() {
+        synchronized (rebuildMonitor) {
+            TotalsScan scan = scanTotals();
 
-        for (Map<String, Integer> m : supply.values()) {
-            Integer v = m.get(id);
-            if (v != null) {
-                any = true;
-                total += v;
+            int drifted = 0;
+            for (int ord = 0; ord < scan.width(); ord++) {
+                long ds = scan.supply[ord] - totals.supply(ord);
+                long dd = scan.demand[ord] - totals.demand(ord);
+                long dst = scan.supplyTowns[ord] - totals.supplyTowns(ord);
+                long ddt = scan.demandTowns[ord] - totals.demandTowns(ord);
+                if (ds != 0 || dd != 0 || dst != 0 || ddt != 0) {
+                    drifted++;
+                    totals.addSupply(ord, ds, (int) dst);
+                    totals.addDemand(ord, dd, (int) ddt);
+                }
+                totals.addSupplyExcess(ord, scan.supplyExcess[ord] - totals.supplyExcess(ord));
+                totals.addDemandExcess(ord, scan.demandExcess[ord] - totals.demandExcess(ord));
             }
+            return drifted;
         }
+    }
 
-        if (!any) return BASELINE;
-        if (total > Integer.MAX_VALUE) return Integer.MAX_VALUE;
-        return (int) Math.max(1L, total);
+    /** Moves the weighted excess sums to a fresh origin; O(commodities), exclusive gate. */
+    private void rebaseDecay() {
+        long g = gate.writeLock();
+        try {
+            int origin = CounterDecay.now();
+            totals.scaleExcess(decay.weight(decayOrigin, origin));
+            decayOrigin = origin;
+        } finally {
+            gate.unlockWrite(g);
+        }
+    }
+
+    // Sums over every town: resident rows are copied, evicted towns are read from their shard
+    private TotalsScan scanTotals() {
+        TotalsScan scan = new TotalsScan(Math.max(index.size(), totals.width()));
+        CounterDecay dc = decay;
+        int origin = decayOrigin;
+
+        for (UUID townId : knownTownIds()) {
+            RowSnapshot snap = peekTown(townId);
+            if (snap != null) scan.add(snap, dc, origin);
+        }
+        return scan;
     }
 
-    public synchronized int globalDemand(String commodityId) {
-        String id = norm(commodityId);
-        long total = 0L;
-        boolean any = false;
+    private static final class TotalsScan {
+        long[] supply, demand, supplyTowns, demandTowns;
+        double[] supplyExcess, demandExcess;
+
+        TotalsScan(int width) {
+            grow(width);
+        }
+
+        int width() {
+            return supply.length;
+        }
 
-        for (Map<String, Integer> m : demand.values()) {
-            Integer v = m.get(id);
-            if (v != null) {
-                any = true;
-                total += v;
+        void add(RowSnapshot snap, CounterDecay dc, int origin) {
+            int width = Math.max(snap.maxOrdinal() + 1, supply.length);
+            if (width > supply.length) grow(width);
+            snap.forEachSeeded(ord -> {
+                supply[ord] += BASELINE;
+                demand[ord] += BASELINE;
+                supplyTowns[ord]++;
+                demandTowns[ord]++;
+            });
+            for (int i = 0; i < snap.ordinals().length; i++) {
+                int ord = snap.ordinals()[i];
+                int s = snap.supply()[i];
+                int d = snap.demand()[i];
+                double w = dc.enabled() ? dc.weight(snap.touched()[i], origin) : 0.0;
+                if (s != ABSENT) {
+                    supply[ord] += s;
+                    supplyTowns[ord]++;
+                    supplyExcess[ord] += (s - BASELINE) * w;
+                }
+                if (d != ABSENT) {
+                    demand[ord] += d;
+                    demandTowns[ord]++;
+                    demandExcess[ord] += (d - BASELINE) * w;
+                }
             }
         }
 
+        private void grow(int width) {
+            supply = Arrays.copyOf(supply == null ? new long[0] : supply, width);
+            demand = Arrays.copyOf(demand == null ? new long[0] : demand, width);
+            supplyTowns = Arrays.copyOf(supplyTowns == null ? new long[0] : supplyTowns, width);
+            demandTowns = Arrays.copyOf(demandTowns == null ? new long[0] : demandTowns, width);
+            supplyExcess = Arrays.copyOf(supplyExcess == null ? new double[0] : supplyExcess, width);
+            demandExcess = Arrays.copyOf(demandExcess == null ? new double[0] : demandExcess, width);
+        }
+    }
+
+    private int globalOf(boolean any, long total) {
         if (!any) return BASELINE;
         if (total > Integer.MAX_VALUE) return Integer.MAX_VALUE;
         return (int) Math.max(1L, total);
     }
 
+    /* =========================
+       Residency (per-town shards)
+       ========================= */
+
+    /**
+     * How many towns stay in memory: rows idle for {@code idleSeconds} are evicted, and beyond
+     * {@code maxResident} the least recently used are evicted too (only rows already persisted;
+     * both are enforced after each save). At startup the {@code warmRecent} most recently saved
+     * towns plus {@code warmTowns} are loaded on {@code warmThreads} threads.
+     */
+    public record Residency(int idleSeconds, int maxResident, int warmRecent, List<UUID> warmTowns, int warmThreads) {
+        public static final Residency ALL_RESIDENT = new Residency(Integer.MAX_VALUE, Integer.MAX_VALUE, 0, List.of(), 1);
+    }
+
+    /** Where shards live and how many stay resident; attach before {@link #loadFromFile}. */
+    public void attachStore(LedgerShardStore store, Residency residency) {
+        this.store = store;
+        this.residency = (residency == null) ? Residency.ALL_RESIDENT : residency;
+    }
+
+    public int residentTowns() {
+        return towns.size();
+    }
+
+    /** Towns with data, resident or not. */
+    public int knownTowns() {
+        return knownTownIds().size();
+    }
+
+    /** True if the town has a row, resident or in a shard; never loads it. */
+    public boolean hasTown(UUID townId) {
+        return townId != null && (towns.containsKey(townId) || stored.contains(townId));
+    }
+
+    public long shardLoads() {
+        return shardLoads.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Journal replay: true if the town's shard already reflects records from {@code segment}
+     * (it was saved after that segment was rotated out), so such records must be skipped.
+     */
+    public boolean shardCovers(UUID townId, long segment) {
+        TownRow row = resident(townId);
+        return row != null && segment < row.persistedSegment;
+    }
+
+    // Resident row for a town, loading its shard on first access; null if the town has no data
+    private TownRow resident(UUID townId) {
+        TownRow row = towns.get(townId);
+        if (row == null) {
+            if (!stored.contains(townId)) return null;
+            row = towns.computeIfAbsent(townId, this::loadShard);
+            if (row == null) return null;
+        }
+        row.lastAccess = CounterDecay.now();
+        return row;
+    }
+
+    // Resident row, or a copy straight from the shard without making it resident (scans, export)
+    private RowSnapshot peekTown(UUID townId) {
+        TownRow row = towns.get(townId);
+        if (row != null) return row.copy();
+
+        LedgerShardStore s = store;
+        if (s == null || !stored.contains(townId)) return null;
+        try {
+            LedgerShardStore.Shard shard = s.read(townId);
+            return (shard == null) ? null : shard.row();
+        } catch (IOException ex) {
+            warn("Failed reading ledger shard " + townId + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private Set<UUID> knownTownIds() {
+        Set<UUID> ids = new HashSet<>(stored);
+        ids.addAll(towns.keySet());
+        return ids;
+    }
+
+    /**
+     * Runs inside the towns map's compute for this key, so it cannot race clearTown() or an
+     * eviction of the same town. Loading never touches the global totals: an evicted town's
+     * cells were never subtracted from them.
+     */
+    private TownRow loadShard(UUID townId) {
+        LedgerShardStore s = store;
+        if (s == null || !stored.contains(townId)) return null;
+
+        try {
+            LedgerShardStore.Shard shard = s.read(townId);
+            if (shard == null) {
+                stored.remove(townId);
+                return null;
+            }
+            TownRow row = TownRow.of(shard.row());
+            row.persistedSegment = shard.journalSegment();
+            row.capturedVersion = captureVersion;
+            row.stampUntouched(CounterDecay.now());
+            shardLoads.increment();
+            return row;
+        } catch (IOException ex) {
+            // Its cells are still counted in the totals; /market admin totals corrects that
+            warn("Unreadable ledger shard for town " + townId + " moved aside: " + ex.getMessage());
+            s.quarantine(townId);
+            stored.remove(townId);
+            return null;
+        }
+    }
+
+    // Writers: an existing shard is loaded, otherwise a fresh row is created
+    private TownRow loadOrCreate(UUID townId) {
+        TownRow row = loadShard(townId);
+        return (row != null) ? row : newRow();
+    }
+
+    /** Loads the warm set on a small pool; returns how many towns were loaded. */
+    private int warm(LedgerShardStore s, Residency r) {
+        List<UUID> ids = new ArrayList<>();
+        for (UUID townId : r.warmTowns()) {
+            if (stored.contains(townId)) ids.add(townId);
+        }
+        if (r.warmRecent() > 0) {
+            List<UUID> recent = new ArrayList<>(stored);
+            Map<UUID, Long> modified = new HashMap<>();
+            for (UUID townId : recent) modified.put(townId, s.lastModified(townId));
+            recent.sort((a, b) -> Long.compare(modified.get(b), modified.get(a)));
+            ids.addAll(recent.subList(0, Math.min(r.warmRecent(), recent.size())));
+        }
+        if (ids.isEmpty()) return 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, r.warmThreads()), task -> {
+            Thread t = new Thread(task, "MedievalMarkets-LedgerWarm");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            List<Future<?>> loads = new ArrayList<>();
+            for (UUID townId : ids) loads.add(pool.submit(() -> resident(townId)));
+            for (Future<?> f : loads) {
+                try {
+                    f.get();
+                } catch (ExecutionException ex) {
+                    warn("Warm load failed: " + ex.getCause());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdown();
+        }
+        return towns.size();
+    }
+
+    /**
+     * Evicts clean rows that have been idle too long, then least-recently-used clean rows while
+     * over the resident cap. Runs under the save monitor after a save, so a clean row's shard is
+     * always on disk before the row is dropped. Dirty rows stay until the next save.
+     */
+    private int evict() {
+        Residency r = residency;
+        if (store == null) return 0;
+
+        int now = CounterDecay.now();
+        int evicted = 0;
+        List<Idle> clean = new ArrayList<>();
+        for (Map.Entry<UUID, TownRow> e : towns.entrySet()) {
+            TownRow row = e.getValue();
+            if (row.dirtyListed || !stored.contains(e.getKey())) continue;
+
+            int lastAccess = row.lastAccess;
+            if (now - lastAccess >= r.idleSeconds()) {
+                if (evict(e.getKey(), row)) evicted++;
+            } else {
+                clean.add(new Idle(e.getKey(), row, lastAccess));
+            }
+        }
+
+        int over = towns.size() - r.maxResident();
+        if (over > 0) {
+            clean.sort(Comparator.comparingInt(Idle::lastAccess));
+            for (Idle idle : clean) {
+                if (over <= 0) break;
+                if (evict(idle.townId(), idle.row())) {
+                    over--;
+                    evicted++;
+                }
+            }
+        }
+        evictions.add(evicted);
+        return evicted;
+    }
+
+    private record Idle(UUID townId, TownRow row, int lastAccess) {}
+
+    private boolean evict(UUID townId, TownRow row) {
+        long stamp = row.lock.writeLock();
+        try {
+            if (row.retired || row.dirtyListed) return false;
+            boolean[] removed = {false};
+            towns.computeIfPresent(townId, (k, v) -> {
+                if (v != row || !stored.contains(k)) return v;
+                removed[0] = true;
+                return null;
+            });
+            // Writers that already hold a reference retry and reload the (identical) shard
+            if (!removed[0]) return false;
+            row.retired = true;
+            listener.townDropped(townId);
+            return true;
+        } finally {
+            row.lock.unlockWrite(stamp);
+        }
+    }
+
     /* =========================
        Persistence
        ========================= */
 
-    public synchronized void clearAll() {
-        supply.clear();
-        demand.clear();
-        stock.clear();
+    public void clearAll() {
+        for (UUID townId : knownTownIds()) {
+            clearTown(townId);
+        }
     }
 
-    public synchronized void clearTown(UUID townId) {
+    public void clearTown(UUID townId) {
         if (townId == null) return;
-        supply.remove(townId);
-        demand.remove(townId);
-        stock.remove(townId);
+        TownRow row = lockExistingRow(townId);
+        if (row == null) return;
+
+        // Retire under the write lock so a writer that already fetched this row retries on a fresh one
+        try {
+            // Unlist first: once the row is unpublished a writer may recreate the town and list it again
+            dirtyTowns.remove(townId);
+            towns.compute(townId, (k, v) -> {
+                stored.remove(k); // in the same compute, so no reader can reload the shard afterwards
+                return (v == row) ? null : v;
+            });
+            row.retired = true;
+            subtractFromTotals(row);
+            journal(Op.CLEAR_TOWN, townId, -1, 0, CounterDecay.now());
+            removedTowns.add(townId);
+            listener.townDropped(townId);
+        } finally {
+            unlock(row);
+        }
     }
 
-    public synchronized void loadFromFile(Plugin plugin, File file) {
-        if (plugin == null || file == null) return;
+    private void subtractFromTotals(TownRow row) {
+        addToTotals(row, -1);
+    }
 
-        clearAll();
+    private void addToTotals(TownRow row) {
+        addToTotals(row, 1);
+    }
 
-        if (!file.exists()) {
-            writeEmptyLedger(plugin, file);
-            return;
+    // Seeded cells count as BASELINE on both sides (no excess); sign is 1 or -1
+    private void addToTotals(TownRow row, int sign) {
+        for (int i = 0; i < row.size; i++) {
+            int ord = row.ords[i];
+            int s = row.supply[i];
+            int d = row.demand[i];
+            if (s != ABSENT) totals.addSupply(ord, sign * (long) s, sign);
+            if (d != ABSENT) totals.addDemand(ord, sign * (long) d, sign);
+            addExcess(row, i, sign);
         }
+        row.forEachSeeded(ord -> {
+            totals.addSupply(ord, sign * (long) BASELINE, sign);
+            totals.addDemand(ord, sign * (long) BASELINE, sign);
+        });
+    }
 
-        YamlConfiguration yml = YamlConfiguration.loadConfiguration(file);
+    /**
+     * Opens the shard store: global totals come from the manifest, the warm set is loaded in
+     * parallel and every other town loads on first access. The attached journal (if any) is then
+     * replayed, skipping records a newer shard already holds, and journaling resumes.
+     *
+     * Installs without shards are migrated once: the single-file snapshot {@code legacySnapshot}
+     * (plus its delta file) or, failing that, {@code legacyYaml} is loaded, written out as shards,
+     * and renamed to {@code *.migrated}.
+     */
+    public void loadFromFile(Plugin plugin, File legacySnapshot, File legacyYaml) {
+        LedgerShardStore s = store;
+        if (plugin == null || s == null) return;
+        this.log = plugin.getLogger();
+
+        // Replayed mutations must not be journaled again
+        LedgerJournal j = this.journal;
+        this.journal = null;
 
-        ConfigurationSection towns = yml.getConfigurationSection("towns");
-        if (towns == null) {
-            // Empty/old/bad ledger -> initialize cleanly
-            writeEmptyLedger(plugin, file);
-            return;
+        publish(Map.of());
+        stored.addAll(s.list());
+
+        long fromSegment = 0L;
+        boolean recompute = false;
+        List<File> migratedFrom = new ArrayList<>();
+
+        LedgerShardStore.Manifest manifest = null;
+        try {
+            manifest = s.readManifest();
+        } catch (IOException ex) {
+            plugin.getLogger().severe("[MedievalMarkets] Failed reading ledger manifest: " + ex.getMessage());
         }
 
-        for (String townKey : towns.getKeys(false)) {
-            UUID townId;
+        if (manifest != null || !stored.isEmpty()) {
+            if (manifest != null) fromSegment = manifest.journalSegment();
+            if (manifest != null && !s.saveInterrupted() && manifest.halfLifeSeconds() == decay.halfLifeSeconds()) {
+                loadTotals(manifest);
+            } else {
+                recompute = true; // stale, missing, or decay settings changed
+            }
+
+            long t0 = System.nanoTime();
+            int warmed = warm(s, residency);
+            plugin.getLogger().info("[MedievalMarkets] Opened market ledger: " + stored.size() + " towns on disk, "
+                    + warmed + " preloaded in " + millis(System.nanoTime() - t0) + "ms.");
+        } else if (legacySnapshot != null && legacySnapshot.exists()) {
+            File deltaFile = deltaFileFor(legacySnapshot);
             try {
-                townId = UUID.fromString(townKey);
-            } catch (Exception ex) {
-                plugin.getLogger().warning("[MedievalMarkets] Skipping bad town UUID in ledger: " + townKey);
-                continue;
+                LedgerSnapshotFile.Loaded snap = LedgerSnapshotFile.read(legacySnapshot, index);
+                Map<UUID, TownRow> loaded = new HashMap<>();
+                for (Map.Entry<UUID, RowSnapshot> e : snap.rows().entrySet()) {
+                    loaded.put(e.getKey(), TownRow.of(e.getValue()));
+                }
+                fromSegment = snap.journalSegment();
+
+                for (LedgerSnapshotFile.DeltaFrame frame : LedgerSnapshotFile.readDeltas(deltaFile, fromSegment, index)) {
+                    applyDelta(loaded, frame);
+                    fromSegment = frame.journalSegment();
+                }
+                publish(loaded);
+                migratedFrom.add(legacySnapshot);
+                if (deltaFile.exists()) migratedFrom.add(deltaFile);
+                plugin.getLogger().info("[MedievalMarkets] Migrating " + legacySnapshot.getName() + " to per-town shards: "
+                        + loaded.size() + " towns.");
+            } catch (IOException ex) {
+                // Keep the bad file for inspection; the journal still gets replayed below
+                plugin.getLogger().severe("[MedievalMarkets] Failed reading ledger snapshot: " + ex.getMessage());
             }
+        } else if (legacyYaml != null && legacyYaml.exists()) {
+            Map<UUID, TownRow> loaded = readYaml(plugin, legacyYaml);
+            publish(loaded);
+            plugin.getLogger().info("[MedievalMarkets] Imported legacy " + legacyYaml.getName()
+                    + ": " + loaded.size() + " towns.");
+        }
 
-            ConfigurationSection townSec = towns.getConfigurationSection(townKey);
-            if (townSec == null) continue;
+        if (j != null) {
+            j.replayInto(this, fromSegment);
+            j.start();
+            this.journal = j;
+        }
 
-            readMapInto(townSec.getConfigurationSection("supply"), supply, townId, true);
-            readMapInto(townSec.getConfigurationSection("demand"), demand, townId, true);
-            readMapInto(townSec.getConfigurationSection("stock"),  stock,  townId, false);
+        if (recompute) {
+            totals.reset();
+            rebuildGlobalTotals();
+            manifestStale = true;
+            plugin.getLogger().warning("[MedievalMarkets] Ledger totals recomputed from shards.");
         }
 
-        plugin.getLogger().info("[MedievalMarkets] Loaded market ledger: " + unionTownIds().size() + " towns.");
+        if (!s.hasManifest() || manifestStale) {
+            forceFull = !s.hasManifest();
+            saveToFile(plugin);
+        }
+        for (File f : migratedFrom) {
+            if (s.hasManifest()) f.renameTo(new File(f.getPath() + ".migrated"));
+        }
     }
 
-    private void readMapInto(ConfigurationSection sec,
-                             Map<UUID, Map<String, Integer>> target,
-                             UUID townId,
-                             boolean clampCounts) {
-        if (sec == null) return;
+    private void loadTotals(LedgerShardStore.Manifest m) {
+        totals.reset();
+        decayOrigin = m.decayOrigin();
+        for (int i = 0; i < m.ids().length; i++) {
+            int ord = index.intern(m.ids()[i]);
+            if (ord < 0) continue;
+            totals.addSupply(ord, m.supply()[i], (int) m.supplyTowns()[i]);
+            totals.addDemand(ord, m.demand()[i], (int) m.demandTowns()[i]);
+            totals.addSupplyExcess(ord, m.supplyExcess()[i]);
+            totals.addDemandExcess(ord, m.demandExcess()[i]);
+        }
+    }
 
-        Map<String, Integer> map = new HashMap<>();
-        for (String cid : sec.getKeys(false)) {
-            int v = sec.getInt(cid, clampCounts ? BASELINE : 0);
-            v = clampCounts ? clampCount(v) : clampStock(v);
-            map.put(norm(cid), v);
+    // Caller holds the gate exclusively, so the totals match the rows exactly
+    private LedgerShardStore.Manifest manifest(long segment) {
+        int n = Math.max(index.size(), totals.width());
+        String[] ids = new String[n];
+        long[] supply = new long[n], demand = new long[n], supplyTowns = new long[n], demandTowns = new long[n];
+        double[] supplyExcess = new double[n], demandExcess = new double[n];
+        for (int ord = 0; ord < n; ord++) {
+            ids[ord] = index.id(ord);
+            supply[ord] = totals.supply(ord);
+            demand[ord] = totals.demand(ord);
+            supplyTowns[ord] = totals.supplyTowns(ord);
+            demandTowns[ord] = totals.demandTowns(ord);
+            supplyExcess[ord] = totals.supplyExcess(ord);
+            demandExcess[ord] = totals.demandExcess(ord);
+        }
+        return new LedgerShardStore.Manifest(segment, decay.halfLifeSeconds(), decayOrigin, ids,
+                supply, demand, supplyTowns, demandTowns, supplyExcess, demandExcess);
+    }
+
+    private static void applyDelta(Map<UUID, TownRow> loaded, LedgerSnapshotFile.DeltaFrame frame) {
+        for (UUID townId : frame.removed()) loaded.remove(townId);
+
+        for (Map.Entry<UUID, LedgerSnapshotFile.DirtyCells> e : frame.rows().entrySet()) {
+            LedgerSnapshotFile.DirtyCells dc = e.getValue();
+            TownRow row = loaded.computeIfAbsent(e.getKey(), k -> new TownRow());
+            for (int i = 0; i < dc.count(); i++) {
+                int slot = row.slot(dc.ordinals()[i]);
+                row.supply[slot] = dc.supply()[i];
+                row.demand[slot] = dc.demand()[i];
+                row.stock[slot] = dc.stock()[i];
+                row.touched[slot] = dc.touched()[i];
+            }
+        }
+        for (TownRow row : loaded.values()) row.compactAll();
+    }
+
+    private static File deltaFileFor(File snapshot) {
+        String name = snapshot.getName();
+        int dot = name.lastIndexOf('.');
+        return new File(snapshot.getAbsoluteFile().getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + ".delta");
+    }
+
+    /**
+     * Persists the towns that changed since the last save as shard files, deletes the shards of
+     * cleared towns, then writes the manifest and compacts the journal. Every resident town is
+     * rewritten after an import or migration. Idle and over-cap rows are evicted afterwards.
+     *
+     * The dirty towns are captured together with a journal rotation and each shard records which
+     * segment replay resumes from. Safe to call off the main thread; encoding and disk I/O happen
+     * with no ledger lock held.
+     */
+    public void saveToFile(Plugin plugin) {
+        LedgerShardStore s = store;
+        if (plugin == null || s == null) return;
+
+        synchronized (saveMonitor) {
+            if (decay.halfLives(decayOrigin, CounterDecay.now()) > DECAY_REBASE_HALF_LIVES) rebaseDecay();
+
+            LedgerJournal j = this.journal;
+            boolean full = forceFull;
+
+            PendingCapture cap = capture(j, full);
+            if (cap == null) {
+                evict(); // nothing changed since the last save
+                return;
+            }
+            long t1 = System.nanoTime();
+            finishCapture(cap);
+            long t2 = System.nanoTime();
+
+            try {
+                s.beginSave();
+
+                // A full save also drops shards no longer backed by a town (e.g. left over from before an import)
+                Set<UUID> doomed = full ? s.list() : new HashSet<>(cap.removed);
+                if (full) doomed.removeAll(stored);
+                doomed.removeAll(cap.rows.keySet());
+                for (UUID townId : doomed) s.delete(townId);
+
+                long bytes = 0L;
+                for (Map.Entry<UUID, RowSnapshot> e : cap.rows.entrySet()) {
+                    s.write(e.getKey(), cap.segment, e.getValue());
+                    bytes += s.size(e.getKey());
+                }
+                s.writeManifest(cap.manifest);
+                s.endSave();
+
+                // An import published since the capture replaced every row: what was just written
+                // is already stale and the next save must still be a full one
+                long g = gate.readLock();
+                try {
+                    if (cap.publishCount == publishCount) {
+                        // Only towns still live become evictable; one cleared meanwhile must not come back
+                        for (UUID townId : cap.rows.keySet()) {
+                            towns.computeIfPresent(townId, (k, v) -> {
+                                stored.add(k);
+                                return v;
+                            });
+                        }
+                        forceFull = false;
+                        manifestStale = false;
+                    }
+                } finally {
+                    gate.unlockRead(g);
+                }
+                if (j != null) j.pruneBelow(cap.segment);
+                long t3 = System.nanoTime();
+
+                int evicted = evict();
+                SaveStats stats = new SaveStats(cap.version, full, cap.rows.size(), doomed.size(), bytes,
+                        cap.gateWaitNanos, cap.captureNanos, t2 - t1, t3 - t2, cap.copiedByWriters.get(),
+                        towns.size(), evicted);
+                lastSave = stats;
+                plugin.getLogger().info("[MedievalMarkets] Saved market ledger: " + stats.towns() + " towns"
+                        + (stats.removed() > 0 ? ", " + stats.removed() + " removed" : "") + ", " + bytes + " bytes"
+                        + " (capture " + micros(stats.captureNanos()) + "µs, copy " + millis(stats.copyNanos())
+                        + "ms, write " + millis(stats.writeNanos()) + "ms); resident " + stats.resident()
+                        + (evicted > 0 ? ", evicted " + evicted : ""));
+            } catch (IOException ex) {
+                // Nothing was lost: the journal segments stay until a save succeeds
+                requeue(cap);
+                plugin.getLogger().severe("[MedievalMarkets] Failed saving market ledger: " + ex.getMessage());
+            }
         }
-        if (!map.isEmpty()) target.put(townId, map);
     }
 
-    public synchronized void saveToFile(Plugin plugin, File file) {
-        if (plugin == null || file == null) return;
+    // A failed save gives its towns back to the next one
+    private void requeue(PendingCapture cap) {
+        for (UUID townId : cap.rows.keySet()) {
+            TownRow row = towns.get(townId);
+            if (row == null) continue;
+            long stamp = row.lock.writeLock();
+            try {
+                if (!row.retired && !row.dirtyListed) {
+                    row.dirtyListed = true;
+                    dirtyTowns.add(townId);
+                }
+            } finally {
+                row.lock.unlockWrite(stamp);
+            }
+        }
+        removedTowns.addAll(cap.removed);
+        if (cap.full) forceFull = true;
+        manifestStale = true;
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1_000L;
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1_000_000.0);
+    }
+
+    /**
+     * A save in flight: which rows belong to it and the copies taken so far. A row is copied at
+     * most once per capture version, either by the saver or by the first writer to touch it.
+     */
+    private static final class PendingCapture {
+        final long version;
+        final long segment;
+        final boolean full;
+        final List<UUID> townIds;
+        final List<UUID> removed;
+        final LedgerShardStore.Manifest manifest;
+        final long publishCount;
+        long gateWaitNanos, captureNanos;
+
+        final Map<UUID, RowSnapshot> rows = new ConcurrentHashMap<>();
+        final AtomicInteger copiedByWriters = new AtomicInteger();
+
+        PendingCapture(long version, long segment, boolean full, List<UUID> townIds, List<UUID> removed,
+                       LedgerShardStore.Manifest manifest, long publishCount) {
+            this.version = version;
+            this.segment = segment;
+            this.full = full;
+            this.townIds = townIds;
+            this.removed = removed;
+            this.manifest = manifest;
+            this.publishCount = publishCount;
+        }
+
+        // Caller holds the row write lock
+        boolean take(UUID townId, TownRow row) {
+            if (row.capturedVersion == version) return false;
+            row.capturedVersion = version;
+            if (!full && !row.dirtyListed) return false; // clean at capture time: its shard is current
+            rows.put(townId, row.copyLocked());
+            row.dirtyListed = false;
+            return true;
+        }
+    }
+
+    /**
+     * Holds writers out just long enough to rotate the journal, bump the capture version, note
+     * which towns the save covers (every resident town, or only the dirty ones) and copy the
+     * global totals. No rows are copied here. Returns null when nothing changed.
+     */
+    private PendingCapture capture(LedgerJournal j, boolean full) {
+        long t0 = System.nanoTime();
+        long g = gate.writeLock();
+        long t1 = System.nanoTime();
+        PendingCapture cap = null;
+        try {
+            if (!full && !manifestStale && dirtyTowns.isEmpty() && removedTowns.isEmpty()) return null;
+
+            long segment = (j == null) ? 0L : j.rotate();
+            List<UUID> townIds = new ArrayList<>(full ? towns.keySet() : dirtyTowns);
+            List<UUID> removed = new ArrayList<>(removedTowns);
+            dirtyTowns.clear();
+            removedTowns.clear();
+
+            cap = new PendingCapture(++captureVersion, segment, full, townIds, removed, manifest(segment), publishCount);
+            pending = cap;
+            return cap;
+        } finally {
+            gate.unlockWrite(g);
+            if (cap != null) {
+                cap.gateWaitNanos = t1 - t0;
+                cap.captureNanos = System.nanoTime() - t1;
+            }
+        }
+    }
+
+    // Copies every row of the capture that no writer has preserved yet, one row lock at a time
+    private void finishCapture(PendingCapture cap) {
+        try {
+            for (UUID townId : cap.townIds) {
+                TownRow row = towns.get(townId);
+                if (row == null) continue; // cleared after capture; clearTown preserved it first
+
+                long stamp = row.lock.writeLock();
+                try {
+                    cap.take(townId, row);
+                } finally {
+                    row.lock.unlockWrite(stamp);
+                }
+            }
+        } finally {
+            pending = null;
+        }
+    }
+
+    // Writer side of copy-on-write: runs once the row write lock is held, before any mutation
+    private void preserveForCapture(UUID townId, TownRow row) {
+        PendingCapture cap = pending;
+        if (cap != null && cap.take(townId, row)) cap.copiedByWriters.incrementAndGet();
+    }
+
+    /**
+     * Swaps in a complete set of rows and forgets every shard (the next save rewrites storage to
+     * match). Runs under the exclusive gate, so no writer is mid-update; old rows are retired so
+     * anyone holding a stale reference retries on the new ones.
+     * Cells without a timestamp (YAML, pre-decay snapshots) start decaying from now.
+     */
+    private void publish(Map<UUID, TownRow> loaded) {
+        int now = CounterDecay.now();
+        long g = gate.writeLock();
+        try {
+            for (TownRow old : towns.values()) old.retired = true;
+            towns.clear();
+            stored.clear();
+            totals.reset();
+            for (TownRow row : loaded.values()) {
+                row.capturedVersion = captureVersion;
+                row.lastAccess = now;
+                row.stampUntouched(now);
+                row.dirtyListed = true;
+                addToTotals(row);
+            }
+            towns.putAll(loaded);
+            dirtyTowns.clear();
+            dirtyTowns.addAll(loaded.keySet());
+            removedTowns.clear();
+            forceFull = true;
+            publishCount++;
+            listener.allChanged();
+        } finally {
+            gate.unlockWrite(g);
+        }
+    }
+
+    private void warn(String message) {
+        Logger l = log;
+        if (l != null) l.warning("[MedievalMarkets] " + message);
+    }
+
+    /* =========================
+       YAML import / export (admin)
+       ========================= */
+
+    /**
+     * Writes the ledger in the human-readable YAML layout ({@code towns.<uuid>.supply.<id>: n}).
+     * This is an admin export only; it does not compact the journal. Supply/demand are written as
+     * currently decayed, and start decaying afresh from the moment they are imported.
+     * Evicted towns are read from their shards without being made resident.
+     */
+    public boolean exportYaml(Plugin plugin, File file) {
+        if (plugin == null || file == null) return false;
+
+        CounterDecay dc = decay;
+        int now = CounterDecay.now();
 
         YamlConfiguration yml = new YamlConfiguration();
         yml.createSection("towns");
 
-        for (UUID townId : unionTownIds()) {
+        for (UUID townId : knownTownIds()) {
+            RowSnapshot row = peekTown(townId);
+            if (row == null) continue;
             String base = "towns." + townId;
 
-            writeMap(yml, base + ".supply", supply.get(townId), true);
-            writeMap(yml, base + ".demand", demand.get(townId), true);
-            writeMap(yml, base + ".stock",  stock.get(townId), false);
+            writeCells(yml, base + ".supply", row.ordinals(), decayed(row.supply(), row.touched(), dc, now));
+            writeCells(yml, base + ".demand", row.ordinals(), decayed(row.demand(), row.touched(), dc, now));
+            writeCells(yml, base + ".stock",  row.ordinals(), row.stock());
+            row.forEachSeeded(ord -> {
+                String id = index.id(ord);
+                if (id == null) return;
+                yml.set(base + ".supply." + id, BASELINE);
+                yml.set(base + ".demand." + id, BASELINE);
+            });
         }
 
         try {
             File parent = file.getParentFile();
             if (parent != null && !parent.exists()) parent.mkdirs();
             yml.save(file);
-            plugin.getLogger().info("[MedievalMarkets] Saved market ledger: " + file.getName());
+            plugin.getLogger().info("[MedievalMarkets] Exported market ledger: " + file.getName());
+            return true;
         } catch (IOException ex) {
-            plugin.getLogger().severe("[MedievalMarkets] Failed saving market ledger: " + ex.getMessage());
+            plugin.getLogger().severe("[MedievalMarkets] Failed exporting market ledger: " + ex.getMessage());
+            return false;
         }
     }
 
-    private void writeMap(YamlConfiguration yml, String path, Map<String, Integer> map, boolean clampCounts) {
-        if (map == null || map.isEmpty()) return;
-        for (Map.Entry<String, Integer> e : map.entrySet()) {
-            int v = e.getValue() == null ? (clampCounts ? BASELINE : 0) : e.getValue();
-            v = clampCounts ? clampCount(v) : clampStock(v);
-            yml.set(path + "." + norm(e.getKey()), v);
+    /** A YAML export read into rows that are not live yet; see {@link #importYaml(Plugin, YamlImport)}. */
+    public static final class YamlImport {
+        private final Map<UUID, TownRow> rows;
+        private boolean published;
+
+        private YamlImport(Map<UUID, TownRow> rows) {
+            this.rows = rows;
+        }
+
+        public int towns() {
+            return rows.size();
         }
     }
 
-    private void writeEmptyLedger(Plugin plugin, File file) {
-        YamlConfiguration yml = new YamlConfiguration();
-        yml.set("towns", new HashMap<>());
-        try {
-            File parent = file.getParentFile();
-            if (parent != null && !parent.exists()) parent.mkdirs();
-            yml.save(file);
-            plugin.getLogger().info("[MedievalMarkets] Initialized empty market ledger: " + file.getName());
-        } catch (IOException ex) {
-            plugin.getLogger().severe("[MedievalMarkets] Failed initializing ledger: " + ex.getMessage());
+    /** Reads a YAML export for {@link #importYaml(Plugin, YamlImport)}; null if the file is missing. Safe off the main thread. */
+    public YamlImport readImport(Plugin plugin, File yamlFile) {
+        if (plugin == null || yamlFile == null || !yamlFile.exists()) return null;
+        return new YamlImport(readYaml(plugin, yamlFile));
+    }
+
+    /**
+     * Replaces the whole ledger with a parsed import; only the swap itself holds the gate. The
+     * import is not journaled, so follow it with {@link #saveToFile} (off the main thread), which
+     * rewrites every shard. Returns the number of towns imported.
+     */
+    public int importYaml(Plugin plugin, YamlImport parsed) {
+        synchronized (parsed) {
+            if (parsed.published) throw new IllegalStateException("import already published");
+            parsed.published = true;
+        }
+        publish(parsed.rows);
+        plugin.getLogger().info("[MedievalMarkets] Imported market ledger: " + parsed.towns() + " towns.");
+        return parsed.towns();
+    }
+
+    private Map<UUID, TownRow> readYaml(Plugin plugin, File file) {
+        Map<UUID, TownRow> loaded = new HashMap<>();
+
+        YamlConfiguration yml = YamlConfiguration.loadConfiguration(file);
+        ConfigurationSection townsSec = yml.getConfigurationSection("towns");
+        if (townsSec == null) return loaded;
+
+        for (String townKey : townsSec.getKeys(false)) {
+            UUID townId;
+            try {
+                townId = UUID.fromString(townKey);
+            } catch (Exception ex) {
+                plugin.getLogger().warning("[MedievalMarkets] Skipping bad town UUID in ledger: " + townKey);
+                continue;
+            }
+
+            ConfigurationSection townSec = townsSec.getConfigurationSection(townKey);
+            if (townSec == null) continue;
+
+            TownRow row = loaded.computeIfAbsent(townId, k -> new TownRow());
+            readCellsInto(townSec.getConfigurationSection("supply"), row, Cell.SUPPLY);
+            readCellsInto(townSec.getConfigurationSection("demand"), row, Cell.DEMAND);
+            readCellsInto(townSec.getConfigurationSection("stock"),  row, Cell.STOCK);
+            row.compactAll();
+        }
+        return loaded;
+    }
+
+    // Row is not yet published, so no locking needed
+    private void readCellsInto(ConfigurationSection sec, TownRow row, Cell cell) {
+        if (sec == null) return;
+
+        for (String cid : sec.getKeys(false)) {
+            int ord = index.intern(cid);
+            if (ord < 0) continue;
+
+            int v = sec.getInt(cid, cell == Cell.STOCK ? 0 : BASELINE);
+            v = (cell == Cell.STOCK) ? clampStock(v) : clampCount(v);
+
+            cell.of(row)[row.slot(ord)] = v;
+        }
+    }
+
+    private static int[] decayed(int[] cells, int[] touched, CounterDecay dc, int now) {
+        if (!dc.enabled()) return cells;
+        int[] out = new int[cells.length];
+        for (int i = 0; i < cells.length; i++) {
+            out[i] = dc.apply(cells[i], BASELINE, touched[i], now);
+        }
+        return out;
+    }
+
+    private void writeCells(YamlConfiguration yml, String path, int[] ordinals, int[] cells) {
+        for (int i = 0; i < cells.length; i++) {
+            if (cells[i] == ABSENT) continue;
+            String id = index.id(ordinals[i]);
+            if (id == null) continue;
+            yml.set(path + "." + id, cells[i]);
+        }
+    }
+
+    /* =========================
+       Rows
+       ========================= */
+
+    /**
+     * Row for this town with the capture gate (shared) and its write lock held. Loaded from its
+     * shard or created on first write; retries if it raced a clearTown() or an eviction.
+     * Release with {@link #unlock}.
+     */
+    private TownRow lockRow(UUID townId) {
+        long g = gate.readLock();
+        while (true) {
+            TownRow row = towns.computeIfAbsent(townId, this::loadOrCreate);
+            row.lastAccess = CounterDecay.now();
+            long stamp = row.lock.writeLock();
+            if (!row.retired) {
+                row.writeStamp = stamp;
+                row.gateStamp = g;
+                preserveForCapture(townId, row);
+                return row;
+            }
+            row.lock.unlockWrite(stamp);
+        }
+    }
+
+    /** Like {@link #lockRow} but never creates a row; returns null (nothing held) if the town has none. */
+    private TownRow lockExistingRow(UUID townId) {
+        long g = gate.readLock();
+        while (true) {
+            TownRow row = resident(townId);
+            if (row == null) {
+                gate.unlockRead(g);
+                return null;
+            }
+            long stamp = row.lock.writeLock();
+            if (!row.retired) {
+                row.writeStamp = stamp;
+                row.gateStamp = g;
+                preserveForCapture(townId, row);
+                return row;
+            }
+            row.lock.unlockWrite(stamp);
+        }
+    }
+
+    // A row created after a capture is not part of it (caller holds the gate shared, so the version is stable)
+    private TownRow newRow() {
+        TownRow row = new TownRow();
+        row.capturedVersion = captureVersion;
+        return row;
+    }
+
+    private void unlock(TownRow row) {
+        long g = row.gateStamp;
+        row.lock.unlockWrite(row.writeStamp);
+        gate.unlockRead(g);
+    }
+
+    /**
+     * Every cell mutation funnels through here: drops the cell if it is back at the baseline,
+     * marks the town dirty and journals the change. Caller holds the row write lock.
+     */
+    private void mutated(TownRow row, Op op, UUID townId, int ordinal, int qty, int at) {
+        row.compact(ordinal);
+        if (!row.dirtyListed) {
+            row.dirtyListed = true;
+            dirtyTowns.add(townId);
+        }
+        journal(op, townId, ordinal, qty, at);
+        if (op != Op.ADD_STOCK && op != Op.REMOVE_STOCK) listener.supplyDemandChanged(townId, ordinal);
+        else listener.stockChanged(townId, ordinal);
+    }
+
+    // Caller holds the row write lock, which keeps per-town journal order equal to apply order
+    private void journal(Op op, UUID townId, int ordinal, int qty, int at) {
+        LedgerJournal j = this.journal;
+        if (j != null) j.append(op, townId, ordinal, qty, at);
+    }
+
+    /**
+     * Materializes decay for the cell in {@code slot} up to {@code at} and moves its timestamp
+     * there, so the following write adds to the current value. Caller holds the row write lock.
+     */
+    private void touch(TownRow row, int slot, int at) {
+        int last = row.touched[slot];
+        if (at <= last) return;
+
+        int ordinal = row.ords[slot];
+        addExcess(row, slot, -1);
+        CounterDecay dc = decay;
+        int s = row.supply[slot];
+        int d = row.demand[slot];
+        if (s != ABSENT) {
+            int v = dc.apply(s, BASELINE, last, at);
+            row.supply[slot] = v;
+            totals.addSupply(ordinal, (long) v - s, 0);
         }
+        if (d != ABSENT) {
+            int v = dc.apply(d, BASELINE, last, at);
+            row.demand[slot] = v;
+            totals.addDemand(ordinal, (long) v - d, 0);
+        }
+        row.touched[slot] = at;
+        addExcess(row, slot, 1);
+    }
+
+    // Adds (sign=1) or removes (sign=-1) one cell's weighted excess over BASELINE
+    private void addExcess(TownRow row, int slot, int sign) {
+        CounterDecay dc = decay;
+        if (!dc.enabled()) return;
+        int ordinal = row.ords[slot];
+        double w = sign * dc.weight(row.touched[slot], decayOrigin);
+        int s = row.supply[slot];
+        int d = row.demand[slot];
+        if (s != ABSENT) totals.addSupplyExcess(ordinal, (s - BASELINE) * w);
+        if (d != ABSENT) totals.addDemandExcess(ordinal, (d - BASELINE) * w);
     }
 
-    private int clampCount(int v) {
+    // Cell setters keep the global totals in step; caller holds the row write lock
+    private void setSupply(TownRow row, int slot, int v) {
+        int ordinal = row.ords[slot];
+        int old = row.supply[slot];
+        row.supply[slot] = v;
+        totals.addSupply(ordinal, (long) v - old, (old == ABSENT) ? 1 : 0);
+        CounterDecay dc = decay;
+        if (dc.enabled()) {
+            double w = dc.weight(row.touched[slot], decayOrigin);
+            totals.addSupplyExcess(ordinal, (excess(v) - excess(old)) * w);
+        }
+    }
+
+    private void setDemand(TownRow row, int slot, int v) {
+        int ordinal = row.ords[slot];
+        int old = row.demand[slot];
+        row.demand[slot] = v;
+        totals.addDemand(ordinal, (long) v - old, (old == ABSENT) ? 1 : 0);
+        CounterDecay dc = decay;
+        if (dc.enabled()) {
+            double w = dc.weight(row.touched[slot], decayOrigin);
+            totals.addDemandExcess(ordinal, (excess(v) - excess(old)) * w);
+        }
+    }
+
+    private static double excess(int v) {
+        return (v == ABSENT) ? 0.0 : v - BASELINE;
+    }
+
+    private static int orBaseline(int v) {
+        return (v == ABSENT) ? BASELINE : v;
+    }
+
+    private int clampCount(long v) {
         if (v < MIN_COUNT) return MIN_COUNT;
         if (v > MAX_COUNT) return MAX_COUNT;
-        return v;
+        return (int) v;
     }
 
-    private int clampStock(int v) {
+    private int clampStock(long v) {
         if (v < MIN_STOCK) return MIN_STOCK;
         if (v > MAX_STOCK) return MAX_STOCK;
-        return v;
+        return (int) v;
     }
 
-    private Set<UUID> unionTownIds() {
-        Set<UUID> ids = new HashSet<>(supply.keySet());
-        ids.addAll(demand.keySet());
-        ids.addAll(stock.keySet());
-        return ids;
+    private enum Cell {
+        SUPPLY, DEMAND, STOCK;
+
+        int[] of(TownRow row) {
+            return switch (this) {
+                case SUPPLY -> row.supply;
+                case DEMAND -> row.demand;
+                case STOCK -> row.stock;
+            };
+        }
+    }
+
+    /**
+     * One town's counters, stored sparsely: {@code ords} lists the commodity ordinals that have a
+     * cell, in ascending order, and the value arrays are parallel to it (slot i holds ords[i]).
+     * Supply/demand use {@link #ABSENT} for "never recorded" (reads fall back to BASELINE);
+     * stock uses 0 which is also its natural default.
+     *
+     * A commodity whose supply and demand both sit at BASELINE with no stock has no cell at all,
+     * only a bit in {@code seeded}; it still counts toward the global totals like any other
+     * recorded cell. Cells that drop back to that state, or to nothing, are removed again.
+     *
+     * Arrays are only mutated or replaced under the write lock. Readers copy the array
+     * references into locals under an optimistic stamp, bounds-check every index and validate
+     * before trusting the result.
+     */
+    private static final class TownRow {
+        private static final int[] NO_CELLS = new int[0];
+        private static final long[] NO_BITS = new long[0];
+
+        final StampedLock lock = new StampedLock();
+        long writeStamp;      // valid only while the write lock is held
+        long gateStamp;       // capture-gate read stamp of the current writer
+        boolean retired;      // set (under write lock) once removed from the ledger
+
+        boolean dirtyListed;          // changed since the last save (and listed in dirtyTowns)
+        long capturedVersion;         // last capture version this row was copied for
+        long persistedSegment;        // journal segment its shard was tagged with when loaded (0 = none)
+        volatile int lastAccess;      // ledger clock second of the last read or write (eviction)
+
+        int size;                     // live cells
+        int[] ords = NO_CELLS;        // sorted commodity ordinals of the live cells
+        int[] supply = NO_CELLS;
+        int[] demand = NO_CELLS;
+        int[] stock = NO_CELLS;
+        int[] touched = NO_CELLS;     // ledger clock second supply/demand were last materialized (0 = never)
+        long[] seeded = NO_BITS;      // ordinals at BASELINE/BASELINE with no cell
+
+        // Unpublished row from decoded snapshot cells; clamps whatever the file held
+        static TownRow of(RowSnapshot snap) {
+            TownRow row = new TownRow();
+            snap.forEachSeeded(ord -> row.setSeeded(ord, true));
+            for (int i = 0; i < snap.ordinals().length; i++) {
+                int slot = row.slot(snap.ordinals()[i]);
+                int s = snap.supply()[i], d = snap.demand()[i];
+                row.supply[slot] = (s == ABSENT) ? ABSENT : Math.max(MIN_COUNT, Math.min(MAX_COUNT, s));
+                row.demand[slot] = (d == ABSENT) ? ABSENT : Math.max(MIN_COUNT, Math.min(MAX_COUNT, d));
+                row.stock[slot] = Math.max(MIN_STOCK, Math.min(MAX_STOCK, snap.stock()[i]));
+                row.touched[slot] = snap.touched()[i];
+            }
+            row.compactAll(); // older files stored seeded cells explicitly
+            return row;
+        }
+
+        /** Slot of {@code ordinal}, or {@code -(insertion point) - 1} if it has no cell. */
+        int find(int ordinal) {
+            return find(ords, size, ordinal);
+        }
+
+        // Also used on possibly torn reads, so the search never leaves the array
+        private static int find(int[] ords, int size, int ordinal) {
+            int lo = 0, hi = Math.min(size, ords.length) - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int v = ords[mid];
+                if (v < ordinal) lo = mid + 1;
+                else if (v > ordinal) hi = mid - 1;
+                else return mid;
+            }
+            return -(lo + 1);
+        }
+
+        /**
+         * Slot of {@code ordinal}, inserting a cell if needed; a seeded commodity starts at
+         * BASELINE/BASELINE. Caller holds the write lock.
+         */
+        int slot(int ordinal) {
+            int i = find(ordinal);
+            if (i >= 0) return i;
+
+            i = -i - 1;
+            if (size == ords.length) grow();
+            int tail = size - i;
+            System.arraycopy(ords, i, ords, i + 1, tail);
+            System.arraycopy(supply, i, supply, i + 1, tail);
+            System.arraycopy(demand, i, demand, i + 1, tail);
+            System.arraycopy(stock, i, stock, i + 1, tail);
+            System.arraycopy(touched, i, touched, i + 1, tail);
+
+            boolean wasSeeded = isSeeded(ordinal);
+            ords[i] = ordinal;
+            supply[i] = wasSeeded ? BASELINE : ABSENT;
+            demand[i] = wasSeeded ? BASELINE : ABSENT;
+            stock[i] = 0;
+            touched[i] = 0;
+            size++;
+            if (wasSeeded) setSeeded(ordinal, false);
+            return i;
+        }
+
+        // New arrays are filled before being published, one reference at a time
+        private void grow() {
+            int cap = Math.max(4, ords.length + (ords.length >> 1));
+            supply = Arrays.copyOf(supply, cap);
+            demand = Arrays.copyOf(demand, cap);
+            stock = Arrays.copyOf(stock, cap);
+            touched = Arrays.copyOf(touched, cap);
+            ords = Arrays.copyOf(ords, cap);
+        }
+
+        /** Drops the cell for {@code ordinal} if it carries nothing beyond the baseline. Caller holds the write lock. */
+        void compact(int ordinal) {
+            int i = find(ordinal);
+            if (i < 0 || stock[i] != 0) return;
+
+            int s = supply[i], d = demand[i];
+            boolean baseline = s == BASELINE && d == BASELINE;
+            if (!baseline && (s != ABSENT || d != ABSENT)) return;
+
+            int tail = size - i - 1;
+            System.arraycopy(ords, i + 1, ords, i, tail);
+            System.arraycopy(supply, i + 1, supply, i, tail);
+            System.arraycopy(demand, i + 1, demand, i, tail);
+            System.arraycopy(stock, i + 1, stock, i, tail);
+            System.arraycopy(touched, i + 1, touched, i, tail);
+            size--;
+            if (baseline) setSeeded(ordinal, true);
+        }
+
+        // Unpublished rows only (load/import)
+        void compactAll() {
+            for (int i = size - 1; i >= 0; i--) compact(ords[i]);
+        }
+
+        boolean isSeeded(int ordinal) {
+            int word = ordinal >>> 6;
+            return word < seeded.length && (seeded[word] & (1L << ordinal)) != 0;
+        }
+
+        // Caller holds the write lock
+        void setSeeded(int ordinal, boolean on) {
+            int word = ordinal >>> 6;
+            if (word >= seeded.length) {
+                if (!on) return;
+                seeded = Arrays.copyOf(seeded, word + 1);
+            }
+            if (on) seeded[word] |= 1L << ordinal;
+            else seeded[word] &= ~(1L << ordinal);
+        }
+
+        void forEachSeeded(IntConsumer action) {
+            forEachBit(seeded, action);
+        }
+
+        int seededCount() {
+            int n = 0;
+            for (long w : seeded) n += Long.bitCount(w);
+            return n;
+        }
+
+        // Unpublished or gate held exclusively
+        void stampUntouched(int now) {
+            for (int i = 0; i < size; i++) {
+                if (touched[i] == 0 && (supply[i] != ABSENT || demand[i] != ABSENT)) touched[i] = now;
+            }
+        }
+
+        /** Raw cell (ABSENT if the commodity has no cell). Lock-free unless a writer races us. */
+        int read(Cell cell, int ordinal) {
+            long stamp = lock.tryOptimisticRead();
+            int v = cellOrAbsent(cell.of(this), ords, size, ordinal);
+            if (lock.validate(stamp)) return v;
+
+            stamp = lock.readLock();
+            try {
+                return cellOrAbsent(cell.of(this), ords, size, ordinal);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Supply/demand pair from one row version decayed to {@code now}, packed like {@link #supplyDemand}.
+         * Seeded commodities read as ABSENT, which callers treat as BASELINE anyway.
+         */
+        long readPair(int ordinal, CounterDecay dc, int now) {
+            long stamp = lock.tryOptimisticRead();
+            int[] o = ords, sup = supply, dem = demand, tch = touched;
+            int i = find(o, size, ordinal);
+            int s = (i >= 0 && i < sup.length) ? sup[i] : ABSENT;
+            int d = (i >= 0 && i < dem.length) ? dem[i] : ABSENT;
+            int t = (i >= 0 && i < tch.length) ? tch[i] : 0;
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    i = find(ordinal);
+                    s = (i >= 0) ? supply[i] : ABSENT;
+                    d = (i >= 0) ? demand[i] : ABSENT;
+                    t = (i >= 0) ? touched[i] : 0;
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return pack(dc.apply(s, BASELINE, t, now), dc.apply(d, BASELINE, t, now));
+        }
+
+        // Scatters decayed supply/demand into dense arrays (left alone where absent); retries under the read lock if raced
+        void pairsInto(int[] outSupply, int[] outDemand, CounterDecay dc, int now) {
+            long stamp = lock.tryOptimisticRead();
+            int[] o = ords, sup = supply, dem = demand, tch = touched;
+            int n = Math.min(size, Math.min(o.length, Math.min(sup.length, Math.min(dem.length, tch.length))));
+            int[] pending = new int[3 * n];
+            for (int i = 0; i < n; i++) {
+                pending[3 * i] = sup[i];
+                pending[3 * i + 1] = dem[i];
+                pending[3 * i + 2] = tch[i];
+            }
+            int[] at = Arrays.copyOf(o, n);
+
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    n = size;
+                    at = Arrays.copyOf(ords, n);
+                    pending = new int[3 * n];
+                    for (int i = 0; i < n; i++) {
+                        pending[3 * i] = supply[i];
+                        pending[3 * i + 1] = demand[i];
+                        pending[3 * i + 2] = touched[i];
+                    }
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+
+            for (int i = 0; i < n; i++) {
+                int ord = at[i];
+                if (ord < 0 || ord >= outSupply.length || ord >= outDemand.length) continue;
+                int s = dc.apply(pending[3 * i], BASELINE, pending[3 * i + 2], now);
+                int d = dc.apply(pending[3 * i + 1], BASELINE, pending[3 * i + 2], now);
+                outSupply[ord] = orBaseline(s);
+                outDemand[ord] = orBaseline(d);
+            }
+        }
+
+        // Scatters stock into a dense array; retries under the read lock if a writer raced us
+        void stockInto(int[] out) {
+            long stamp = lock.tryOptimisticRead();
+            int[] o = ords, k = stock;
+            int n = Math.min(size, Math.min(o.length, k.length));
+            for (int i = 0; i < n; i++) {
+                int ord = o[i];
+                if (ord >= 0 && ord < out.length) out[ord] = k[i];
+            }
+            if (lock.validate(stamp)) return;
+
+            Arrays.fill(out, 0);
+            stamp = lock.readLock();
+            try {
+                for (int i = 0; i < size; i++) {
+                    if (ords[i] < out.length) out[ords[i]] = stock[i];
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /** {@link CounterDecay#stableUntil} of the cell's supply and demand, whichever ends first. */
+        int stableUntil(int ordinal, CounterDecay dc, int now) {
+            long stamp = lock.readLock();
+            try {
+                int i = find(ordinal);
+                if (i < 0) return Integer.MAX_VALUE;
+                return Math.min(dc.stableUntil(supply[i], BASELINE, touched[i], now),
+                        dc.stableUntil(demand[i], BASELINE, touched[i], now));
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        // Caller holds the write lock
+        RowSnapshot copyLocked() {
+            return new RowSnapshot(Arrays.copyOf(ords, size), Arrays.copyOf(supply, size), Arrays.copyOf(demand, size),
+                    Arrays.copyOf(stock, size), Arrays.copyOf(touched, size), seeded.clone());
+        }
+
+        RowSnapshot copy() {
+            long stamp = lock.tryOptimisticRead();
+            RowSnapshot snap = null;
+            try {
+                snap = copyLocked();
+            } catch (RuntimeException torn) {
+                // arrays replaced mid-copy; fall through to the locked copy
+            }
+            if (snap != null && lock.validate(stamp)) return snap;
+
+            stamp = lock.readLock();
+            try {
+                return copyLocked();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /** Rough heap bytes: object, lock, the value arrays at capacity and the seeded bitset. */
+        long footprintBytes() {
+            return ROW_OVERHEAD_BYTES + 5L * arrayBytes(ords.length, 4) + arrayBytes(seeded.length, 8);
+        }
+
+        private static int cellOrAbsent(int[] cells, int[] ords, int size, int ordinal) {
+            int i = find(ords, size, ordinal);
+            return (i >= 0 && i < cells.length) ? cells[i] : ABSENT;
+        }
+    }
+
+    static void forEachBit(long[] bits, IntConsumer action) {
+        for (int word = 0; word < bits.length; word++) {
+            long w = bits[word];
+            while (w != 0) {
+                action.accept((word << 6) + Long.numberOfTrailingZeros(w));
+                w &= w - 1;
+            }
+        }
     }
 
-    private String norm(String id) {
-        return (id == null) ? "" : id.toLowerCase(Locale.ROOT);
+    // Compressed-oops estimates: 16-byte array header, element size times length, 8-byte alignment
+    private static long arrayBytes(int length, int elementBytes) {
+        return (16L + (long) length * elementBytes + 7L) & ~7L;
     }
 }
@@ -1,7 +1,12 @@
 package com.brandon.medievalmarkets.market;
 
 import com.brandon.medievalmarkets.hooks.BabBurgHook;
+import com.brandon.medievalmarkets.market.storage.LedgerJournal;
+import com.brandon.medievalmarkets.market.storage.LedgerShardStore;
+import com.brandon.medievalmarkets.market.storage.PriceHistoryStore;
+import com.brandon.medievalmarkets.market.storage.TreasuryNetJournal;
 import com.brandon.mpcbridge.api.MpcEconomy;
+import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
@@ -11,10 +16,19 @@ import org.bukkit.inventory.PlayerInventory;
 import org.bukkit.plugin.Plugin;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.logging.Level;
 
 import static net.kyori.adventure.text.Component.text;
 import static net.kyori.adventure.text.format.NamedTextColor.RED;
@@ -22,35 +36,157 @@ import static net.kyori.adventure.text.format.NamedTextColor.RED;
 public final class MarketService {
 
     private final Plugin plugin;
-    private final MpcEconomy mpc; // can be null in standalone mode
+    private final EconomyGuard economy; // MPCBridge, or the simulated economy in standalone mode; null if neither
     private final BabBurgHook bab;
 
     private final Map<String, Commodity> commodities = new HashMap<>();
-    private final MarketLedger ledger = new MarketLedger();
-    private final File ledgerFile;
+    private volatile Commodity[] byOrdinal = new Commodity[0]; // registered commodities by ledger ordinal
+    private final CommodityIndex index = new CommodityIndex();
+    private final MarketLedger ledger = new MarketLedger(index);
+    private final File ledgerDir;    // per-town shards + manifest
+    private final File ledgerFile;   // pre-shard single-file snapshot, migrated on load
+    private final File ledgerYaml;   // admin import/export (and pre-binary installs)
+    private LedgerShardStore shards;
+    private LedgerJournal journal; // null when ledger.journal.enabled is false
 
     private PriceEngine prices;
+    private final Map<String, PricingModel> pricingModels = new LinkedHashMap<>(); // configured, by name
+    private PriceHistoryStore history; // null when market.history.enabled is false
+    private volatile Settlement settlement = Settlement.DOUBLE;
 
     private String wildernessDefaultCurrency = "SHEKEL";
 
     private static final double DEFAULT_TREASURY_TARGET = 10_000.0;
+    private static final String READ_ONLY = "The market is read-only: the economy is not responding. Try again shortly.";
+    private static final long DEFAULT_TREASURY_CACHE_MS = 2_000L;
+
+    // Resolved by loadDefaults, not per quote
+    private volatile double treasuryTarget = DEFAULT_TREASURY_TARGET;
+    private final TreasuryCache treasury = new TreasuryCache(DEFAULT_TREASURY_CACHE_MS);
+
+    private TradePipeline trades; // created by init
+    private TreasuryNetting netting; // null when market.treasury-netting.enabled is false (or no MPC)
+    private TradeLegs legs; // created by init; null without an economy
 
     public MarketService(Plugin plugin, MpcEconomy mpc) {
         this.plugin = plugin;
-        this.mpc = mpc;
+        EconomyBackend backend = (mpc != null) ? EconomyBackend.of(mpc) : simulatedEconomy(plugin);
+        this.economy = (backend == null) ? null : new EconomyGuard(backend, plugin.getLogger());
         this.bab = new BabBurgHook(plugin);
-        this.ledgerFile = new File(plugin.getDataFolder(), "ledger.yml");
+        this.ledgerDir = new File(plugin.getDataFolder(), "ledger");
+        this.ledgerFile = new File(plugin.getDataFolder(), "ledger.bin");
+        this.ledgerYaml = new File(plugin.getDataFolder(), "ledger.yml");
     }
 
     // ✅ MUST be public because your main plugin is in a different package
     public void init() {
         loadDefaults();
         loadLedger();
-        this.prices = new PriceEngine(ledger, commodities);
+        this.prices = new PriceEngine(ledger, commodities, plugin.getConfig().getString("market.pricing.batch-kernel", "auto"));
+        prices.register(byOrdinal);
+        plugin.getLogger().info("[MedievalMarkets] Batch pricing kernel: " + prices.batchKernel());
+        plugin.getLogger().info("[MedievalMarkets] Settlement: " + settlement.name());
+        loadRecipes();
+        openHistory();
+        this.trades = new TradePipeline(plugin, Math.max(0, plugin.getConfig().getInt("market.trades.settlement-threads", 2)));
+        plugin.getLogger().info("[MedievalMarkets] Trade settlement: "
+                + (trades.isAsync() ? "async" : "on the main thread")
+                + ", economy: " + ((economy == null) ? "none" : economy.status().backend()));
+        openNetting();
+        if (economy != null) {
+            this.legs = new TradeLegs(economy, (netting != null)
+                    ? TradeLegs.netted(netting, (t, cur) -> treasury.balance(t, cur, this::mpcBalanceSafe))
+                    : TradeLegs.direct(economy, treasury), treasury, plugin.getLogger());
+        }
+    }
+
+    // standalone.simulated-economy: without MPCBridge, trade against in-memory balances instead of refusing trades
+    private static EconomyBackend simulatedEconomy(Plugin plugin) {
+        ConfigurationSection sec = plugin.getConfig().getConfigurationSection("standalone.simulated-economy");
+        if (sec == null || !sec.getBoolean("enabled", false)) return null;
+        plugin.getLogger().warning("[MedievalMarkets] MPCBridge not found: trading against a simulated in-memory economy "
+                + "(balances reset on restart).");
+        return new SimulatedEconomy(SimulatedEconomy.Profile.of(sec));
+    }
+
+    private void openNetting() {
+        FileConfiguration cfg = plugin.getConfig();
+        if (economy == null || netting != null || !cfg.getBoolean("market.treasury-netting.enabled", true)) return;
+
+        // Simulated balances do not survive a restart, so their nets must never reach a real treasury
+        boolean simulated = economy.status().backend().equals("simulated");
+        TreasuryNetting n = new TreasuryNetting(economy, treasury, new TreasuryNetJournal(
+                new File(plugin.getDataFolder(), simulated ? "treasury-nets.simulated.journal" : "treasury-nets.journal"),
+                plugin.getLogger(),
+                cfg.getBoolean("market.treasury-netting.fsync", true)
+        ), plugin.getLogger());
+        try {
+            n.open();
+            netting = n;
+        } catch (IOException ex) {
+            plugin.getLogger().warning("[MedievalMarkets] Treasury netting disabled: " + ex.getMessage());
+        }
+    }
+
+    // market.recipes: processed goods priced from their inputs (see RecipeGraph)
+    private void loadRecipes() {
+        ConfigurationSection sec = plugin.getConfig().getConfigurationSection("market.recipes");
+        if (sec == null || !sec.getBoolean("enabled", false)) return;
+        ConfigurationSection goods = sec.getConfigurationSection("goods");
+        if (goods == null) return;
+
+        List<RecipeGraph.Spec> specs = new ArrayList<>();
+        for (String key : goods.getKeys(false)) {
+            ConfigurationSection g = goods.getConfigurationSection(key);
+            ConfigurationSection in = (g == null) ? null : g.getConfigurationSection("inputs");
+            if (in == null) {
+                plugin.getLogger().warning("[MedievalMarkets] Recipe '" + key + "' has no inputs");
+                continue;
+            }
+
+            Map<String, Double> inputs = new HashMap<>();
+            for (String id : in.getKeys(false)) inputs.put(id.toLowerCase(Locale.ROOT), in.getDouble(id));
+
+            RecipeGraph.Mode mode;
+            try {
+                mode = RecipeGraph.Mode.valueOf(g.getString("mode", "floor").toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+                plugin.getLogger().warning("[MedievalMarkets] Recipe '" + key + "': mode must be floor or anchor");
+                continue;
+            }
+            specs.add(new RecipeGraph.Spec(key.toLowerCase(Locale.ROOT), inputs,
+                    g.getDouble("yield", 1.0), g.getDouble("markup", 1.0), mode));
+        }
+
+        List<String> problems = new ArrayList<>();
+        RecipeGraph graph = RecipeGraph.build(specs, commodities, index.size(), problems);
+        for (String problem : problems) plugin.getLogger().warning("[MedievalMarkets] Recipe skipped: " + problem);
+        prices.recipes(graph);
+        plugin.getLogger().info("[MedievalMarkets] Recipe-derived commodities: " + graph.recipes());
+    }
+
+    private void openHistory() {
+        FileConfiguration cfg = plugin.getConfig();
+        if (history != null || !cfg.getBoolean("market.history.enabled", true)) return;
+
+        PriceHistoryStore h = new PriceHistoryStore(
+                new File(plugin.getDataFolder(), "history.bin"),
+                plugin.getLogger(),
+                Math.max(1, cfg.getInt("market.history.sample-seconds", 60)),
+                Math.max(1, cfg.getInt("market.history.coarse-minutes", 60)) * 60L,
+                Math.max(1, cfg.getInt("market.history.max-series", 20_000))
+        );
+        try {
+            h.open();
+            history = h;
+        } catch (IOException ex) {
+            plugin.getLogger().warning("[MedievalMarkets] Price history disabled: " + ex.getMessage());
+        }
     }
 
     public void loadDefaults() {
         commodities.clear();
+        byOrdinal = new Commodity[0];
 
         FileConfiguration cfg = plugin.getConfig();
         ConfigurationSection sec = cfg.getConfigurationSection("commodities");
@@ -62,6 +198,25 @@ public final class MarketService {
         int loaded = 0;
         int skipped = 0;
 
+        settlement = Settlement.of(cfg.getBoolean("market.pricing.fixed-point", false));
+        loadTreasury(cfg);
+        if (economy != null) {
+            economy.configure(
+                    cfg.getLong("market.economy.timeout-ms", 2_000L),
+                    cfg.getLong("market.economy.main-thread-timeout-ms", 100L),
+                    cfg.getInt("market.economy.breaker.failures", 5),
+                    cfg.getInt("market.economy.breaker.open-seconds", 30),
+                    cfg.getInt("market.economy.call-threads", 8));
+        }
+
+        // One pricing curve per distinct elasticity, shared by every commodity using it
+        boolean fastPow = cfg.getBoolean("market.pricing.fast-pow", true);
+        boolean validate = cfg.getBoolean("market.pricing.validate-fast-pow", false);
+        Map<Double, PowCurve> curves = new HashMap<>();
+
+        loadPricingModels(cfg);
+        PricingModel defaultModel = pricingModel(cfg.getString("market.pricing.model", "power-law"), "market.pricing.model");
+
         for (String key : sec.getKeys(false)) {
             ConfigurationSection csec = sec.getConfigurationSection(key);
             if (csec == null) {
@@ -93,7 +248,10 @@ public final class MarketService {
                 continue;
             }
 
-            Commodity c = new Commodity(key.toLowerCase(Locale.ROOT), mat, base, elasticity);
+            PowCurve curve = curves.computeIfAbsent(elasticity, e -> fastPow ? checkedCurve(e, validate) : PowCurve.exact(e));
+            Commodity c = new Commodity(key.toLowerCase(Locale.ROOT), mat, base, elasticity).withCurve(curve);
+            PricingModel model = csec.contains("model") ? pricingModel(csec.getString("model"), key) : defaultModel;
+            if (model != PricingModel.POWER_LAW) c = c.withModel(model);
 
             // ✅ YOU WERE MISSING THIS LINE (this is why loaded stayed 0)
             register(c);
@@ -103,16 +261,254 @@ public final class MarketService {
         plugin.getLogger().info("[MedievalMarkets] Loaded commodities: " + loaded + " (skipped: " + skipped + ")");
     }
 
+    // market.treasury-target and market.treasury-cache-ms; a reload also drops cached balances
+    private void loadTreasury(FileConfiguration cfg) {
+        double target = cfg.getDouble("market.treasury-target", DEFAULT_TREASURY_TARGET);
+        treasuryTarget = (Double.isFinite(target) && target >= 1.0) ? target : DEFAULT_TREASURY_TARGET;
+        treasury.ttlMillis(cfg.getLong("market.treasury-cache-ms", DEFAULT_TREASURY_CACHE_MS));
+        treasury.clear();
+    }
+
+    // market.pricing.models: the built-in models with their parameters, by name
+    private void loadPricingModels(FileConfiguration cfg) {
+        pricingModels.clear();
+        pricingModels.put("power-law", PricingModel.POWER_LAW);
+        pricingModels.put("logistic", PricingModel.logistic(
+                cfg.getDouble("market.pricing.models.logistic.max-multiplier", 4.0)));
+        pricingModels.put("stock-weighted", PricingModel.stockWeighted(
+                cfg.getDouble("market.pricing.models.stock-weighted.reference", MarketLedger.BASELINE),
+                cfg.getDouble("market.pricing.models.stock-weighted.weight", 0.15)));
+
+        PricingModel first = pricingModels.getOrDefault(
+                cfg.getString("market.pricing.models.blend.first", "power-law"), PricingModel.POWER_LAW);
+        PricingModel second = pricingModels.getOrDefault(
+                cfg.getString("market.pricing.models.blend.second", "stock-weighted"), PricingModel.POWER_LAW);
+        pricingModels.put("blend", PricingModel.blend(first, second,
+                cfg.getDouble("market.pricing.models.blend.weight", 0.5)));
+    }
+
+    private PricingModel pricingModel(String name, String where) {
+        PricingModel m = (name == null) ? null : pricingModels.get(name.toLowerCase(Locale.ROOT));
+        if (m != null) return m;
+        plugin.getLogger().warning("[MedievalMarkets] Unknown pricing model '" + name + "' (" + where + "); using power-law");
+        return PricingModel.POWER_LAW;
+    }
+
+    // Fast curve for an elasticity; in validation mode, measured against Math.pow and dropped if out of bounds
+    private PowCurve checkedCurve(double elasticity, boolean validate) {
+        PowCurve curve = PowCurve.of(elasticity);
+        if (!validate) return curve;
+
+        double bound = curve.maxRelativeError();
+        double worst = curve.validate(MarketLedger.MIN_COUNT, MarketLedger.MAX_COUNT, MarketLedger.BASELINE);
+        if (worst > bound) {
+            plugin.getLogger().warning(String.format(Locale.ROOT,
+                    "[MedievalMarkets] Fast pricing curve for elasticity %s is off by %.3g (bound %.3g); using Math.pow",
+                    elasticity, worst, bound));
+            return PowCurve.exact(elasticity);
+        }
+        plugin.getLogger().info(String.format(Locale.ROOT,
+                "[MedievalMarkets] Fast pricing curve for elasticity %s: max relative error %.3g (bound %.3g)",
+                elasticity, worst, bound));
+        return curve;
+    }
+
     public void loadLedger() {
-        ledger.loadFromFile(plugin, ledgerFile);
+        if (journal == null && plugin.getConfig().getBoolean("ledger.journal.enabled", true)) {
+            journal = new LedgerJournal(
+                    plugin.getLogger(),
+                    new File(plugin.getDataFolder(), "journal"),
+                    index,
+                    plugin.getConfig().getBoolean("ledger.journal.fsync", true),
+                    plugin.getConfig().getInt("ledger.journal.max-batch", 1024)
+            );
+            ledger.attachJournal(journal);
+        }
+        double halfLifeHours = Math.max(0.0, plugin.getConfig().getDouble("ledger.decay.half-life-hours", 0.0));
+        ledger.configureDecay(Math.round(halfLifeHours * 3600.0));
+        if (shards == null) shards = new LedgerShardStore(ledgerDir, index);
+        ledger.attachStore(shards, residency(plugin.getConfig()));
+        ledger.loadFromFile(plugin, ledgerFile, ledgerYaml);
     }
 
+    private MarketLedger.Residency residency(FileConfiguration cfg) {
+        List<UUID> warmTowns = new ArrayList<>();
+        for (String raw : cfg.getStringList("ledger.shards.warm-towns")) {
+            try {
+                warmTowns.add(UUID.fromString(raw));
+            } catch (IllegalArgumentException ex) {
+                plugin.getLogger().warning("[MedievalMarkets] Bad town UUID in ledger.shards.warm-towns: " + raw);
+            }
+        }
+        return new MarketLedger.Residency(
+                Math.max(1, cfg.getInt("ledger.shards.idle-minutes", 30)) * 60,
+                Math.max(1, cfg.getInt("ledger.shards.max-resident", 2000)),
+                Math.max(0, cfg.getInt("ledger.shards.warm-recent", 64)),
+                warmTowns,
+                Math.max(1, cfg.getInt("ledger.shards.warm-threads", 4))
+        );
+    }
+
+    /** Writes the changed town shards and folds the journal into them. */
     public void saveLedger() {
-        ledger.saveToFile(plugin, ledgerFile);
+        ledger.saveToFile(plugin);
+        PriceHistoryStore h = history;
+        if (h != null) h.flush();
+    }
+
+    /** Writes ledger.yml for admins to inspect or edit, off the main thread; completes on it with success. */
+    public CompletableFuture<Boolean> exportLedgerYaml() {
+        return offMainThread(() -> ledger.exportYaml(plugin, ledgerYaml));
+    }
+
+    /**
+     * Replaces the live ledger with ledger.yml. The file is parsed and the shards rewritten off the
+     * main thread; only the swap runs on it. Completes on the main thread with the towns imported,
+     * or -1 if the file is missing.
+     */
+    public CompletableFuture<Integer> importLedgerYaml() {
+        return offMainThread(() -> ledger.readImport(plugin, ledgerYaml)).thenCompose(parsed -> {
+            if (parsed == null) return CompletableFuture.completedFuture(-1);
+            int towns = ledger.importYaml(plugin, parsed);
+            return offMainThread(() -> {
+                ledger.saveToFile(plugin);
+                return towns;
+            });
+        });
+    }
+
+    /**
+     * Sends the netted town-side flows to MPC as one transfer per town and currency.
+     * Called on a timer (market.treasury-netting.flush-seconds); a no-op when netting is off.
+     */
+    public void flushTreasuryNets() {
+        TreasuryNetting n = netting;
+        if (n != null) n.flush();
+    }
+
+    /** Final save on disable: settles queued trades and treasury nets, saves shards, then drains and stops the journal writer. */
+    public void shutdown() {
+        if (trades != null) trades.close();
+        if (netting != null) netting.close();
+        if (economy != null) economy.close();
+        saveLedger();
+        if (journal != null) {
+            journal.close();
+        }
+        if (history != null) {
+            history.close();
+        }
+    }
+
+    public MarketLedger.SaveStats lastSaveStats() {
+        return ledger.lastSaveStats();
+    }
+
+    /** Towns in memory / towns with ledger data. */
+    public int residentTowns() {
+        return ledger.residentTowns();
+    }
+
+    public int knownTowns() {
+        return ledger.knownTowns();
+    }
+
+    public MarketLedger.Footprint ledgerFootprint() {
+        return ledger.footprint();
+    }
+
+    /** {hits, misses} of the town price cache, or null before init. */
+    public long[] priceCacheStats() {
+        PriceEngine p = prices;
+        return (p == null) ? null : new long[] {p.cacheHits(), p.cacheMisses()};
+    }
+
+    /** Treasury balance cache {@code {hits, misses, entries}}. */
+    public long[] treasuryCacheStats() {
+        return treasury.stats();
+    }
+
+    /**
+     * Replays synthetic trades against a fresh simulated economy (the configured
+     * standalone.simulated-economy profile) behind this server's timeout and breaker settings;
+     * see {@link EconomyBenchmark}. Never touches the live economy. Runs off the main thread (the
+     * latency is simulated in earnest); completes on it.
+     */
+    public CompletableFuture<EconomyBenchmark.Result> benchmarkEconomy(int trades) {
+        FileConfiguration cfg = plugin.getConfig();
+        SimulatedEconomy.Profile profile =
+                SimulatedEconomy.Profile.of(cfg.getConfigurationSection("standalone.simulated-economy"));
+        long timeoutMillis = cfg.getLong("market.economy.timeout-ms", 2_000L);
+        int breakerFailures = cfg.getInt("market.economy.breaker.failures", 5);
+        int openSeconds = cfg.getInt("market.economy.breaker.open-seconds", 30);
+        int callThreads = cfg.getInt("market.economy.call-threads", 8);
+        int threads = Math.max(1, cfg.getInt("market.trades.settlement-threads", 2));
+        return offMainThread(() -> EconomyBenchmark.run(profile, timeoutMillis, breakerFailures, openSeconds,
+                callThreads, trades, threads));
+    }
+
+    /** Circuit breaker state and per-call latencies of the economy, or null in standalone mode without a simulated one. */
+    public EconomyGuard.Status economyStatus() {
+        return (economy == null) ? null : economy.status();
+    }
+
+    /** Treasury netting {@code {open nets, town-side legs netted, transfers made}}, or null when off. */
+    public long[] treasuryNettingStats() {
+        TreasuryNetting n = netting;
+        return (n == null) ? null : n.stats();
+    }
+
+    /**
+     * Replays a synthetic trade stream against every configured pricing model over the registered
+     * commodities, off the main thread; completes on it. See {@link PricingBenchmark}.
+     */
+    public CompletableFuture<List<PricingBenchmark.Result>> benchmarkPricingModels(int trades) {
+        List<PricingModel> models = new ArrayList<>(pricingModels.values());
+        Commodity[] commodities = byOrdinal;
+        return offMainThread(() -> PricingBenchmark.run(models, commodities, trades, 0xB3AC4L));
+    }
+
+    /**
+     * Recomputes global supply/demand totals from the ledger rows off the main thread (evicted
+     * towns are read from disk); completes on the main thread with how many commodities had drifted.
+     */
+    public CompletableFuture<Integer> rebuildGlobalTotals() {
+        return offMainThread(ledger::rebuildGlobalTotals);
+    }
+
+    /**
+     * Runs {@code work} on a Bukkit async worker; the returned future completes on the main thread.
+     * For admin work that touches the whole ledger (shard scans, YAML, full rewrites).
+     */
+    private <T> CompletableFuture<T> offMainThread(Supplier<T> work) {
+        CompletableFuture<T> done = new CompletableFuture<>();
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            Runnable finish;
+            try {
+                T result = work.get();
+                finish = () -> done.complete(result);
+            } catch (RuntimeException ex) {
+                plugin.getLogger().log(Level.WARNING, "[MedievalMarkets] Background market task failed", ex);
+                finish = () -> done.completeExceptionally(ex);
+            }
+            try {
+                Bukkit.getScheduler().runTask(plugin, finish);
+            } catch (RuntimeException ex) {
+                finish.run(); // plugin disabling: no more ticks to complete on
+            }
+        });
+        return done;
     }
 
     public void register(Commodity c) {
-        commodities.put(c.id(), c);
+        // Intern to a dense ordinal so the ledger/price engine can skip String hashing on hot paths
+        int ord = index.intern(c.id());
+        Commodity bound = c.ordinal() == ord ? c : c.withOrdinal(ord);
+        commodities.put(c.id(), bound);
+
+        Commodity[] next = Arrays.copyOf(byOrdinal, Math.max(byOrdinal.length, ord + 1));
+        next[ord] = bound;
+        byOrdinal = next;
     }
 
     /* =========================
@@ -161,197 +557,439 @@ public final class MarketService {
        Quotes / Pricing
        ========================= */
 
-    public record Quote(double raw, double buyUnit, double sellUnit, long buyEach, long sellEach) {}
+    /**
+     * One unit's prices. {@code buyMicros}/{@code sellMicros} are the unit prices in micro-coins;
+     * in fixed-point mode they are what trades settle from, otherwise informational.
+     */
+    public record Quote(double raw, double buyUnit, double sellUnit, long buyEach, long sellEach,
+                        long buyMicros, long sellMicros) {}
 
     public Quote quote(UUID townId, String commodityId, String currencyCode) {
         Commodity c = commodities.get(commodityId);
-        if (c == null || townId == null || prices == null) return new Quote(0, 0, 0, 0, 0);
+        if (c == null || townId == null || prices == null) return new Quote(0, 0, 0, 0, 0, 0, 0);
 
-        double raw = prices.commodityValue(townId, commodityId);
+        double raw = prices.commodityValue(townId, c);
+        return settlement.quote(raw, defendedSpread(townId, currencyCode));
+    }
 
-        // raw can be 0 early; we can keep it 0 for discovery.
-        // but for display math safety, clamp to tiny epsilon.
-        double safeRaw = Math.max(0.0001, raw);
+    /**
+     * What an order of {@code qty} units would settle to right now. {@code unit} is the quote at the
+     * order's mean raw price (the curve walked over the units the order moves, see
+     * {@link PriceEngine#buyImpactValue}); {@code coins} is the pre-tax total from it and
+     * {@code tax} the sales tax on that total.
+     */
+    public record OrderQuote(int qty, Quote unit, long coins, long tax) {
+        /** Coins before tax plus tax, saturating. */
+        public long gross() {
+            long g = coins + tax;
+            return (g < 0) ? Long.MAX_VALUE : g;
+        }
+
+        /** Coins after tax (what a seller receives). */
+        public long net() {
+            return coins - tax;
+        }
+    }
+
+    /** Buying {@code qty} units: the player pays {@link OrderQuote#gross()}. */
+    public OrderQuote quoteBuy(UUID townId, String commodityId, String currencyCode, int qty, double taxRate) {
+        Commodity c = commodities.get(commodityId);
+        if (c == null || townId == null || prices == null || qty <= 0) return new OrderQuote(qty, new Quote(0, 0, 0, 0, 0, 0, 0), 0, 0);
+
+        Settlement st = settlement;
+        Quote q = st.quote(prices.buyImpactValue(townId, c, qty), defendedSpread(townId, currencyCode));
+        long coins = st.buyTotal(q, qty);
+        return new OrderQuote(qty, q, coins, st.tax(coins, clampTax(taxRate)));
+    }
+
+    /** Selling {@code qty} units: the town pays {@link OrderQuote#net()}. */
+    public OrderQuote quoteSell(UUID townId, String commodityId, String currencyCode, int qty, double taxRate) {
+        Commodity c = commodities.get(commodityId);
+        if (c == null || townId == null || prices == null || qty <= 0) return new OrderQuote(qty, new Quote(0, 0, 0, 0, 0, 0, 0), 0, 0);
+
+        Settlement st = settlement;
+        Quote q = st.quote(prices.sellImpactValue(townId, c, qty), defendedSpread(townId, currencyCode));
+        long coins = st.sellTotal(q, qty);
+        return new OrderQuote(qty, q, coins, st.tax(coins, clampTax(taxRate)));
+    }
+
+    /**
+     * Every registered commodity's quote and stock for one town, in columns indexed by commodity
+     * ordinal (ordinals with no registered commodity are left empty). The spread and treasury
+     * balance are looked up once for the whole table. Pass a previous table as {@code reuse} to
+     * refill its arrays instead of allocating new ones.
+     */
+    public QuoteTable quoteAll(UUID townId, String currencyCode, QuoteTable reuse) {
+        QuoteTable t = (reuse != null) ? reuse : new QuoteTable();
+        Commodity[] cs = byOrdinal;
+        t.reset(cs, townId, currencyCode);
+        if (townId == null || prices == null) return t;
+
+        double spread = defendedSpread(townId, currencyCode);
+        prices.commodityValues(townId, cs, t.raw);
+        ledger.stockInto(townId, t.stock);
+
+        Settlement st = settlement;
+        for (int ord = 0; ord < cs.length; ord++) {
+            if (cs[ord] != null) t.set(ord, st.quote(t.raw[ord], spread));
+        }
+        return t;
+    }
+
+    public QuoteTable quoteAll(UUID townId, String currencyCode) {
+        return quoteAll(townId, currencyCode, null);
+    }
+
+    /** One entry of a hottest/coldest list. */
+    public record RankedQuote(Commodity commodity, Quote quote) {}
+
+    /**
+     * Up to {@code k} of the town's commodities by raw price, dearest first when {@code hottest}.
+     * Read from the price engine's incrementally kept ranking; only the listed entries are quoted.
+     */
+    public List<RankedQuote> rankTown(UUID townId, String currencyCode, int k, boolean hottest) {
+        List<RankedQuote> out = new ArrayList<>();
+        if (townId == null || prices == null || k <= 0) return out;
+
+        Commodity[] cs = byOrdinal;
+        int[] ords = prices.rankTown(townId, cs, k, hottest);
+        if (ords.length == 0) return out;
 
         double spread = defendedSpread(townId, currencyCode);
-        double buyUnit = safeRaw * (1.0 + spread);
-        double sellUnit = safeRaw * (1.0 - spread);
+        Settlement st = settlement;
+        for (int ord : ords) {
+            Commodity c = cs[ord];
+            out.add(new RankedQuote(c, st.quote(prices.commodityValue(townId, c), spread)));
+        }
+        return out;
+    }
+
+    /** One entry of a server-wide ranking: the commodity and its global raw price. */
+    public record GlobalPrice(Commodity commodity, double raw) {}
+
+    /** Up to {@code k} commodities by server-wide raw price (all towns' supply/demand), dearest first when {@code hottest}. */
+    public List<GlobalPrice> rankGlobal(int k, boolean hottest) {
+        List<GlobalPrice> out = new ArrayList<>();
+        if (prices == null || k <= 0) return out;
+
+        Commodity[] cs = byOrdinal;
+        for (int ord : prices.rankGlobal(cs, k, hottest)) {
+            out.add(new GlobalPrice(cs[ord], prices.globalCommodityValue(cs[ord])));
+        }
+        return out;
+    }
+
+    /* =========================
+       Price history
+       ========================= */
+
+    /** The town's recorded price series for a commodity, oldest first; empty if none or history is off. */
+    public List<PriceHistoryStore.Sample> history(UUID townId, String commodityId) {
+        PriceHistoryStore h = history;
+        if (h == null || townId == null || commodityId == null) return List.of();
+        return h.series(townId, commodityId.toLowerCase(Locale.ROOT));
+    }
+
+    public boolean historyEnabled() {
+        return history != null;
+    }
+
+    // Called after a trade moved the cell: one sample of its new price and counts
+    private void sampleHistory(UUID townId, Commodity c) {
+        PriceHistoryStore h = history;
+        if (h == null) return;
+        long sd = ledger.supplyDemand(townId, c.ordinal());
+        h.record(townId, c.id(), System.currentTimeMillis() / 1000L, prices.commodityValue(townId, c),
+                MarketLedger.packedSupply(sd), MarketLedger.packedDemand(sd));
+    }
+
+    /**
+     * Columnar quotes from {@link #quoteAll}: one array per field, indexed by commodity ordinal.
+     * Not thread-safe; meant to be filled and read by one caller (e.g. a GUI render).
+     */
+    public static final class QuoteTable {
+        private Commodity[] commodities = new Commodity[0];
+        private UUID townId;
+        private String currency;
+
+        private double[] raw = new double[0];
+        private double[] buyUnit = new double[0];
+        private double[] sellUnit = new double[0];
+        private long[] buyEach = new long[0];
+        private long[] sellEach = new long[0];
+        private long[] buyMicros = new long[0];
+        private long[] sellMicros = new long[0];
+        private int[] stock = new int[0];
+
+        public UUID townId() { return townId; }
+        public String currency() { return currency; }
+
+        /** Ordinals run from 0 (inclusive) to width (exclusive). */
+        public int width() { return commodities.length; }
+
+        /** Null if no commodity is registered at this ordinal. */
+        public Commodity commodity(int ord) { return commodities[ord]; }
+
+        public double raw(int ord) { return raw[ord]; }
+        public double buyUnit(int ord) { return buyUnit[ord]; }
+        public double sellUnit(int ord) { return sellUnit[ord]; }
+        public long buyEach(int ord) { return buyEach[ord]; }
+        public long sellEach(int ord) { return sellEach[ord]; }
+        public int stock(int ord) { return stock[ord]; }
+
+        public Quote quote(int ord) {
+            return new Quote(raw[ord], buyUnit[ord], sellUnit[ord], buyEach[ord], sellEach[ord],
+                    buyMicros[ord], sellMicros[ord]);
+        }
 
-        long buyEach = safeCeilToLong(buyUnit);
-        long sellEach = safeFloorToLong(sellUnit);
+        private void set(int ord, Quote q) {
+            raw[ord] = q.raw();
+            buyUnit[ord] = q.buyUnit();
+            sellUnit[ord] = q.sellUnit();
+            buyEach[ord] = q.buyEach();
+            sellEach[ord] = q.sellEach();
+            buyMicros[ord] = q.buyMicros();
+            sellMicros[ord] = q.sellMicros();
+        }
 
-        return new Quote(raw, buyUnit, sellUnit, buyEach, sellEach);
+        private void reset(Commodity[] cs, UUID townId, String currency) {
+            this.commodities = cs;
+            this.townId = townId;
+            this.currency = currency;
+
+            int width = cs.length;
+            if (raw.length < width) {
+                raw = new double[width];
+                buyUnit = new double[width];
+                sellUnit = new double[width];
+                buyEach = new long[width];
+                sellEach = new long[width];
+                buyMicros = new long[width];
+                sellMicros = new long[width];
+                stock = new int[width];
+            } else {
+                Arrays.fill(raw, 0.0);
+                Arrays.fill(buyUnit, 0.0);
+                Arrays.fill(sellUnit, 0.0);
+                Arrays.fill(buyEach, 0L);
+                Arrays.fill(sellEach, 0L);
+                Arrays.fill(buyMicros, 0L);
+                Arrays.fill(sellMicros, 0L);
+                Arrays.fill(stock, 0);
+            }
+        }
     }
 
     /* =========================
        Trades
        ========================= */
 
-    public boolean buy(Player buyer, String commodityId, int qty, String currencyCode) {
-        if (buyer == null) return false;
+    /*
+     * Each trade runs in three stages (see TradePipeline): on the main thread it is validated,
+     * priced and its goods reserved (the town's stock for a buy, the player's items for a sell);
+     * the MPC transfers then run on the settlement executor; and on the next tick the outcome is
+     * applied here, delivering items and recording the trade, or handing the reservation back.
+     * The returned future completes on the main thread with whether the trade went through.
+     */
 
-        if (mpc == null) {
+    public CompletableFuture<Boolean> buy(Player buyer, String commodityId, int qty, String currencyCode) {
+        if (buyer == null) return CompletableFuture.completedFuture(false);
+
+        if (economy == null) {
             buyer.sendMessage(text("Economy unavailable (MPCBridge not found).", RED));
-            return false;
+            return CompletableFuture.completedFuture(false);
+        }
+        if (!economy.available()) {
+            buyer.sendMessage(text(READ_ONLY, RED));
+            return CompletableFuture.completedFuture(false);
         }
 
         UUID townId = bab.treasuryIdAt(buyer.getLocation());
-        if (townId == null) return false;
+        if (townId == null) return CompletableFuture.completedFuture(false);
 
         Commodity c = commodities.get(commodityId);
-        if (c == null || qty <= 0) return false;
+        if (c == null || qty <= 0) return CompletableFuture.completedFuture(false);
 
         String cur = currencyCode.toUpperCase(Locale.ROOT);
 
         // Enforce stock before charging player
-        int available = ledger.stock(townId, commodityId); // <-- you likely already have this accessor
+        int available = ledger.stock(townId, c.ordinal());
         if (available <= 0) {
             buyer.sendMessage(text("Out of stock.", RED));
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
-        int qtyToAttempt = Math.min(qty, available); qtyToAttempt = Math.min(qty, available);
+        int qtyToAttempt = Math.min(qty, available);
 
-        Quote q = quote(townId, commodityId, cur);
-        if (!(q.buyUnit > 0.0) || Double.isNaN(q.buyUnit) || Double.isInfinite(q.buyUnit)) return false;
+        // Priced along the curve for the whole order, not qty times the first unit
+        OrderQuote order = quoteBuy(townId, commodityId, cur, qtyToAttempt, bab.salesTaxRateAt(buyer.getLocation()));
+        Quote q = order.unit();
+        if (!(q.buyUnit > 0.0) || Double.isNaN(q.buyUnit) || Double.isInfinite(q.buyUnit)) {
+            return CompletableFuture.completedFuture(false);
+        }
 
-        long costCoins = safeCeilToLong(q.buyUnit * (double) qtyToAttempt);
-        if (costCoins <= 0) return false;
+        long costCoins = order.coins();
+        if (costCoins <= 0) return CompletableFuture.completedFuture(false);
 
-        double taxRate = clampTax(bab.salesTaxRateAt(buyer.getLocation()));
-        long taxCoins = salesTax(costCoins, taxRate);
+        long taxCoins = order.tax();
 
         long grandCoins;
         try {
             grandCoins = Math.addExact(costCoins, taxCoins);
         } catch (ArithmeticException ex) {
             buyer.sendMessage(text("Trade total overflow.", RED));
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
-        UUID playerId = buyer.getUniqueId();
-
-        try {
-            if (!mpc.withdraw(playerId, cur, (double) grandCoins)) return false;
-            mpc.deposit(townId, cur, (double) grandCoins);
-
-            ItemStack stack = new ItemStack(c.material(), qtyToAttempt);
-            Map<Integer, ItemStack> leftovers = buyer.getInventory().addItem(stack);
-
-            int notGiven = leftovers.values().stream().mapToInt(ItemStack::getAmount).sum();
-            int given = qtyToAttempt - notGiven;
+        // Reserve the units now so trades queued behind this one cannot sell them again
+        int reserved = ledger.removeStock(townId, c.ordinal(), qtyToAttempt);
+        if (reserved < qtyToAttempt) {
+            ledger.addStock(townId, c.ordinal(), reserved);
+            buyer.sendMessage(text("Out of stock.", RED));
+            return CompletableFuture.completedFuture(false);
+        }
 
-            if (given > 0) {
-                ledger.recordDemand(townId, commodityId, given);
-                ledger.removeStock(townId, commodityId, given); // <-- this reduces reserves
+        UUID playerId = buyer.getUniqueId();
+        UUID[] wallets = {playerId, townId};
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        String what = "buy of " + reserved + " " + c.id() + " by " + playerId + " from town " + townId + " for "
+                + grandCoins + " " + cur + " (units reserved from the town's stock)";
+        trades.submit(wallets, what, () -> legs.buy(playerId, townId, cur, grandCoins) == TradeLegs.Outcome.SETTLED, paid -> {
+            if (!paid) {
+                ledger.addStock(townId, c.ordinal(), reserved);
+                done.complete(false);
+                return;
             }
 
-
-            // If nothing fit in inventory, refund the player
-            if (given <= 0) {
-                mpc.withdraw(townId, cur, (double) grandCoins);
-                mpc.deposit(playerId, cur, (double) grandCoins);
-                buyer.sendMessage(text("Inventory full.", RED));
-                return false;
+            // Every reserved unit is paid for: what does not fit in the inventory drops at the buyer's feet
+            int dropped = giveBack(buyer, new ItemStack(c.material(), reserved));
+            if (dropped > 0 && buyer.isOnline()) {
+                buyer.sendMessage(text("Inventory full: " + dropped + " dropped at your feet.", RED));
             }
-
-            return true;
-
-        } catch (RuntimeException ex) {
-            plugin.getLogger().warning("[MM][BUY] Exception: " + ex.getMessage());
-            return false;
-        }
+            ledger.recordDemand(townId, c.ordinal(), reserved);
+            sampleHistory(townId, c);
+            done.complete(true);
+        });
+        return done;
     }
 
-    public boolean sell(Player seller, String commodityId, int qty, String currencyCode) {
-        if (seller == null) return false;
-        if (mpc == null) {
+    public CompletableFuture<Boolean> sell(Player seller, String commodityId, int qty, String currencyCode) {
+        if (seller == null) return CompletableFuture.completedFuture(false);
+        if (economy == null) {
             seller.sendMessage(text("Economy unavailable (MPCBridge not found).", RED));
-            return false;
+            return CompletableFuture.completedFuture(false);
+        }
+        if (!economy.available()) {
+            seller.sendMessage(text(READ_ONLY, RED));
+            return CompletableFuture.completedFuture(false);
         }
 
         UUID townId = bab.treasuryIdAt(seller.getLocation());
-        if (townId == null) return false;
+        if (townId == null) return CompletableFuture.completedFuture(false);
 
         Commodity c = commodities.get(commodityId);
-        if (c == null || qty <= 0) return false;
+        if (c == null || qty <= 0) return CompletableFuture.completedFuture(false);
 
         String cur = currencyCode.toUpperCase(Locale.ROOT);
 
+        // Taking the items out of the inventory is the sell side's reservation
         int removed = removeMaterial(seller, c.material(), qty);
-        if (removed <= 0) return false;
+        if (removed <= 0) return CompletableFuture.completedFuture(false);
 
-        Quote q = quote(townId, commodityId, cur);
+        double taxRate = clampTax(bab.salesTaxRateAt(seller.getLocation()));
+        OrderQuote order = quoteSell(townId, commodityId, cur, removed, taxRate);
+        Quote q = order.unit();
         if (!(q.sellUnit > 0.0) || Double.isNaN(q.sellUnit) || Double.isInfinite(q.sellUnit)) {
             seller.getInventory().addItem(new ItemStack(c.material(), removed));
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
-        long payoutCoins = safeFloorToLong(q.sellUnit * (double) removed);
+        long payoutCoins = order.coins();
 
         if (payoutCoins <= 0) {
             // ✅ Conditional bootstrap: only allow a 1-coin floor if town has < 1 in stock
-            int currentStock = ledger.stock(townId, commodityId);
+            int currentStock = ledger.stock(townId, c.ordinal());
 
             if (currentStock < 1) {
                 payoutCoins = 1; // town will buy 1 unit to seed inventory
             } else {
                 seller.getInventory().addItem(new ItemStack(c.material(), removed));
                 seller.sendMessage(text("Not worth 1 coin here in " + cur + ".", RED));
-                return false;
+                return CompletableFuture.completedFuture(false);
             }
         }
 
 
-        double taxRate = clampTax(bab.salesTaxRateAt(seller.getLocation()));
-        long taxCoins = salesTax(payoutCoins, taxRate);
+        long taxCoins = (payoutCoins == order.coins()) ? order.tax() : settlement.tax(payoutCoins, taxRate);
 
         long netCoins = payoutCoins - taxCoins;
         if (netCoins <= 0) {
             seller.getInventory().addItem(new ItemStack(c.material(), removed));
             seller.sendMessage(text("Sale too small after tax.", RED));
-            return false;
+            return CompletableFuture.completedFuture(false);
         }
 
-        try {
-            if (!mpc.withdraw(townId, cur, (double) netCoins)) {
-                seller.getInventory().addItem(new ItemStack(c.material(), removed));
-                seller.sendMessage(text("Town treasury cannot afford this purchase.", RED));
-                return false;
+        UUID sellerId = seller.getUniqueId();
+        boolean[] refused = new boolean[1]; // set by the settle stage, read by the apply stage
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        String what = "sale of " + removed + " " + c.id() + " by " + sellerId + " to town " + townId + " for "
+                + netCoins + " " + cur + " (items taken from the seller)";
+        trades.submit(new UUID[] {sellerId, townId}, what, () -> {
+            TradeLegs.Outcome o = legs.sell(sellerId, townId, cur, netCoins);
+            refused[0] = (o == TradeLegs.Outcome.REFUSED);
+            return o == TradeLegs.Outcome.SETTLED;
+        }, paid -> {
+            if (!paid) {
+                giveBack(seller, new ItemStack(c.material(), removed));
+                if (refused[0]) seller.sendMessage(text("Town treasury cannot afford this purchase.", RED));
+                done.complete(false);
+                return;
             }
 
-            mpc.deposit(seller.getUniqueId(), cur, (double) netCoins);
-
-            ledger.recordSupply(townId, commodityId, removed);
-            ledger.addStock(townId, commodityId, removed);
+            ledger.recordSupply(townId, c.ordinal(), removed);
+            ledger.addStock(townId, c.ordinal(), removed);
+            sampleHistory(townId, c);
+            done.complete(true);
+        });
+        return done;
+    }
 
-            return true;
+    /** Trades submitted but not yet applied (settling against MPC or waiting for the next tick). */
+    public int tradesInFlight() {
+        return trades.inFlight();
+    }
 
-        } catch (RuntimeException ex) {
-            seller.getInventory().addItem(new ItemStack(c.material(), removed));
-            plugin.getLogger().warning("[MM][SELL] Exception: " + ex.getMessage());
-            return false;
+    // Puts items in a player's inventory; what does not fit, or all of it if they have logged off
+    // since, drops where they stood in whole stacks. Returns the units dropped
+    private int giveBack(Player player, ItemStack stack) {
+        Collection<ItemStack> left = player.isOnline() ? player.getInventory().addItem(stack).values() : List.of(stack);
+        int dropped = 0;
+        for (ItemStack l : left) {
+            int max = Math.max(1, l.getMaxStackSize());
+            for (int n = l.getAmount(); n > 0; n -= max) {
+                ItemStack part = l.clone();
+                part.setAmount(Math.min(n, max));
+                player.getWorld().dropItemNaturally(player.getLocation(), part);
+            }
+            dropped += l.getAmount();
         }
+        return dropped;
     }
 
     /* =========================
        Liquidity helpers
        ========================= */
 
-    private double treasuryTarget() {
-        try {
-            return plugin.getConfig().getDouble("market.treasury-target", DEFAULT_TREASURY_TARGET);
-        } catch (Exception ignored) {
-            return DEFAULT_TREASURY_TARGET;
-        }
-    }
-
     private double treasuryStress01(UUID townId, String currencyCode) {
-        if (mpc == null) return 0.0;
+        if (economy == null) return 0.0;
 
-        double target = Math.max(1.0, treasuryTarget());
-        double bal = mpcBalanceSafe(townId, currencyCode);
+        double target = treasuryTarget;
+        double bal = treasury.balance(townId, currencyCode, this::mpcBalanceSafe);
         if (!Double.isFinite(bal)) return 0.0;
+        TreasuryNetting n = netting;
+        if (n != null) bal += n.pending(townId, currencyCode); // netted but not yet flushed
 
         double t = bal / target;
         if (t < 0.0) t = 0.0;
@@ -366,10 +1004,11 @@ public final class MarketService {
         return base + (0.35 * stress);
     }
 
+    // NaN when MPC fails, times out or is cut off by the breaker (EconomyGuard counts and logs those)
     private double mpcBalanceSafe(UUID walletId, String cur) {
         try {
-            return mpc.balance(walletId, cur);
-        } catch (Throwable ignored) {
+            return economy.balance(walletId, cur);
+        } catch (RuntimeException ignored) {
             return Double.NaN;
         }
     }
@@ -381,28 +1020,6 @@ public final class MarketService {
         return rate;
     }
 
-    private long salesTax(long coins, double rate) {
-        if (coins <= 0) return 0;
-        if (!(rate > 0.0)) return 0;
-        double t = (double) coins * rate;
-        long out = safeCeilToLong(t);
-        return Math.max(0L, out);
-    }
-
-    private long safeCeilToLong(double v) {
-        if (!Double.isFinite(v) || v <= 0) return 0L;
-        double c = Math.ceil(v);
-        if (c > (double) Long.MAX_VALUE) return Long.MAX_VALUE;
-        return (long) c;
-    }
-
-    private long safeFloorToLong(double v) {
-        if (!Double.isFinite(v) || v <= 0) return 0L;
-        double f = Math.floor(v);
-        if (f > (double) Long.MAX_VALUE) return Long.MAX_VALUE;
-        return (long) f;
-    }
-
     private int removeMaterial(Player player, Material mat, int qty) {
         if (player == null || mat == null || qty <= 0) return 0;
 
@@ -0,0 +1,154 @@
+package com.brandon.medievalmarkets.market;
+
+/**
+ * {@code (demand/supply)^elasticity} for one elasticity, without {@link Math#pow}.
+ *
+ * Elasticities come from a handful of config values, so one curve is built per distinct value
+ * (at {@link MarketService#loadDefaults}) and shared by every commodity that uses it.
+ * Common exponents get exact shortcuts (0, 1, 0.5, 0.25, 0.75 via square roots); anything else
+ * goes through a log/exp split: {@code 2^(e * (log2 d - log2 s))}, with log2 of the integer
+ * counts read from a table over the mantissa and 2^f from a table over the fraction, both
+ * linearly interpolated over {@value #SEGMENTS} segments.
+ *
+ * Maximum relative error of the table path is {@link #maxRelativeError} (under 1e-7 for
+ * elasticities up to 1): interpolation error of log2 is at most {@code h^2 / (8 ln 2)} per count,
+ * so at most {@code 2e} times that in the exponent, and 2^f adds {@code h^2 (ln 2)^2 / 8}.
+ * {@link #validate} measures it against Math.pow over the ledger's clamped count range.
+ */
+final class PowCurve {
+
+    static final int SEGMENT_BITS = 11;
+    static final int SEGMENTS = 1 << SEGMENT_BITS;
+    private static final int FRACTION_BITS = 30 - SEGMENT_BITS;
+    private static final double FRACTION_SCALE = 1.0 / (1 << FRACTION_BITS);
+
+    // log2(1 + i/SEGMENTS) and 2^(i/SEGMENTS), i = 0..SEGMENTS (one extra entry for interpolation);
+    // shared with the vector price kernel, which must stay bit-for-bit equal to apply()
+    static final double[] LOG2 = new double[SEGMENTS + 1];
+    static final double[] EXP2 = new double[SEGMENTS + 1];
+
+    static {
+        for (int i = 0; i <= SEGMENTS; i++) {
+            LOG2[i] = Math.log1p(i / (double) SEGMENTS) / Math.log(2.0);
+            EXP2[i] = Math.pow(2.0, i / (double) SEGMENTS);
+        }
+    }
+
+    /** How {@link #apply} evaluates; batch kernels branch on it per lane. */
+    enum Kind { ONE, LINEAR, SQRT, QUARTER, THREE_QUARTERS, TABLE, POW }
+
+    private final double elasticity;
+    private final Kind kind;
+
+    private PowCurve(double elasticity, Kind kind) {
+        this.elasticity = elasticity;
+        this.kind = kind;
+    }
+
+    /** Fast curve for this elasticity. */
+    static PowCurve of(double elasticity) {
+        Kind kind;
+        if (elasticity == 0.0) kind = Kind.ONE;
+        else if (elasticity == 1.0) kind = Kind.LINEAR;
+        else if (elasticity == 0.5) kind = Kind.SQRT;
+        else if (elasticity == 0.25) kind = Kind.QUARTER;
+        else if (elasticity == 0.75) kind = Kind.THREE_QUARTERS;
+        else if (elasticity <= 16.0) kind = Kind.TABLE;
+        else kind = Kind.POW; // 2^(e * 31) would leave the range exp2 builds exponents for
+        return new PowCurve(elasticity, kind);
+    }
+
+    /** Reference curve: plain Math.pow (fast path disabled, or failed validation). */
+    static PowCurve exact(double elasticity) {
+        return new PowCurve(elasticity, Kind.POW);
+    }
+
+    double elasticity() {
+        return elasticity;
+    }
+
+    Kind kind() {
+        return kind;
+    }
+
+    boolean usesTable() {
+        return kind == Kind.TABLE;
+    }
+
+    /** {@code (demand/supply)^elasticity}; both counts must be >= 1. */
+    double apply(int demand, int supply) {
+        if (demand == supply) return 1.0;
+        return switch (kind) {
+            case ONE -> 1.0;
+            case LINEAR -> (double) demand / supply;
+            case SQRT -> Math.sqrt((double) demand / supply);
+            case QUARTER -> Math.sqrt(Math.sqrt((double) demand / supply));
+            case THREE_QUARTERS -> {
+                double r = Math.sqrt((double) demand / supply);
+                yield r * Math.sqrt(r);
+            }
+            case TABLE -> exp2(elasticity * (log2(demand) - log2(supply)));
+            case POW -> Math.pow((double) demand / supply, elasticity);
+        };
+    }
+
+    /** Documented bound on the table path's relative error for this elasticity. */
+    double maxRelativeError() {
+        if (kind != Kind.TABLE) return 1e-15;
+        double h = 1.0 / SEGMENTS;
+        double log2Error = h * h / (8.0 * Math.log(2.0));
+        double exp2Error = h * h * Math.log(2.0) * Math.log(2.0) / 8.0;
+        // 2^x relative error is ln2 * (absolute error in x), plus a little for rounding
+        return Math.log(2.0) * 2.0 * Math.abs(elasticity) * log2Error + exp2Error + 1e-14;
+    }
+
+    /**
+     * Largest relative error against Math.pow over counts in [min, max]: every pair from a
+     * log-spaced grid of counts (plus the neighbourhood of {@code baseline}).
+     */
+    double validate(int min, int max, int baseline) {
+        int[] counts = sampleCounts(min, max, baseline);
+        double worst = 0.0;
+        for (int d : counts) {
+            for (int s : counts) {
+                double ref = Math.pow((double) d / s, elasticity);
+                double err = Math.abs(apply(d, s) - ref) / ref;
+                if (err > worst) worst = err;
+            }
+        }
+        return worst;
+    }
+
+    private static int[] sampleCounts(int min, int max, int baseline) {
+        int steps = 400;
+        int[] out = new int[steps + 41];
+        double ratio = Math.pow((double) max / min, 1.0 / steps);
+        double v = min;
+        for (int i = 0; i <= steps; i++, v *= ratio) out[i] = (int) Math.min(max, Math.max(min, Math.round(v)));
+        for (int i = 0; i < 40; i++) out[steps + 1 + i] = Math.max(min, Math.min(max, baseline - 20 + i));
+        return out;
+    }
+
+    /* =========================
+       Tables
+       ========================= */
+
+    // n >= 1 (ledger counts are clamped, so n < 2^31)
+    private static double log2(int n) {
+        int k = 31 - Integer.numberOfLeadingZeros(n);
+        int m = n << (30 - k); // mantissa with its leading one at bit 30
+        int idx = (m >>> FRACTION_BITS) & (SEGMENTS - 1);
+        double t = (m & ((1 << FRACTION_BITS) - 1)) * FRACTION_SCALE;
+        return k + LOG2[idx] + t * (LOG2[idx + 1] - LOG2[idx]);
+    }
+
+    // |y| stays far inside the normal exponent range: counts are below 2^31 and elasticity is small
+    private static double exp2(double y) {
+        double whole = Math.floor(y);
+        double f = (y - whole) * SEGMENTS;
+        int idx = Math.min((int) f, SEGMENTS - 1); // y a hair below an integer
+        double t = f - idx;
+        double scale = Double.longBitsToDouble((long) ((int) whole + 1023) << 52); // 2^whole
+        return (EXP2[idx] + t * (EXP2[idx + 1] - EXP2[idx])) * scale;
+    }
+}
@@ -2,31 +2,304 @@ package com.brandon.medievalmarkets.market;
 
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Prices from the ledger.
+ *
+ * Town prices are cached per cell. Every town/commodity cell has a version, bumped by the ledger
+ * (through {@link MarketLedger.ChangeListener}) whenever that cell's supply or demand changes;
+ * a cached value is reused while its version is current and counter decay has not yet moved the
+ * cell's rounded supply/demand. Stock changes only invalidate commodities whose
+ * {@link PricingModel} reads stock. A quote for an untouched commodity is two array reads and
+ * no ledger access.
+ *
+ * The same change events keep a {@link PriceRanking} per town (and one server-wide) in order,
+ * so hottest/coldest lists are read off a sorted index instead of pricing and sorting everything.
+ *
+ * Whole-row work (a town with many stale cells, the global sheet, ranking rebuilds) goes through a
+ * {@link PriceKernel}: SIMD when the Vector API module is enabled, scalar otherwise. Kernels
+ * evaluate the power law; cells on any other model are patched in afterwards, one by one.
+ *
+ * Processed goods with a {@link RecipeGraph} recipe are priced from their inputs. A change to an
+ * input bumps the versions of its downstream outputs only; those re-derive on their next read,
+ * inputs first (whole rows walk the graph in topological order).
+ */
 public final class PriceEngine {
 
     private final MarketLedger ledger;
     private final Map<String, Commodity> commodities;
 
+    // townId -> per-ordinal versions and cached values; towns leave when the ledger drops them
+    // (cleared or evicted), and towns without a ledger row are never added
+    private final Map<UUID, TownPrices> cache = new ConcurrentHashMap<>();
+
+    // Stand-in for towns without a row: width 0, so every read computes and nothing is stored
+    private static final TownPrices UNCACHED = new TownPrices(0);
+
+    // townId -> commodities ordered by town price; kept and dropped like the cache
+    private final Map<UUID, PriceRanking> rankings = new ConcurrentHashMap<>();
+    private volatile PriceRanking globalRanking = new PriceRanking(new Commodity[0]);
+
+    // Below this many stale cells a town is re-priced cell by cell rather than as a batch
+    private static final int BATCH_MIN_MISSES = 16;
+
+    private final PriceKernel kernel;
+    private volatile PriceKernel.Columns columns = new PriceKernel.Columns(new Commodity[0]);
+
+    private volatile RecipeGraph recipes = RecipeGraph.EMPTY;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
     public PriceEngine(MarketLedger ledger, Map<String, Commodity> commodities) {
+        this(ledger, commodities, "auto");
+    }
+
+    /** {@code batchKernel}: "auto", "vector" or "scalar" (see {@link PriceKernel#select}). */
+    public PriceEngine(MarketLedger ledger, Map<String, Commodity> commodities, String batchKernel) {
         this.ledger = ledger;
         this.commodities = commodities;
+        this.kernel = PriceKernel.select(batchKernel);
+        ledger.setChangeListener(new Invalidator());
+    }
+
+    /** The current commodity registration, indexed by ordinal (sets up per-ordinal model columns). */
+    void register(Commodity[] byOrdinal) {
+        columns(byOrdinal);
+    }
+
+    /** Replaces the recipe graph; every cached price and ranking is recomputed. */
+    void recipes(RecipeGraph graph) {
+        recipes = (graph != null) ? graph : RecipeGraph.EMPTY;
+        cache.clear();
+        rankings.clear();
+        globalRanking.markAllDirty();
     }
 
     public double commodityValue(UUID townId, String commodityId) {
-        Commodity c = commodities.get(commodityId);
+        return commodityValue(townId, commodities.get(commodityId));
+    }
+
+    public double commodityValue(UUID townId, Commodity c) {
         if (c == null || townId == null) return 0.0;
+        return value(townPrices(townId), townId, c);
+    }
+
+    /**
+     * Raw values of every commodity for one town into {@code out}, indexed like {@code byOrdinal}
+     * (null entries are skipped). One cache lookup for the whole town; if many cells are stale,
+     * the whole row is read once and priced by the batch kernel.
+     */
+    public void commodityValues(UUID townId, Commodity[] byOrdinal, double[] out) {
+        if (townId == null) return;
+        TownPrices tp = townPrices(townId);
+
+        RecipeGraph graph = recipes;
+        int[] missed = new int[byOrdinal.length];
+        int stale = 0;
+        for (int ord = 0; ord < byOrdinal.length; ord++) {
+            Commodity c = byOrdinal[ord];
+            if (c == null) continue;
+            Cached e = (ord < tp.width()) ? fresh(tp, ord, c) : null;
+            if (e != null) {
+                hits.increment();
+                out[ord] = e.value;
+            } else {
+                missed[stale++] = ord;
+            }
+        }
+
+        if (stale < BATCH_MIN_MISSES) {
+            // value() resolves a stale output's inputs itself
+            for (int k = 0; k < stale; k++) out[missed[k]] = value(tp, townId, byOrdinal[missed[k]]);
+            return;
+        }
+
+        // Same order as value(): versions and expiries first, then the row
+        int[] version = new int[stale];
+        int[] stableUntil = new int[stale];
+        for (int k = 0; k < stale; k++) {
+            int ord = missed[k];
+            version[k] = (ord < tp.width()) ? tp.versions.get(ord) : 0;
+            stableUntil[k] = stableUntil(graph, townId, ord);
+        }
+
+        int[] supply = new int[byOrdinal.length];
+        int[] demand = new int[byOrdinal.length];
+        double[] raw = new double[byOrdinal.length];
+        ledger.supplyDemandInto(townId, supply, demand);
+        PriceKernel.Columns cols = columns(byOrdinal);
+        kernel.price(cols, supply, demand, raw);
+        if (cols.custom.length > 0) {
+            int[] stock = new int[byOrdinal.length];
+            if (cols.stockModels) ledger.stockInto(townId, stock);
+            repriceCustom(cols, supply, demand, stock, raw);
+        }
+
+        boolean[] isStale = new boolean[byOrdinal.length];
+        for (int k = 0; k < stale; k++) {
+            out[missed[k]] = raw[missed[k]];
+            isStale[missed[k]] = true;
+        }
+        // Stale outputs from their inputs, inputs first; fresh entries of out are already derived
+        for (int ord : graph.topo()) {
+            if (ord < byOrdinal.length && isStale[ord] && byOrdinal[ord] != null) {
+                double base = byOrdinal[ord].baseValue();
+                out[ord] = RecipeGraph.derive(graph.recipe(ord), base, raw[ord] / base, in -> out[in.ordinal()]);
+            }
+        }
+
+        for (int k = 0; k < stale; k++) {
+            int ord = missed[k];
+            if (ord < tp.width()) tp.values.set(ord, new Cached(version[k], stableUntil[k], byOrdinal[ord], out[ord]));
+        }
+        misses.add(stale);
+    }
+
+    /**
+     * Mean raw unit value of buying {@code qty} units in one order: each unit bought adds one to
+     * the town's demand, so the order walks up the curve. The commodity's {@link PricingModel}
+     * integrates over the demand the order covers (closed form for the power law), so any
+     * quantity costs the same. One unit is the plain cached value. Decay and the ledger's count
+     * clamps are not applied within the order.
+     */
+    public double buyImpactValue(UUID townId, Commodity c, int qty) {
+        return impactValue(townId, c, qty, true);
+    }
+
+    /**
+     * Mean raw unit value of selling {@code qty} units in one order: each unit adds one to the
+     * town's supply, walking down the curve. Same treatment as {@link #buyImpactValue}.
+     */
+    public double sellImpactValue(UUID townId, Commodity c, int qty) {
+        return impactValue(townId, c, qty, false);
+    }
+
+    // A recipe output keeps its inputs' current prices; only its own factor moves along the order
+    private double impactValue(UUID townId, Commodity c, int qty, boolean buying) {
+        if (qty <= 1 || c == null || townId == null) return commodityValue(townId, c);
+        long sd = ledger.supplyDemand(townId, c.ordinal());
+        int supply = Math.max(1, MarketLedger.packedSupply(sd));
+        int demand = Math.max(1, MarketLedger.packedDemand(sd));
+        PricingModel m = c.model();
+        int stock = m.usesStock() ? ledger.stock(townId, c.ordinal()) : 0;
+
+        double mean = buying
+                ? m.meanBuyPrice(c, supply, demand, stock, qty)
+                : m.meanSellPrice(c, supply, demand, stock, qty);
+        RecipeGraph.Recipe r = recipes.recipe(c.ordinal());
+        if (r == null) return mean;
+        return RecipeGraph.derive(r, c.baseValue(), mean / c.baseValue(), in -> commodityValue(townId, in));
+    }
+
+    /** Server-wide raw values of every commodity into {@code out} (the global price sheet), as one batch. */
+    public void globalCommodityValues(Commodity[] byOrdinal, double[] out) {
+        int[] supply = new int[byOrdinal.length];
+        int[] demand = new int[byOrdinal.length];
+        for (int ord = 0; ord < byOrdinal.length; ord++) {
+            if (byOrdinal[ord] == null) continue;
+            supply[ord] = ledger.globalSupply(ord);
+            demand[ord] = ledger.globalDemand(ord);
+        }
+        PriceKernel.Columns cols = columns(byOrdinal);
+        kernel.price(cols, supply, demand, out);
+        if (cols.custom.length > 0) repriceCustom(cols, supply, demand, new int[byOrdinal.length], out);
+
+        RecipeGraph graph = recipes;
+        for (int ord : graph.topo()) {
+            if (ord < byOrdinal.length && byOrdinal[ord] != null) {
+                double base = byOrdinal[ord].baseValue();
+                out[ord] = RecipeGraph.derive(graph.recipe(ord), base, out[ord] / base, in -> out[in.ordinal()]);
+            }
+        }
+    }
+
+    // The kernels only know the power law; commodities on other models are priced one by one
+    private static void repriceCustom(PriceKernel.Columns cols, int[] supply, int[] demand, int[] stock, double[] out) {
+        for (int ord : cols.custom) {
+            Commodity c = cols.commodities[ord];
+            out[ord] = c.model().price(c, Math.max(1, supply[ord]), Math.max(1, demand[ord]), stock[ord]);
+        }
+    }
+
+    /** Which batch kernel is in use, for logs and admin output. */
+    public String batchKernel() {
+        return kernel.describe();
+    }
 
-        double base = c.baseValue();
-        double elasticity = c.elasticity();
+    private PriceKernel.Columns columns(Commodity[] byOrdinal) {
+        PriceKernel.Columns cols = columns;
+        if (!cols.covers(byOrdinal)) columns = cols = new PriceKernel.Columns(byOrdinal);
+        return cols;
+    }
+
+    private TownPrices townPrices(UUID townId) {
+        TownPrices tp = cache.get(townId);
+        if (tp != null) return tp;
+
+        // A town with no row quotes at baseline and the ledger never drops it: don't keep an entry
+        if (!ledger.hasTown(townId)) return UNCACHED;
+        tp = cache.computeIfAbsent(townId, k -> new TownPrices(ledger.index().size()));
+        // Cleared between the check and the insert: townDropped has already run, so undo it here
+        if (!ledger.hasTown(townId)) cache.remove(townId, tp);
+        return tp;
+    }
+
+    private double value(TownPrices tp, UUID townId, Commodity c) {
+        int ord = c.ordinal();
+        if (ord < 0 || ord >= tp.width()) return computeValue(townId, c); // commodity added after this town was cached
+
+        Cached e = fresh(tp, ord, c);
+        if (e != null) {
+            hits.increment();
+            return e.value;
+        }
+
+        // Version first: a trade landing after this read bumps it and discards what we store
+        int version = tp.versions.get(ord);
+        int stableUntil = stableUntil(recipes, townId, ord);
+        double value = computeValue(townId, c);
+        tp.values.set(ord, new Cached(version, stableUntil, c, value));
+        misses.increment();
+        return value;
+    }
+
+    // The cached entry if it is still current, else null
+    private static Cached fresh(TownPrices tp, int ord, Commodity c) {
+        Cached e = tp.values.get(ord);
+        if (e != null && e.commodity == c && e.version == tp.versions.get(ord)
+                && (e.stableUntil == Integer.MAX_VALUE || MarketLedger.clockNow() <= e.stableUntil)) {
+            return e;
+        }
+        return null;
+    }
+
+    private double computeValue(UUID townId, Commodity c) {
+        // one consistent read of the row instead of two separate lookups
+        long sd = ledger.supplyDemand(townId, c.ordinal());
+        int supply = Math.max(1, MarketLedger.packedSupply(sd));
+        int demand = Math.max(1, MarketLedger.packedDemand(sd));
 
-        int supply = Math.max(1, ledger.supply(townId, commodityId));
-        int demand = Math.max(1, ledger.demand(townId, commodityId));
+        PricingModel m = c.model();
+        double own = (m == PricingModel.POWER_LAW)
+                ? c.baseValue() * c.curve().apply(demand, supply) // base * (demand/supply)^elasticity
+                : m.price(c, supply, demand, m.usesStock() ? ledger.stock(townId, c.ordinal()) : 0);
 
-        double ratio = (double) demand / (double) supply;
+        RecipeGraph.Recipe r = recipes.recipe(c.ordinal());
+        if (r == null) return own;
+        return RecipeGraph.derive(r, c.baseValue(), own / c.baseValue(), in -> commodityValue(townId, in));
+    }
 
-        // base * (demand/supply)^elasticity
-        return base * Math.pow(ratio, elasticity);
+    // Until when a cached value holds against decay: for a recipe output, also every input's cell
+    private int stableUntil(RecipeGraph graph, UUID townId, int ord) {
+        int until = ledger.supplyDemandStableUntil(townId, ord);
+        int[] up = graph.upstream(ord);
+        if (up != null) for (int in : up) until = Math.min(until, ledger.supplyDemandStableUntil(townId, in));
+        return until;
     }
 
     /**
@@ -34,16 +307,164 @@ public final class PriceEngine {
      * This is what you want for commodity-backed currency value so coins aren't different per town.
      */
     public double globalCommodityValue(String commodityId) {
-        Commodity c = commodities.get(commodityId);
+        return globalCommodityValue(commodities.get(commodityId));
+    }
+
+    public double globalCommodityValue(Commodity c) {
         if (c == null) return 0.0;
 
-        double base = c.baseValue();
-        double elasticity = c.elasticity();
+        int supply = Math.max(1, ledger.globalSupply(c.ordinal()));
+        int demand = Math.max(1, ledger.globalDemand(c.ordinal()));
+
+        double own = c.model().price(c, supply, demand, 0);
+        RecipeGraph.Recipe r = recipes.recipe(c.ordinal());
+        if (r == null) return own;
+        return RecipeGraph.derive(r, c.baseValue(), own / c.baseValue(), this::globalCommodityValue);
+    }
+
+    /* =========================
+       Rankings
+       ========================= */
+
+    /**
+     * Up to {@code k} ordinals of the town's registered commodities ordered by raw town price,
+     * dearest first when {@code dearest}. {@code byOrdinal} is the commodity registration; a new
+     * registration array rebuilds the ranking.
+     */
+    public int[] rankTown(UUID townId, Commodity[] byOrdinal, int k, boolean dearest) {
+        if (townId == null) return new int[0];
+
+        PriceRanking r = rankings.get(townId);
+        if (r == null || !r.covers(byOrdinal)) {
+            PriceRanking fresh = new PriceRanking(byOrdinal);
+            r = !ledger.hasTown(townId)
+                    ? fresh // baseline town: nothing will mark it dirty or drop it, so rank once
+                    : rankings.compute(townId, (id, cur) -> (cur != null && cur.covers(byOrdinal)) ? cur : fresh);
+        }
+
+        return r.top(k, dearest, new PriceRanking.Valuer() {
+            @Override
+            public double value(int ordinal) {
+                return commodityValue(townId, byOrdinal[ordinal]);
+            }
+
+            @Override
+            public int stableUntil(int ordinal) {
+                return PriceEngine.this.stableUntil(recipes, townId, ordinal);
+            }
+
+            @Override
+            public boolean valueAll(double[] out) {
+                commodityValues(townId, byOrdinal, out);
+                return true;
+            }
+        }, MarketLedger.clockNow());
+    }
+
+    /** Like {@link #rankTown}, by server-wide price ({@link #globalCommodityValue}). */
+    public int[] rankGlobal(Commodity[] byOrdinal, int k, boolean dearest) {
+        PriceRanking r = globalRanking;
+        if (!r.covers(byOrdinal)) {
+            synchronized (this) {
+                r = globalRanking;
+                if (!r.covers(byOrdinal)) globalRanking = r = new PriceRanking(byOrdinal);
+            }
+        }
+
+        // With decay on, global totals drift every second with no event, so entries hold for the current second only
+        int now = MarketLedger.clockNow();
+        boolean drifts = ledger.decayHalfLifeSeconds() > 0L;
+        return r.top(k, dearest, new PriceRanking.Valuer() {
+            @Override
+            public double value(int ordinal) {
+                return globalCommodityValue(byOrdinal[ordinal]);
+            }
+
+            @Override
+            public int stableUntil(int ordinal) {
+                return drifts ? now : Integer.MAX_VALUE;
+            }
+
+            @Override
+            public boolean valueAll(double[] out) {
+                globalCommodityValues(byOrdinal, out);
+                return true;
+            }
+        }, now);
+    }
+
+    /** Cache hits and misses since startup. */
+    public long cacheHits() {
+        return hits.sum();
+    }
+
+    public long cacheMisses() {
+        return misses.sum();
+    }
+
+    /* =========================
+       Cache
+       ========================= */
+
+    // One computed value and what it was computed against
+    private record Cached(int version, int stableUntil, Commodity commodity, double value) {}
+
+    private static final class TownPrices {
+        final AtomicIntegerArray versions;
+        final AtomicReferenceArray<Cached> values;
+
+        TownPrices(int width) {
+            versions = new AtomicIntegerArray(width);
+            values = new AtomicReferenceArray<>(width);
+        }
+
+        int width() {
+            return versions.length();
+        }
+    }
+
+    // Runs under the ledger's row lock: only bumps versions or drops whole towns
+    private final class Invalidator implements MarketLedger.ChangeListener {
+        @Override
+        public void supplyDemandChanged(UUID townId, int ordinal) {
+            TownPrices tp = cache.get(townId);
+            if (tp != null && ordinal >= 0 && ordinal < tp.width()) tp.versions.incrementAndGet(ordinal);
+
+            PriceRanking r = rankings.get(townId);
+            if (r != null) r.markDirty(ordinal);
+            globalRanking.markDirty(ordinal);
+
+            // Recipe outputs priced from this cell
+            int[] down = recipes.downstream(ordinal);
+            if (down == null) return;
+            for (int o : down) {
+                if (tp != null && o < tp.width()) tp.versions.incrementAndGet(o);
+                if (r != null) r.markDirty(o);
+                globalRanking.markDirty(o);
+            }
+        }
+
+        // Only models that read stock care; for them a stock change is a price change
+        @Override
+        public void stockChanged(UUID townId, int ordinal) {
+            PriceKernel.Columns cols = columns;
+            if (!cols.stockModels || ordinal < 0 || ordinal >= cols.width) return;
+            Commodity c = cols.commodities[ordinal];
+            if (c != null && c.model().usesStock()) supplyDemandChanged(townId, ordinal);
+        }
 
-        int supply = Math.max(1, ledger.globalSupply(commodityId));
-        int demand = Math.max(1, ledger.globalDemand(commodityId));
+        @Override
+        public void townDropped(UUID townId) {
+            cache.remove(townId);
+            rankings.remove(townId);
+            globalRanking.markAllDirty(); // a cleared town leaves the totals; eviction does not, but is rare enough
+        }
 
-        double ratio = (double) demand / (double) supply;
-        return base * Math.pow(ratio, elasticity);
+        @Override
+        public void allChanged() {
+            cache.clear();
+            rankings.clear();
+            globalRanking.markAllDirty();
+        }
     }
 }
@@ -0,0 +1,152 @@
+package com.brandon.medievalmarkets.market;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Batch pricing: {@code out[i] = base[i] * (demand[i] / supply[i])^elasticity[i]} for a whole
+ * column of commodities (one town's row, or the global totals) at once.
+ *
+ * Two implementations: {@link VectorPriceKernel} (JDK Vector API, SIMD), usable only when the
+ * server runs with {@code --add-modules jdk.incubator.vector}, and the scalar loop here. Both
+ * produce exactly what {@link PowCurve#apply} gives per commodity, so batch and single prices
+ * never disagree. In "auto" mode the vector kernel is only kept if a short startup calibration
+ * shows it beating the scalar loop on this JVM (incubator intrinsics vary a lot between JDKs).
+ */
+class PriceKernel {
+
+    private static final String VECTOR_MODULE = "jdk.incubator.vector";
+    private static final String VECTOR_KERNEL = "com.brandon.medievalmarkets.market.VectorPriceKernel";
+
+    // Calibration: a synthetic row this wide, timed this many passes per round
+    private static final int CALIBRATION_WIDTH = 256;
+    private static final int CALIBRATION_PASSES = 2000;
+    private static final int CALIBRATION_ROUNDS = 4;
+
+    private String note = "";
+
+    /**
+     * The commodity side of a batch, per ordinal: base value and curve, plus the curve's kind and
+     * elasticity unpacked for kernels that work on primitive lanes. Unregistered ordinals price at 0.
+     */
+    static final class Columns {
+        final Commodity[] commodities;
+        final int width;
+        final double[] base;
+        final double[] elasticity;
+        final long[] kind;
+        final PowCurve[] curves;
+        final boolean anyPow; // some curve falls back to Math.pow, which no SIMD lane can match
+        final int[] custom;          // ordinals on a model other than the power law (priced outside kernels)
+        final boolean stockModels;   // some commodity's model reads stock
+
+        Columns(Commodity[] commodities) {
+            this.commodities = commodities;
+            this.width = commodities.length;
+            this.base = new double[width];
+            this.elasticity = new double[width];
+            this.kind = new long[width];
+            this.curves = new PowCurve[width];
+
+            boolean pow = false, stock = false;
+            int[] other = new int[width];
+            int n = 0;
+            for (int i = 0; i < width; i++) {
+                Commodity c = commodities[i];
+                PowCurve curve = (c == null) ? PowCurve.of(0.0) : c.curve();
+                curves[i] = curve;
+                base[i] = (c == null) ? 0.0 : c.baseValue();
+                elasticity[i] = curve.elasticity();
+                kind[i] = curve.kind().ordinal();
+                pow |= curve.kind() == PowCurve.Kind.POW;
+                if (c != null && c.model() != PricingModel.POWER_LAW) {
+                    other[n++] = i;
+                    stock |= c.model().usesStock();
+                }
+            }
+            this.anyPow = pow;
+            this.custom = Arrays.copyOf(other, n);
+            this.stockModels = stock;
+        }
+
+        boolean covers(Commodity[] byOrdinal) {
+            return commodities == byOrdinal;
+        }
+    }
+
+    /**
+     * {@code mode}: "scalar", "vector" (if the module is enabled; scalar otherwise) or "auto"
+     * (vector only if the calibration finds it faster).
+     */
+    static PriceKernel select(String mode) {
+        PriceKernel scalar = new PriceKernel();
+        if ("scalar".equalsIgnoreCase(mode)) return scalar.noted("configured");
+
+        PriceKernel vector = loadVector();
+        if (vector == null) return scalar.noted(VECTOR_MODULE + " not enabled");
+        if ("vector".equalsIgnoreCase(mode)) return vector.noted("configured");
+
+        double v = calibrate(vector), sc = calibrate(scalar);
+        String timings = String.format(Locale.ROOT, "vector %.2f us, scalar %.2f us per %d commodities",
+                v / 1000.0, sc / 1000.0, CALIBRATION_WIDTH);
+        return (v < sc) ? vector.noted(timings) : scalar.noted(timings);
+    }
+
+    private static PriceKernel loadVector() {
+        if (ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) return null;
+        try {
+            Class<?> k = Class.forName(VECTOR_KERNEL, true, PriceKernel.class.getClassLoader());
+            return (PriceKernel) k.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null; // module present but not usable from here
+        }
+    }
+
+    // Best nanoseconds per row over a few rounds, on elasticities like the shipped config's
+    private static double calibrate(PriceKernel kernel) {
+        Commodity[] cs = new Commodity[CALIBRATION_WIDTH];
+        int[] supply = new int[CALIBRATION_WIDTH], demand = new int[CALIBRATION_WIDTH];
+        Random r = new Random(42);
+        for (int i = 0; i < CALIBRATION_WIDTH; i++) {
+            double e = 0.10 + 0.05 * (i % 16);
+            cs[i] = new Commodity("calibration-" + i, null, 1.0, e).withCurve(PowCurve.of(e));
+            supply[i] = 500 + r.nextInt(5000);
+            demand[i] = 500 + r.nextInt(5000);
+        }
+        Columns cols = new Columns(cs);
+        double[] out = new double[CALIBRATION_WIDTH];
+
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < CALIBRATION_ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int p = 0; p < CALIBRATION_PASSES; p++) kernel.price(cols, supply, demand, out);
+            best = Math.min(best, (System.nanoTime() - start) / (double) CALIBRATION_PASSES);
+        }
+        return best;
+    }
+
+    private PriceKernel noted(String note) {
+        this.note = note;
+        return this;
+    }
+
+    String name() {
+        return "scalar";
+    }
+
+    /** Name and why it was chosen, for logs and admin output. */
+    String describe() {
+        return name() + " (" + note + ")";
+    }
+
+    /** Prices ordinals [0, min(width, supply.length)) into {@code out}; counts below 1 count as 1. */
+    void price(Columns cols, int[] supply, int[] demand, double[] out) {
+        int n = Math.min(cols.width, Math.min(supply.length, Math.min(demand.length, out.length)));
+        for (int i = 0; i < n; i++) out[i] = scalar(cols, i, supply[i], demand[i]);
+    }
+
+    static double scalar(Columns cols, int i, int supply, int demand) {
+        return cols.base[i] * cols.curves[i].apply(Math.max(1, demand), Math.max(1, supply));
+    }
+}
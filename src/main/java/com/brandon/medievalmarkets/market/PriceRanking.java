@@ -0,0 +1,215 @@
+package com.brandon.medievalmarkets.market;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Commodities ordered by raw price, kept sorted incrementally.
+ *
+ * One ranking exists per town (plus one server-wide). Ledger writers only set a bit for the
+ * ordinal they changed ({@link #markDirty}, safe under the row lock); the next query re-prices
+ * just those ordinals, plus any whose counter decay has run out, and moves each to its new
+ * position in the sorted order. A top-K or bottom-K read is then a slice of that order.
+ *
+ * The order is a dense int array of ordinals sorted by (value, ordinal) with a reverse position
+ * index, so one update is a binary search and an array shift: cheap at commodity-list sizes.
+ */
+final class PriceRanking {
+
+    /** Prices and expiries of the ordinals being ranked. */
+    interface Valuer {
+        /** NaN (or infinite) leaves the ordinal out of the ranking. */
+        double value(int ordinal);
+
+        /** Last ledger second the value holds without a change event; Integer.MAX_VALUE if forever. */
+        int stableUntil(int ordinal);
+
+        /** Optionally prices every ordinal into {@code out} in one batch; false if not supported. */
+        default boolean valueAll(double[] out) {
+            return false;
+        }
+    }
+
+    // Re-pricing this many ordinals at once goes through Valuer#valueAll when available
+    private static final int BATCH_MIN = 16;
+
+    private final Commodity[] commodities; // the registration this ranking was built against
+
+    // Set from ledger writer threads, drained under the ranking's monitor
+    private final AtomicLongArray dirty;
+    private volatile boolean rebuild = true;
+
+    private int size;
+    private final int[] order;   // ranked ordinals, cheapest first
+    private final int[] pos;     // ordinal -> index in order, -1 if unranked
+    private final double[] value;
+    private final int[] expires;
+    private int nextExpiry = Integer.MAX_VALUE;
+
+    PriceRanking(Commodity[] commodities) {
+        int width = commodities.length;
+        this.commodities = commodities;
+        this.dirty = new AtomicLongArray((width + 63) >>> 6);
+        this.order = new int[width];
+        this.pos = new int[width];
+        this.value = new double[width];
+        this.expires = new int[width];
+    }
+
+    /** True if this ranking was built for exactly this commodity registration. */
+    boolean covers(Commodity[] byOrdinal) {
+        return commodities == byOrdinal;
+    }
+
+    void markDirty(int ordinal) {
+        if (ordinal < 0 || ordinal >= commodities.length) return;
+        int word = ordinal >>> 6;
+        long bit = 1L << ordinal;
+        long cur = dirty.get(word);
+        if ((cur & bit) == 0) dirty.getAndAccumulate(word, bit, (a, b) -> a | b);
+    }
+
+    void markAllDirty() {
+        rebuild = true;
+    }
+
+    /**
+     * Up to {@code k} ordinals, dearest first when {@code dearest}, otherwise cheapest first.
+     * Brings the order up to date first.
+     */
+    synchronized int[] top(int k, boolean dearest, Valuer valuer, int now) {
+        refresh(valuer, now);
+
+        int n = Math.max(0, Math.min(k, size));
+        int[] out = new int[n];
+        for (int i = 0; i < n; i++) out[i] = dearest ? order[size - 1 - i] : order[i];
+        return out;
+    }
+
+    /** Raw value the ranking last saw for an ordinal (valid for ordinals just returned by {@link #top}). */
+    synchronized double valueOf(int ordinal) {
+        return value[ordinal];
+    }
+
+    /* =========================
+       Maintenance
+       ========================= */
+
+    private void refresh(Valuer valuer, int now) {
+        if (rebuild) {
+            rebuild = false;
+            for (int w = 0; w < dirty.length(); w++) dirty.set(w, 0L);
+            rebuildAll(valuer);
+            return;
+        }
+
+        int[] changed = new int[commodities.length];
+        int n = 0;
+        for (int w = 0; w < dirty.length(); w++) {
+            long bits = (dirty.get(w) == 0L) ? 0L : dirty.getAndSet(w, 0L);
+            while (bits != 0L) {
+                int ord = (w << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                if (commodities[ord] != null) changed[n++] = ord;
+            }
+        }
+        reprice(changed, n, valuer);
+
+        if (now > nextExpiry) {
+            n = 0;
+            for (int ord = 0; ord < commodities.length; ord++) {
+                if (commodities[ord] != null && now > expires[ord]) changed[n++] = ord;
+            }
+            reprice(changed, n, valuer);
+
+            int next = Integer.MAX_VALUE;
+            for (int ord = 0; ord < commodities.length; ord++) {
+                if (commodities[ord] != null) next = Math.min(next, expires[ord]);
+            }
+            nextExpiry = next;
+        }
+    }
+
+    // Re-prices a set of ordinals, in one batch when it is large enough
+    private void reprice(int[] ords, int n, Valuer valuer) {
+        double[] batch = (n >= BATCH_MIN) ? new double[commodities.length] : null;
+        if (batch != null) {
+            for (int i = 0; i < n; i++) expires[ords[i]] = valuer.stableUntil(ords[i]); // expiries before values
+            if (!valuer.valueAll(batch)) batch = null;
+        }
+
+        for (int i = 0; i < n; i++) {
+            int ord = ords[i];
+            remove(ord);
+            if (batch != null) value[ord] = batch[ord];
+            else price(ord, valuer);
+            if (ranked(ord)) insert(ord);
+            nextExpiry = Math.min(nextExpiry, expires[ord]);
+        }
+    }
+
+    private void rebuildAll(Valuer valuer) {
+        size = 0;
+        nextExpiry = Integer.MAX_VALUE;
+        Integer[] boxed = new Integer[commodities.length];
+        Arrays.fill(pos, -1);
+
+        for (int ord = 0; ord < commodities.length; ord++) {
+            if (commodities[ord] != null) expires[ord] = valuer.stableUntil(ord); // expiries before values
+        }
+        if (!valuer.valueAll(value)) {
+            for (int ord = 0; ord < commodities.length; ord++) {
+                if (commodities[ord] != null) value[ord] = valuer.value(ord);
+            }
+        }
+
+        for (int ord = 0; ord < commodities.length; ord++) {
+            if (commodities[ord] == null) continue;
+            nextExpiry = Math.min(nextExpiry, expires[ord]);
+            if (ranked(ord)) boxed[size++] = ord;
+        }
+
+        // Boxed sort is fine for a one-off full build
+        Arrays.sort(boxed, 0, size, this::compare);
+        for (int i = 0; i < size; i++) {
+            order[i] = boxed[i];
+            pos[order[i]] = i;
+        }
+    }
+
+    private void price(int ord, Valuer valuer) {
+        expires[ord] = valuer.stableUntil(ord); // expiry first: a later change re-marks the ordinal anyway
+        value[ord] = valuer.value(ord);
+    }
+
+    private boolean ranked(int ord) {
+        return Double.isFinite(value[ord]);
+    }
+
+    private void remove(int ord) {
+        int at = pos[ord];
+        if (at < 0) return;
+        System.arraycopy(order, at + 1, order, at, size - at - 1);
+        size--;
+        pos[ord] = -1;
+        for (int i = at; i < size; i++) pos[order[i]] = i;
+    }
+
+    private void insert(int ord) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(order[mid], ord) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        System.arraycopy(order, lo, order, lo + 1, size - lo);
+        order[lo] = ord;
+        size++;
+        for (int i = lo; i < size; i++) pos[order[i]] = i;
+    }
+
+    private int compare(int a, int b) {
+        int c = Double.compare(value[a], value[b]);
+        return (c != 0) ? c : Integer.compare(a, b);
+    }
+}
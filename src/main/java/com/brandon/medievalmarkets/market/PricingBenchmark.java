@@ -0,0 +1,102 @@
+package com.brandon.medievalmarkets.market;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays one synthetic trade stream against several {@link PricingModel}s and reports what each
+ * costs per quote and how steady its prices are.
+ *
+ * The stream is generated once, independent of any model: every commodity starts at the ledger
+ * baseline with a small stock, and each trade buys or sells 1-64 units of a random commodity,
+ * with a slowly drifting buy/sell bias so markets go through shortages and gluts. Every model then
+ * quotes the same sequence of states, so the numbers compare like with like.
+ */
+public final class PricingBenchmark {
+
+    /**
+     * One model's run. {@code nsPerQuote}: mean time of one price call. {@code volatility}: RMS of
+     * the per-trade change in log price, in percent. {@code maxSwing}: the largest max/min price
+     * ratio any commodity saw over the run.
+     */
+    public record Result(String model, double nsPerQuote, double volatility, double maxSwing) {}
+
+    private PricingBenchmark() {}
+
+    static List<Result> run(List<PricingModel> models, Commodity[] commodities, int trades, long seed) {
+        List<Commodity> live = new ArrayList<>();
+        for (Commodity c : commodities) if (c != null) live.add(c);
+        List<Result> out = new ArrayList<>();
+        if (live.isEmpty() || trades <= 0) return out;
+
+        // The stream: the state each quote sees
+        int n = live.size();
+        int[] pick = new int[trades], supplyAt = new int[trades], demandAt = new int[trades], stockAt = new int[trades];
+        int[] supply = new int[n], demand = new int[n], stock = new int[n];
+        Arrays.fill(supply, MarketLedger.BASELINE);
+        Arrays.fill(demand, MarketLedger.BASELINE);
+        Arrays.fill(stock, 64);
+
+        Random r = new Random(seed);
+        double bias = 0.5;
+        for (int t = 0; t < trades; t++) {
+            bias = Math.max(0.1, Math.min(0.9, bias + (r.nextDouble() - 0.5) * 0.02));
+            int i = r.nextInt(n);
+            int qty = 1 + r.nextInt(64);
+            if (r.nextDouble() < bias) {
+                demand[i] = Math.min(MarketLedger.MAX_COUNT, demand[i] + qty);
+                stock[i] = Math.max(0, stock[i] - qty);
+            } else {
+                supply[i] = Math.min(MarketLedger.MAX_COUNT, supply[i] + qty);
+                stock[i] += qty;
+            }
+            pick[t] = i;
+            supplyAt[t] = supply[i];
+            demandAt[t] = demand[i];
+            stockAt[t] = stock[i];
+        }
+
+        Commodity[] cs = live.toArray(new Commodity[0]);
+        double[] prices = new double[trades];
+        for (PricingModel m : models) {
+            Commodity[] bound = new Commodity[n];
+            for (int i = 0; i < n; i++) bound[i] = cs[i].withModel(m);
+
+            // Warm up, then time the whole replay
+            for (int t = 0; t < Math.min(trades, 20_000); t++) {
+                prices[t] = m.price(bound[pick[t]], supplyAt[t], demandAt[t], stockAt[t]);
+            }
+            long start = System.nanoTime();
+            for (int t = 0; t < trades; t++) {
+                prices[t] = m.price(bound[pick[t]], supplyAt[t], demandAt[t], stockAt[t]);
+            }
+            double ns = (System.nanoTime() - start) / (double) trades;
+
+            double[] last = new double[n], lo = new double[n], hi = new double[n];
+            double sq = 0.0;
+            int moves = 0;
+            for (int t = 0; t < trades; t++) {
+                int i = pick[t];
+                double p = prices[t];
+                if (last[i] > 0.0 && p > 0.0) {
+                    double d = Math.log(p / last[i]);
+                    sq += d * d;
+                    moves++;
+                    lo[i] = Math.min(lo[i], p);
+                    hi[i] = Math.max(hi[i], p);
+                } else {
+                    lo[i] = hi[i] = p;
+                }
+                last[i] = p;
+            }
+
+            double swing = 1.0;
+            for (int i = 0; i < n; i++) if (lo[i] > 0.0) swing = Math.max(swing, hi[i] / lo[i]);
+            double vol = (moves == 0) ? 0.0 : 100.0 * Math.sqrt(sq / moves);
+            out.add(new Result(m.name(), ns, vol, swing));
+        }
+        return out;
+    }
+}
@@ -0,0 +1,167 @@
+package com.brandon.medievalmarkets.market;
+
+/**
+ * How a commodity's raw price follows its town's supply, demand and stock.
+ *
+ * {@link #POWER_LAW} is the original {@code base * (demand/supply)^elasticity} and the only model
+ * the batch kernels evaluate; {@link PriceEngine} prices every other model one cell at a time.
+ * Models are chosen globally ({@code market.pricing.model}) or per commodity ({@code model:}).
+ *
+ * Counts passed in are at least 1. They are doubles so bulk orders can integrate along the
+ * curve; the ledger itself only holds whole counts. Server-wide prices pass a stock of 0.
+ */
+public interface PricingModel {
+
+    /** Config name. */
+    String name();
+
+    /** Raw unit price of {@code c} at these counts. */
+    double price(Commodity c, double supply, double demand, int stock);
+
+    /** Whether {@link #price} reads {@code stock}; if so, stock changes invalidate cached prices. */
+    default boolean usesStock() {
+        return false;
+    }
+
+    /**
+     * Mean unit price of buying {@code qty} units in one order (each unit adds one to demand).
+     * Defaults to Simpson's rule over {@value #SIMPSON_STEPS} steps with unit k priced at its
+     * midpoint, so any quantity costs the same.
+     */
+    default double meanBuyPrice(Commodity c, int supply, int demand, int stock, int qty) {
+        double x0 = demand - 0.5;
+        return simpson(x -> price(c, supply, Math.max(1.0, x), stock), x0, x0 + qty) / qty;
+    }
+
+    /** Mean unit price of selling {@code qty} units in one order (each unit adds one to supply). */
+    default double meanSellPrice(Commodity c, int supply, int demand, int stock, int qty) {
+        double y0 = supply - 0.5;
+        return simpson(y -> price(c, Math.max(1.0, y), demand, stock), y0, y0 + qty) / qty;
+    }
+
+    int SIMPSON_STEPS = 16;
+
+    private static double simpson(java.util.function.DoubleUnaryOperator f, double a, double b) {
+        double h = (b - a) / SIMPSON_STEPS;
+        double sum = f.applyAsDouble(a) + f.applyAsDouble(b);
+        for (int i = 1; i < SIMPSON_STEPS; i++) sum += f.applyAsDouble(a + i * h) * ((i & 1) == 1 ? 4 : 2);
+        return sum * h / 3.0;
+    }
+
+    /* =========================
+       Built-in models
+       ========================= */
+
+    /**
+     * {@code base * (demand/supply)^e}, through the commodity's {@link PowCurve}. Fractional counts
+     * and bulk orders evaluate the curve at whole counts and scale by the exact remainder, so an
+     * order prices from the same curve as the cached unit price.
+     */
+    PricingModel POWER_LAW = new PricingModel() {
+        @Override
+        public String name() {
+            return "power-law";
+        }
+
+        @Override
+        public double price(Commodity c, double supply, double demand, int stock) {
+            int s = Math.max(1, (int) supply), d = Math.max(1, (int) demand);
+            double f = c.curve().apply(d, s);
+            if (s == supply && d == demand) return c.baseValue() * f;
+            return c.baseValue() * f * Math.pow((demand / d) * (s / supply), c.elasticity());
+        }
+
+        // Closed form: the integral of base * (x/s)^e over the counts the order moves, with
+        // (x0/s)^e split into the curve at (demand, supply) and the half-unit offset (x0/demand)^e
+        @Override
+        public double meanBuyPrice(Commodity c, int supply, int demand, int stock, int qty) {
+            double e = c.elasticity();
+            double x0 = demand - 0.5;
+            return c.baseValue() * c.curve().apply(demand, supply) * Math.pow(x0 / demand, e)
+                    * meanGrowth(e + 1.0, x0, qty);
+        }
+
+        @Override
+        public double meanSellPrice(Commodity c, int supply, int demand, int stock, int qty) {
+            double e = c.elasticity();
+            double y0 = supply - 0.5;
+            return c.baseValue() * c.curve().apply(demand, supply) * Math.pow(supply / y0, e)
+                    * meanGrowth(1.0 - e, y0, qty);
+        }
+    };
+
+    // ((x0 + n)^a - x0^a) / (a * n * x0^(a-1)): the mean of (x/x0)^(a-1) over [x0, x0 + n],
+    // via expm1/log1p so small orders against large counts do not cancel; a = 0 is the log limit
+    private static double meanGrowth(double a, double x0, int n) {
+        double l = Math.log1p(n / x0);
+        double g = (Math.abs(a) < 1e-12) ? l : Math.expm1(a * l) / a;
+        return g * x0 / n;
+    }
+
+    /**
+     * Power law near equilibrium that saturates: {@code base * exp(A * tanh(e * ln(d/s) / A))}
+     * with {@code A = ln(maxMultiplier)}, so the price stays within {@code base / maxMultiplier}
+     * and {@code base * maxMultiplier} however lopsided the counts get.
+     */
+    static PricingModel logistic(double maxMultiplier) {
+        double a = Math.log(Math.max(1.0001, maxMultiplier));
+        return new PricingModel() {
+            @Override
+            public String name() {
+                return "logistic";
+            }
+
+            @Override
+            public double price(Commodity c, double supply, double demand, int stock) {
+                double x = Math.log(demand / supply);
+                return c.baseValue() * Math.exp(a * Math.tanh(c.elasticity() * x / a));
+            }
+        };
+    }
+
+    /**
+     * Power law, discounted by the town's stock: {@code * (reference / (reference + stock))^weight}.
+     * A town sitting on a large stock sells cheaper than one that has none.
+     */
+    static PricingModel stockWeighted(double reference, double weight) {
+        double ref = Math.max(1.0, reference);
+        return new PricingModel() {
+            @Override
+            public String name() {
+                return "stock-weighted";
+            }
+
+            @Override
+            public double price(Commodity c, double supply, double demand, int stock) {
+                double p = POWER_LAW.price(c, supply, demand, stock);
+                return (stock <= 0) ? p : p * Math.pow(ref / (ref + stock), weight);
+            }
+
+            @Override
+            public boolean usesStock() {
+                return true;
+            }
+        };
+    }
+
+    /** {@code (1 - weight) * first + weight * second}. */
+    static PricingModel blend(PricingModel first, PricingModel second, double weight) {
+        double w = Math.max(0.0, Math.min(1.0, weight));
+        return new PricingModel() {
+            @Override
+            public String name() {
+                return "blend";
+            }
+
+            @Override
+            public double price(Commodity c, double supply, double demand, int stock) {
+                return (1.0 - w) * first.price(c, supply, demand, stock) + w * second.price(c, supply, demand, stock);
+            }
+
+            @Override
+            public boolean usesStock() {
+                return first.usesStock() || second.usesStock();
+            }
+        };
+    }
+}
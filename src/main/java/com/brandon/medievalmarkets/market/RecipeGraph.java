@@ -0,0 +1,207 @@
+package com.brandon.medievalmarkets.market;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Processed goods priced from their inputs: a DAG over commodity ordinals built from config.
+ *
+ * A recipe turns {@code qty} of each input into {@code yield} units of its output. Its input cost
+ * is {@code markup * sum(qty * input price) / yield}, and the output's price is derived from it by
+ * the recipe's {@link Mode}. Inputs may themselves be derived, so prices resolve in topological
+ * order; recipes on a cycle, or fed by one, are dropped when the graph is built.
+ *
+ * For invalidation each ordinal knows its downstream closure (every recipe output that depends on
+ * it, in topological order) and each derived ordinal its upstream closure. A trade on an input
+ * touches only those outputs, not every commodity.
+ */
+final class RecipeGraph {
+
+    /** How an output's price follows its input cost. */
+    enum Mode {
+        /** Own market price, but never below the input cost. */
+        FLOOR,
+        /** Input cost takes the place of the base value: {@code cost * (demand/supply)^e}. */
+        ANCHOR
+    }
+
+    /** One output's recipe. */
+    record Recipe(int output, Commodity[] inputs, double[] qty, double yield, double markup, Mode mode) {}
+
+    /** A recipe as read from config, by commodity id. */
+    record Spec(String output, Map<String, Double> inputs, double yield, double markup, Mode mode) {}
+
+    static final RecipeGraph EMPTY = new RecipeGraph(new Recipe[0], new int[0], new int[0][], new int[0][]);
+
+    private final Recipe[] byOutput;     // ordinal -> recipe, or null
+    private final int[] topo;            // derived ordinals, inputs before outputs
+    private final int[][] downstream;    // ordinal -> derived ordinals depending on it, topo order
+    private final int[][] upstream;      // derived ordinal -> every ordinal it depends on
+
+    private RecipeGraph(Recipe[] byOutput, int[] topo, int[][] downstream, int[][] upstream) {
+        this.byOutput = byOutput;
+        this.topo = topo;
+        this.downstream = downstream;
+        this.upstream = upstream;
+    }
+
+    /**
+     * Builds the graph over {@code width} ordinals. {@code ordinals} maps commodity ids to ordinals;
+     * recipes naming unknown commodities or sitting on a cycle are skipped and reported to
+     * {@code problems}.
+     */
+    static RecipeGraph build(List<Spec> specs, Map<String, Commodity> ordinals, int width, List<String> problems) {
+        Recipe[] byOutput = new Recipe[width];
+
+        for (Spec s : specs) {
+            Commodity out = ordinals.get(s.output());
+            if (out == null || out.ordinal() < 0 || out.ordinal() >= width) {
+                problems.add("unknown output '" + s.output() + "'");
+                continue;
+            }
+            if (s.inputs().isEmpty() || !(s.yield() > 0) || !(s.markup() > 0)) {
+                problems.add("'" + s.output() + "' needs inputs, a positive yield and a positive markup");
+                continue;
+            }
+
+            Commodity[] in = new Commodity[s.inputs().size()];
+            double[] qty = new double[in.length];
+            int n = 0;
+            boolean ok = true;
+            for (Map.Entry<String, Double> e : s.inputs().entrySet()) {
+                Commodity c = ordinals.get(e.getKey());
+                if (c == null || c.ordinal() < 0 || c.ordinal() >= width || !(e.getValue() > 0)) {
+                    problems.add("'" + s.output() + "': bad input '" + e.getKey() + "'");
+                    ok = false;
+                    break;
+                }
+                in[n] = c;
+                qty[n++] = e.getValue();
+            }
+            if (ok) byOutput[out.ordinal()] = new Recipe(out.ordinal(), in, qty, s.yield(), s.markup(), s.mode());
+        }
+
+        // Kahn over derived nodes: an output is ready once all of its derived inputs are placed
+        int[] pending = new int[width];
+        List<List<Integer>> consumers = new ArrayList<>(width);
+        for (int i = 0; i < width; i++) consumers.add(new ArrayList<>());
+        for (Recipe r : byOutput) {
+            if (r == null) continue;
+            for (Commodity c : r.inputs()) {
+                consumers.get(c.ordinal()).add(r.output());
+                if (byOutput[c.ordinal()] != null) pending[r.output()]++;
+            }
+        }
+
+        ArrayDeque<Integer> ready = new ArrayDeque<>();
+        for (Recipe r : byOutput) if (r != null && pending[r.output()] == 0) ready.add(r.output());
+
+        int[] topo = new int[width];
+        int placed = 0;
+        while (!ready.isEmpty()) {
+            int o = ready.poll();
+            topo[placed++] = o;
+            for (int next : consumers.get(o)) {
+                if (byOutput[next] != null && --pending[next] == 0) ready.add(next);
+            }
+        }
+
+        for (Recipe r : byOutput) {
+            if (r != null && pending[r.output()] > 0) {
+                problems.add("'" + commodityId(ordinals, r.output()) + "' is on (or fed by) a recipe cycle");
+            }
+        }
+        for (int i = 0; i < width; i++) if (byOutput[i] != null && pending[i] > 0) byOutput[i] = null;
+        topo = Arrays.copyOf(topo, placed);
+
+        // Closures: walk topo order once so each list comes out in topological order
+        boolean[][] reach = new boolean[width][];
+        int[][] upstream = new int[width][];
+        for (int o : topo) {
+            boolean[] up = new boolean[width];
+            for (Commodity c : byOutput[o].inputs()) {
+                int in = c.ordinal();
+                up[in] = true;
+                if (reach[in] != null) for (int k = 0; k < width; k++) up[k] |= reach[in][k];
+            }
+            reach[o] = up;
+            upstream[o] = indices(up);
+        }
+
+        int[][] downstream = new int[width][];
+        List<List<Integer>> down = new ArrayList<>(width);
+        for (int i = 0; i < width; i++) down.add(new ArrayList<>());
+        for (int o : topo) for (int u : upstream[o]) down.get(u).add(o); // o visited in topo order
+        for (int i = 0; i < width; i++) {
+            if (!down.get(i).isEmpty()) downstream[i] = down.get(i).stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        return new RecipeGraph(byOutput, topo, downstream, upstream);
+    }
+
+    private static int[] indices(boolean[] set) {
+        int n = 0;
+        for (boolean b : set) if (b) n++;
+        int[] out = new int[n];
+        n = 0;
+        for (int i = 0; i < set.length; i++) if (set[i]) out[n++] = i;
+        return out;
+    }
+
+    private static String commodityId(Map<String, Commodity> ordinals, int ord) {
+        for (Commodity c : ordinals.values()) if (c.ordinal() == ord) return c.id();
+        return "#" + ord;
+    }
+
+    /* =========================
+       Queries
+       ========================= */
+
+    boolean isEmpty() {
+        return topo.length == 0;
+    }
+
+    int recipes() {
+        return topo.length;
+    }
+
+    /** The recipe producing this ordinal, or null for a plain commodity. */
+    Recipe recipe(int ordinal) {
+        return (ordinal >= 0 && ordinal < byOutput.length) ? byOutput[ordinal] : null;
+    }
+
+    /** Derived ordinals, inputs before outputs. */
+    int[] topo() {
+        return topo;
+    }
+
+    /** Derived ordinals whose price depends on this one, in topological order; null if none. */
+    int[] downstream(int ordinal) {
+        return (ordinal >= 0 && ordinal < downstream.length) ? downstream[ordinal] : null;
+    }
+
+    /** Every ordinal a derived ordinal depends on; null for a plain commodity. */
+    int[] upstream(int ordinal) {
+        return (ordinal >= 0 && ordinal < upstream.length) ? upstream[ordinal] : null;
+    }
+
+    /**
+     * Price of a recipe output whose own market price is {@code base * factor}, where
+     * {@code factor} is {@code (demand/supply)^e}; {@code price} gives each input's price.
+     */
+    static double derive(Recipe r, double base, double factor, ToDoubleFunction<Commodity> price) {
+        double cost = 0.0;
+        Commodity[] in = r.inputs();
+        for (int i = 0; i < in.length; i++) cost += r.qty()[i] * price.applyAsDouble(in[i]);
+        cost = r.markup() * cost / r.yield();
+
+        return switch (r.mode()) {
+            case FLOOR -> Math.max(base * factor, cost);
+            case ANCHOR -> cost * factor;
+        };
+    }
+}
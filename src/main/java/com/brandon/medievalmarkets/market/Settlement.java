@@ -0,0 +1,175 @@
+package com.brandon.medievalmarkets.market;
+
+import java.math.BigInteger;
+
+/**
+ * Turns raw prices into quotes and trade totals in whole coins.
+ *
+ * {@link #DOUBLE} is the original arithmetic: unit prices in double, rounded to coins where used.
+ * {@link #FIXED} keeps everything after the price engine in micro-coins ({@value #MICROS} per coin)
+ * held in longs, so a given raw price, spread and tax rate settle to the same coins on every JVM.
+ * The raw price itself still comes from double math ({@link PowCurve}, {@link PricingModel}) that
+ * may differ by an ulp between JVMs, enough to move a price sitting on a half micro-coin by one.
+ * Fixed-point rounding policy:
+ * <ul>
+ *   <li>the engine's raw price is rounded half-up to a micro-coin, once, at the quote;</li>
+ *   <li>the spread and the sales-tax rate are rounded half-up to whole parts per million;</li>
+ *   <li>everything afterwards is exact integer math, rounded only toward the town: buy prices,
+ *       buy totals and tax round up, sell prices and payouts round down.</li>
+ * </ul>
+ * Totals and tax saturate at Long.MAX_VALUE instead of overflowing.
+ */
+public abstract class Settlement {
+
+    static final long MICROS = 1_000_000L;
+
+    // Same floor as the double path's 0.0001 clamp, so fresh commodities still quote
+    private static final long MIN_RAW_MICROS = 100L;
+
+    /** Quote for one unit at {@code raw} with the given spread (fraction, e.g. 0.08). */
+    abstract MarketService.Quote quote(double raw, double spread);
+
+    /** Coins the player pays for {@code qty} units, before tax. */
+    abstract long buyTotal(MarketService.Quote q, long qty);
+
+    /** Coins the town pays for {@code qty} units, before tax. */
+    abstract long sellTotal(MarketService.Quote q, long qty);
+
+    /** Sales tax in coins on {@code coins} at {@code rate} (fraction), rounded up. */
+    abstract long tax(long coins, double rate);
+
+    /** "double" or "fixed-point". */
+    public abstract String name();
+
+    /* =========================
+       Double (original)
+       ========================= */
+
+    static final Settlement DOUBLE = new Settlement() {
+        @Override
+        MarketService.Quote quote(double raw, double spread) {
+            // raw can be 0 early; we keep it 0 for discovery but clamp to a tiny epsilon for unit math
+            double safeRaw = Math.max(0.0001, raw);
+            double buyUnit = safeRaw * (1.0 + spread);
+            double sellUnit = safeRaw * (1.0 - spread);
+            return new MarketService.Quote(raw, buyUnit, sellUnit, ceilCoins(buyUnit), floorCoins(sellUnit),
+                    toMicros(buyUnit), toMicros(sellUnit));
+        }
+
+        @Override
+        long buyTotal(MarketService.Quote q, long qty) {
+            return ceilCoins(q.buyUnit() * (double) qty);
+        }
+
+        @Override
+        long sellTotal(MarketService.Quote q, long qty) {
+            return floorCoins(q.sellUnit() * (double) qty);
+        }
+
+        @Override
+        long tax(long coins, double rate) {
+            if (coins <= 0 || !(rate > 0.0)) return 0L;
+            return Math.max(0L, ceilCoins((double) coins * rate));
+        }
+
+        @Override
+        public String name() {
+            return "double";
+        }
+    };
+
+    /* =========================
+       Fixed point
+       ========================= */
+
+    static final Settlement FIXED = new Settlement() {
+        @Override
+        MarketService.Quote quote(double raw, double spread) {
+            long rawMicros = Math.max(MIN_RAW_MICROS, toMicros(raw));
+            long spreadPpm = toMicros(spread);
+            long buyMicros = mulDivCeil(rawMicros, MICROS + spreadPpm);
+            long sellMicros = (spreadPpm >= MICROS) ? 0L : mulDivFloor(rawMicros, MICROS - spreadPpm);
+            return new MarketService.Quote(raw, buyMicros / (double) MICROS, sellMicros / (double) MICROS,
+                    ceilDiv(buyMicros, MICROS), Math.floorDiv(sellMicros, MICROS), buyMicros, sellMicros);
+        }
+
+        @Override
+        long buyTotal(MarketService.Quote q, long qty) {
+            return (qty <= 0) ? 0L : mulDivCeil(q.buyMicros(), qty);
+        }
+
+        @Override
+        long sellTotal(MarketService.Quote q, long qty) {
+            return (qty <= 0) ? 0L : mulDivFloor(q.sellMicros(), qty);
+        }
+
+        @Override
+        long tax(long coins, double rate) {
+            long ppm = toMicros(rate);
+            if (coins <= 0 || ppm <= 0) return 0L;
+            return mulDivCeil(coins, ppm);
+        }
+
+        @Override
+        public String name() {
+            return "fixed-point";
+        }
+    };
+
+    static Settlement of(boolean fixedPoint) {
+        return fixedPoint ? FIXED : DOUBLE;
+    }
+
+    /* =========================
+       Helpers
+       ========================= */
+
+    /** Half-up to micro-units (or ppm); 0 for non-finite or non-positive input. */
+    static long toMicros(double v) {
+        if (!Double.isFinite(v) || v <= 0) return 0L;
+        double m = Math.floor(v * MICROS + 0.5);
+        return (m >= (double) Long.MAX_VALUE) ? Long.MAX_VALUE : (long) m;
+    }
+
+    static long ceilCoins(double v) {
+        if (!Double.isFinite(v) || v <= 0) return 0L;
+        double c = Math.ceil(v);
+        if (c > (double) Long.MAX_VALUE) return Long.MAX_VALUE;
+        return (long) c;
+    }
+
+    static long floorCoins(double v) {
+        if (!Double.isFinite(v) || v <= 0) return 0L;
+        double f = Math.floor(v);
+        if (f > (double) Long.MAX_VALUE) return Long.MAX_VALUE;
+        return (long) f;
+    }
+
+    // Positive operands only (micros, ppm, quantities)
+    private static long ceilDiv(long a, long b) {
+        return -Math.floorDiv(-a, b);
+    }
+
+    private static final BigInteger BIG_MICROS = BigInteger.valueOf(MICROS);
+
+    // a * b / MICROS rounded up, saturating at Long.MAX_VALUE; the product is exact, in 128 bits
+    // only when it overflows a long. Non-negative operands only
+    private static long mulDivCeil(long a, long b) {
+        long hi = Math.multiplyHigh(a, b);
+        long lo = a * b;
+        if (hi == 0 && lo >= 0) return ceilDiv(lo, MICROS);
+        return saturate(BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)).add(BIG_MICROS.subtract(BigInteger.ONE)).divide(BIG_MICROS));
+    }
+
+    // a * b / MICROS rounded down, saturating at Long.MAX_VALUE. Non-negative operands only
+    private static long mulDivFloor(long a, long b) {
+        long hi = Math.multiplyHigh(a, b);
+        long lo = a * b;
+        if (hi == 0 && lo >= 0) return lo / MICROS;
+        return saturate(BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)).divide(BIG_MICROS));
+    }
+
+    private static long saturate(BigInteger v) {
+        return (v.bitLength() < Long.SIZE) ? v.longValue() : Long.MAX_VALUE;
+    }
+}
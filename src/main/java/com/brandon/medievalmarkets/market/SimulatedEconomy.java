@@ -0,0 +1,142 @@
+package com.brandon.medievalmarkets.market;
+
+import org.bukkit.configuration.ConfigurationSection;
+
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory stand-in for MPCBridge, so the trade path can run (and be measured) without a live
+ * economy: in standalone mode when {@code standalone.simulated-economy.enabled} is set, in
+ * {@link EconomyBenchmark}, and in the trade-path tests (SimulatedEconomyTradeTest).
+ *
+ * Balances are per wallet and currency, start at {@code startingBalance} and live only as long as
+ * the instance. Withdrawals check and take atomically per wallet, so concurrent callers see the
+ * same semantics a real economy would: one of two racing withdrawals can be refused.
+ *
+ * Every call first waits a random latency, log-normal with the profile's median and p99, and may
+ * then stall for {@code stallMillis} (to push callers past their deadlines) or throw (an injected
+ * failure, always before any balance is touched).
+ */
+public final class SimulatedEconomy implements EconomyBackend {
+
+    /** Latency and failure profile; rates are per call, 0 to 1. */
+    public record Profile(double startingBalance, double medianMillis, double p99Millis,
+                          double failureRate, double stallRate, long stallMillis) {
+
+        public static final Profile DEFAULT = new Profile(10_000.0, 1.0, 10.0, 0.0, 0.0, 5_000L);
+
+        /** Reads a {@code simulated-economy} section; missing keys take {@link #DEFAULT}'s values. */
+        public static Profile of(ConfigurationSection sec) {
+            if (sec == null) return DEFAULT;
+            return new Profile(
+                    sec.getDouble("starting-balance", DEFAULT.startingBalance()),
+                    sec.getDouble("latency.median-ms", DEFAULT.medianMillis()),
+                    sec.getDouble("latency.p99-ms", DEFAULT.p99Millis()),
+                    sec.getDouble("failure-rate", DEFAULT.failureRate()),
+                    sec.getDouble("stall-rate", DEFAULT.stallRate()),
+                    sec.getLong("stall-ms", DEFAULT.stallMillis()));
+        }
+    }
+
+    private record Key(UUID walletId, String currency) {
+        Key {
+            currency = currency.toUpperCase(Locale.ROOT);
+        }
+    }
+
+    // z-score of the 99th percentile of a standard normal
+    private static final double Z99 = 2.3263478740408408;
+
+    private final Profile profile;
+    private final double mu;     // ln(median latency in ns)
+    private final double sigma;  // log-normal shape from median and p99
+    private final ConcurrentHashMap<Key, Double> balances = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public SimulatedEconomy(Profile profile) {
+        this.profile = profile;
+        double median = Math.max(0.0, profile.medianMillis()) * 1e6;
+        double p99 = Math.max(median, profile.p99Millis() * 1e6);
+        this.mu = (median > 0.0) ? Math.log(median) : Double.NEGATIVE_INFINITY;
+        this.sigma = (median > 0.0) ? Math.log(p99 / median) / Z99 : 0.0;
+    }
+
+    public Profile profile() {
+        return profile;
+    }
+
+    @Override
+    public String name() {
+        return "simulated";
+    }
+
+    @Override
+    public double balance(UUID walletId, String currency) {
+        enter();
+        try {
+            return balances.getOrDefault(new Key(walletId, currency), profile.startingBalance());
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public boolean withdraw(UUID walletId, String currency, double amount) {
+        if (!(amount >= 0.0)) throw new IllegalArgumentException("amount " + amount);
+        enter();
+        try {
+            boolean[] taken = new boolean[1];
+            balances.compute(new Key(walletId, currency), (k, b) -> {
+                double have = (b == null) ? profile.startingBalance() : b;
+                if (have < amount) return have;
+                taken[0] = true;
+                return have - amount;
+            });
+            return taken[0];
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void deposit(UUID walletId, String currency, double amount) {
+        if (!(amount >= 0.0)) throw new IllegalArgumentException("amount " + amount);
+        enter();
+        try {
+            balances.merge(new Key(walletId, currency), profile.startingBalance() + amount, (b, ignored) -> b + amount);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /** Balance without latency or failure injection (for checks). */
+    double peek(UUID walletId, String currency) {
+        return balances.getOrDefault(new Key(walletId, currency), profile.startingBalance());
+    }
+
+    /** Calls currently inside the economy (waiting out their latency or touching a balance). */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    // Latency, then maybe a stall, then maybe an injected failure; counted in flight throughout
+    private void enter() {
+        inFlight.incrementAndGet();
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        if (mu != Double.NEGATIVE_INFINITY) {
+            LockSupport.parkNanos((long) Math.exp(mu + sigma * r.nextGaussian()));
+        }
+        if (profile.stallRate() > 0.0 && r.nextDouble() < profile.stallRate()) {
+            LockSupport.parkNanos(profile.stallMillis() * 1_000_000L);
+        }
+        if (profile.failureRate() > 0.0 && r.nextDouble() < profile.failureRate()) {
+            inFlight.decrementAndGet();
+            throw new IllegalStateException("injected economy failure");
+        }
+    }
+}
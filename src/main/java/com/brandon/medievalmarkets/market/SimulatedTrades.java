@@ -0,0 +1,142 @@
+package com.brandon.medievalmarkets.market;
+
+import com.brandon.medievalmarkets.market.storage.TreasuryNetJournal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Synthetic traders for {@link EconomyBenchmark} and the trade-path tests: a fresh
+ * {@link SimulatedEconomy} behind an {@link EconomyGuard}, a set of player and town wallets, and
+ * the {@link TradeLegs} MarketService settles with, the town side direct or netted.
+ *
+ * Every coin must stay accounted for: once trading stops and the economy is quiet,
+ * {@link #total} differs from its starting value by exactly {@link #reported}, what the trade path
+ * itself knows it created or destroyed.
+ */
+final class SimulatedTrades {
+
+    static final String CURRENCY = "SIM";
+
+    /** One synthetic trade of 1-100 coins between a player and a town. */
+    record Trade(boolean buy, UUID player, UUID town, long coins) {}
+
+    private final SimulatedEconomy sim;
+    private final EconomyGuard guard;
+    private final TreasuryNetting netting; // null when the town side goes straight to the economy
+    private final TradeLegs legs;
+    private final UUID[] players;
+    private final UUID[] towns;
+
+    private SimulatedTrades(SimulatedEconomy.Profile profile, int players, int towns, File netJournal) {
+        Logger log = silent();
+        TreasuryCache cache = new TreasuryCache(0L); // balances straight from the economy
+        this.sim = new SimulatedEconomy(profile);
+        this.guard = new EconomyGuard(sim, log, () -> false); // never on a server thread
+        if (netJournal != null) {
+            this.netting = new TreasuryNetting(guard, cache, new TreasuryNetJournal(netJournal, log, false), log);
+        } else {
+            this.netting = null;
+        }
+        this.legs = new TradeLegs(guard, (netting != null)
+                ? TradeLegs.netted(netting, (t, cur) -> cache.balance(t, cur, this::balanceSafe))
+                : TradeLegs.direct(guard, cache), cache, log);
+
+        this.players = new UUID[players];
+        this.towns = new UUID[towns];
+        for (int i = 0; i < players; i++) this.players[i] = new UUID(0xB0L, i);
+        for (int i = 0; i < towns; i++) this.towns[i] = new UUID(0x70L, i);
+    }
+
+    /** Town side straight to the economy. */
+    static SimulatedTrades direct(SimulatedEconomy.Profile profile, int players, int towns) {
+        return new SimulatedTrades(profile, players, towns, null);
+    }
+
+    /** Town side netted, journaled to {@code journal} (without fsync). */
+    static SimulatedTrades netted(SimulatedEconomy.Profile profile, int players, int towns, File journal)
+            throws IOException {
+        SimulatedTrades s = new SimulatedTrades(profile, players, towns, journal);
+        s.netting.open();
+        return s;
+    }
+
+    EconomyGuard guard() {
+        return guard;
+    }
+
+    Trade next() {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        return new Trade(r.nextBoolean(), players[r.nextInt(players.length)], towns[r.nextInt(towns.length)],
+                1 + r.nextInt(100));
+    }
+
+    TradeLegs.Outcome settle(Trade t) {
+        return t.buy()
+                ? legs.buy(t.player(), t.town(), CURRENCY, t.coins())
+                : legs.sell(t.player(), t.town(), CURRENCY, t.coins());
+    }
+
+    /** Flushes the treasury nets, if netted; returns the transfers made. */
+    int flush() {
+        return (netting == null) ? 0 : netting.flush();
+    }
+
+    /**
+     * Waits up to {@code maxMillis} for the economy to go quiet. Late reversals of timed-out calls
+     * start as the call they undo leaves the economy, so it must stay idle for a while, not just once.
+     */
+    void awaitQuiet(long maxMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        int quiet = 0;
+        while (quiet < 10 && System.nanoTime() < deadline) {
+            Thread.sleep(20L);
+            quiet = (sim.inFlight() == 0) ? quiet + 1 : 0;
+        }
+    }
+
+    /**
+     * Sum of every wallet, read straight from the simulation (no latency, no failures), plus the
+     * nets still owed to or by the towns.
+     */
+    double total() {
+        double sum = 0.0;
+        for (UUID p : players) sum += sim.peek(p, CURRENCY);
+        for (UUID t : towns) {
+            sum += sim.peek(t, CURRENCY);
+            if (netting != null) sum += netting.pending(t, CURRENCY);
+        }
+        return sum;
+    }
+
+    /** Coins the trade path knows it created (positive) or destroyed (negative). */
+    double reported() {
+        return legs.unrecovered() + guard.unreversedCoins();
+    }
+
+    /** Closes the nets' journal (flushing what it can first) and the guard. */
+    void close() {
+        if (netting != null) netting.close();
+        guard.close();
+    }
+
+    private double balanceSafe(UUID wallet, String cur) {
+        try {
+            return guard.balance(wallet, cur);
+        } catch (RuntimeException ignored) {
+            return Double.NaN;
+        }
+    }
+
+    static Logger silent() {
+        Logger log = Logger.getAnonymousLogger();
+        log.setUseParentHandlers(false);
+        log.setLevel(Level.OFF);
+        return log;
+    }
+}
@@ -0,0 +1,136 @@
+package com.brandon.medievalmarkets.market;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.ToDoubleBiFunction;
+import java.util.logging.Logger;
+
+/**
+ * The money legs of a trade's settle stage: a buy takes the player's coins then credits the town,
+ * a sell debits the town then pays the player, and if the second leg throws the first is reversed.
+ *
+ * The player side is always an immediate economy call; the town side goes through a
+ * {@link TownSide}, either straight to MPC or netted ({@link TreasuryNetting}). These run off the
+ * main thread. MarketService settles every trade through here, as do {@link EconomyBenchmark} and
+ * the trade-path tests, so what they measure is the path players use.
+ */
+final class TradeLegs {
+
+    enum Outcome {
+        SETTLED,
+        REFUSED, // the paying side could not cover the trade; nothing moved
+        FAILED   // an economy call failed; the first leg was reversed, or the loss logged
+    }
+
+    /** Where the town side of a trade goes. */
+    interface TownSide {
+        void credit(UUID townId, String currency, long coins);
+
+        /** False if the town cannot cover {@code coins}. */
+        boolean debit(UUID townId, String currency, long coins);
+    }
+
+    /** Town side straight to MPC, keeping the treasury cache in step. */
+    static TownSide direct(EconomyGuard economy, TreasuryCache cache) {
+        return new TownSide() {
+            @Override
+            public void credit(UUID townId, String currency, long coins) {
+                economy.deposit(townId, currency, (double) coins);
+                cache.adjust(townId, currency, coins);
+            }
+
+            @Override
+            public boolean debit(UUID townId, String currency, long coins) {
+                if (!economy.withdraw(townId, currency, (double) coins)) {
+                    cache.invalidate(townId, currency);
+                    return false;
+                }
+                cache.adjust(townId, currency, -coins);
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Town side folded into {@code netting}. {@code balance} gives a town's MPC balance (NaN if
+     * unknown) for debits its net does not cover.
+     */
+    static TownSide netted(TreasuryNetting netting, ToDoubleBiFunction<UUID, String> balance) {
+        return new TownSide() {
+            @Override
+            public void credit(UUID townId, String currency, long coins) {
+                netting.credit(townId, currency, coins);
+            }
+
+            @Override
+            public boolean debit(UUID townId, String currency, long coins) {
+                return netting.debit(townId, currency, coins, () -> balance.applyAsDouble(townId, currency));
+            }
+        };
+    }
+
+    private final EconomyGuard economy;
+    private final TownSide towns;
+    private final TreasuryCache cache;
+    private final Logger log;
+    private final DoubleAdder unrecovered = new DoubleAdder(); // + created, - destroyed
+
+    TradeLegs(EconomyGuard economy, TownSide towns, TreasuryCache cache, Logger log) {
+        this.economy = economy;
+        this.towns = towns;
+        this.cache = cache;
+        this.log = log;
+    }
+
+    /** {@code player} pays {@code town} {@code coins}. */
+    Outcome buy(UUID player, UUID town, String cur, long coins) {
+        boolean charged = false;
+        try {
+            if (!economy.withdraw(player, cur, (double) coins)) return Outcome.REFUSED;
+            charged = true;
+            towns.credit(town, cur, coins);
+            return Outcome.SETTLED;
+        } catch (RuntimeException ex) {
+            cache.invalidate(town, cur);
+            log.warning("[MM][BUY] Exception: " + ex.getMessage());
+            if (charged) undo(() -> economy.deposit(player, cur, (double) coins), -coins,
+                    "[MM][BUY] Player " + player + " was charged " + coins + " " + cur + " and not refunded");
+            return Outcome.FAILED;
+        }
+    }
+
+    /** {@code town} pays {@code seller} {@code coins}. */
+    Outcome sell(UUID seller, UUID town, String cur, long coins) {
+        boolean debited = false;
+        try {
+            if (!towns.debit(town, cur, coins)) return Outcome.REFUSED;
+            debited = true;
+            economy.deposit(seller, cur, (double) coins);
+            return Outcome.SETTLED;
+        } catch (RuntimeException ex) {
+            cache.invalidate(town, cur);
+            log.warning("[MM][SELL] Exception: " + ex.getMessage());
+            if (debited) undo(() -> towns.credit(town, cur, coins), -coins,
+                    "[MM][SELL] Town " + town + " paid " + coins + " " + cur + " that was not returned");
+            return Outcome.FAILED;
+        }
+    }
+
+    /**
+     * Net coins failed reversals created (positive) or destroyed (negative). Late calls the guard
+     * could not undo are counted there instead ({@link EconomyGuard#unreversedCoins}).
+     */
+    double unrecovered() {
+        return unrecovered.sum();
+    }
+
+    // Reverses the first leg of a trade whose second leg failed; if that fails too, says what is owed
+    private void undo(Runnable reversal, long ifFailed, String owed) {
+        try {
+            reversal.run();
+        } catch (RuntimeException ex) {
+            unrecovered.add(ifFailed);
+            log.severe(owed + ": " + ex.getMessage());
+        }
+    }
+}
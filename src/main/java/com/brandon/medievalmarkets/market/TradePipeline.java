@@ -0,0 +1,198 @@
+package com.brandon.medievalmarkets.market;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the economy half of a trade off the main thread.
+ *
+ * A trade is validated and its goods reserved on the main thread (see MarketService#buy/sell),
+ * then handed here as two stages: {@code settle} makes the MPC calls on a dedicated executor, and
+ * {@code apply} receives its outcome back on the main thread on the next tick, where items are
+ * delivered or returned and the ledger is updated.
+ *
+ * Every stage is keyed by the wallets it touches (player and town treasury). A stage starts only
+ * after the previous stage of each of its keys has finished, so transfers for one player, and for
+ * one treasury, reach MPC in submission order, while trades in unrelated towns settle in parallel.
+ * Outcomes are applied in the order stages finish, which keeps the same per-key order.
+ *
+ * With no settlement threads, or once closed, stages run inline on the caller (the old
+ * synchronous behaviour). Each stage carries a description of what it owes (reserved goods,
+ * coins in motion), which {@link #close} logs for any stage it could not apply.
+ */
+final class TradePipeline {
+
+    /** Outcome of a settle stage, applied on the main thread. */
+    @FunctionalInterface
+    interface Apply {
+        void accept(boolean settled);
+    }
+
+    private final Logger log;
+    private final Executor mainThread; // runs the apply drain on the next tick
+    private final ExecutorService pool; // null = settle inline
+    private final Map<UUID, CompletableFuture<Void>> lanes = new ConcurrentHashMap<>(); // last stage per wallet
+    private final ConcurrentLinkedQueue<Runnable> outcomes = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final Map<Object, String> unapplied = new ConcurrentHashMap<>(); // submitted, not yet applied
+    private volatile boolean closed;
+
+    TradePipeline(Plugin plugin, int threads) {
+        this(plugin.getLogger(), threads, task -> Bukkit.getScheduler().runTask(plugin, task));
+    }
+
+    /** {@code mainThread} runs the apply stages; it may throw once it no longer accepts tasks. */
+    TradePipeline(Logger log, int threads, Executor mainThread) {
+        this.log = log;
+        this.mainThread = mainThread;
+        if (threads <= 0) {
+            this.pool = null;
+            return;
+        }
+        AtomicInteger n = new AtomicInteger();
+        this.pool = Executors.newFixedThreadPool(threads, task -> {
+            Thread t = new Thread(task, "MedievalMarkets-Settlement-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    boolean isAsync() {
+        return pool != null && !closed;
+    }
+
+    /** Stages submitted but not yet applied. */
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Queues {@code settle} behind every earlier stage for any of {@code wallets} and applies its
+     * result on the main thread. Must be called from the main thread. {@code settle} reports
+     * failure by returning false; anything it throws is logged and counts as false. {@code what}
+     * describes the trade for the shutdown log if it is never applied.
+     */
+    void submit(UUID[] wallets, String what, BooleanSupplier settle, Apply apply) {
+        if (!isAsync()) {
+            apply.accept(settleSafely(settle));
+            return;
+        }
+
+        List<CompletableFuture<Void>> before = new ArrayList<>(wallets.length);
+        for (UUID w : wallets) {
+            CompletableFuture<Void> last = lanes.get(w);
+            if (last != null && !last.isDone()) before.add(last);
+        }
+        CompletableFuture<Void> ready = before.isEmpty()
+                ? CompletableFuture.completedFuture(null)
+                : CompletableFuture.allOf(before.toArray(new CompletableFuture[0]));
+
+        inFlight.incrementAndGet();
+        Object token = new Object();
+        unapplied.put(token, what);
+        CompletableFuture<Void> stage = ready.handle((v, ex) -> null).thenRunAsync(() -> {
+            boolean settled = settleSafely(settle);
+            outcomes.add(() -> {
+                unapplied.remove(token);
+                apply.accept(settled);
+            });
+            scheduleDrain();
+        }, pool);
+
+        for (UUID w : wallets) {
+            lanes.put(w, stage);
+            stage.whenComplete((v, ex) -> lanes.remove(w, stage));
+        }
+    }
+
+    private boolean settleSafely(BooleanSupplier settle) {
+        try {
+            return settle.getAsBoolean();
+        } catch (Throwable t) {
+            log.log(Level.WARNING, "[MedievalMarkets] Trade settlement failed", t);
+            return false;
+        }
+    }
+
+    // One main-thread task per tick applies everything that settled since the last one
+    private void scheduleDrain() {
+        if (closed || !drainScheduled.compareAndSet(false, true)) return;
+        try {
+            mainThread.execute(this::drain);
+        } catch (RuntimeException ex) {
+            drainScheduled.set(false); // plugin disabling: close() applies what is left
+        }
+    }
+
+    private void drain() {
+        drainScheduled.set(false);
+        Runnable r;
+        while ((r = outcomes.poll()) != null) {
+            inFlight.decrementAndGet();
+            try {
+                r.run();
+            } catch (RuntimeException ex) {
+                log.log(Level.WARNING, "[MedievalMarkets] Applying a settled trade failed", ex);
+            }
+        }
+    }
+
+    /**
+     * Stops taking stages, waits for queued settlements to reach MPC, and applies their outcomes
+     * on the calling (main) thread. Later submissions run inline. Guarded MPC calls give up after
+     * their timeout, so the wait ends; it is long because one lane can hold several slow trades.
+     * Anything still unapplied after it is logged at SEVERE with what it owes.
+     */
+    void close() {
+        if (pool == null || closed) return;
+        closed = true;
+
+        // The last stage of every lane depends on all earlier ones; the pool must outlive them all
+        CompletableFuture<Void> all = CompletableFuture.allOf(lanes.values().toArray(new CompletableFuture[0]));
+        if (!await(all, 10)) {
+            log.warning("[MedievalMarkets] Trade settlement still running after 10s; waiting up to 50s more for "
+                    + (inFlight.get() - outcomes.size()) + " trade(s)");
+            await(all, 50);
+        }
+        pool.shutdown();
+        drain();
+
+        for (String what : unapplied.values()) {
+            log.severe("[MedievalMarkets] Trade not applied at shutdown, check by hand: " + what);
+        }
+    }
+
+    private static boolean await(CompletableFuture<Void> f, int seconds) {
+        try {
+            f.get(seconds, TimeUnit.SECONDS);
+            return true;
+        } catch (TimeoutException ex) {
+            return false;
+        } catch (ExecutionException ignored) {
+            return true; // stages never fail; settleSafely catches everything
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.brandon.medievalmarkets.market;
+
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleBiFunction;
+
+/**
+ * Short-lived cache of town treasury balances per currency, so quoting does not make a
+ * cross-plugin balance call for every price on a GUI page or a {@code /market hot} listing.
+ *
+ * An entry is loaded through MPC on first use and trusted for the TTL. Transfers the market makes
+ * itself are applied to a live entry straight away ({@link #adjust}), so within the TTL the cached
+ * balance only misses whatever other plugins moved. A failed or surprising transfer drops the
+ * entry ({@link #invalidate}) and the next quote reloads it. A TTL of 0 turns caching off.
+ */
+final class TreasuryCache {
+
+    private record Key(UUID wallet, String currency) {
+        Key {
+            currency = currency.toUpperCase(Locale.ROOT);
+        }
+    }
+
+    private record Entry(double balance, long loadedAt) {}
+
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile long ttlNanos;
+
+    TreasuryCache(long ttlMillis) {
+        ttlMillis(ttlMillis);
+    }
+
+    void ttlMillis(long ttlMillis) {
+        this.ttlNanos = Math.max(0L, ttlMillis) * 1_000_000L;
+    }
+
+    /**
+     * Balance of {@code wallet} in {@code currency}, from the cache when fresh, otherwise from
+     * {@code loader}. Non-finite loads (the loader's way of reporting failure) are not cached.
+     */
+    double balance(UUID wallet, String currency, ToDoubleBiFunction<UUID, String> loader) {
+        long ttl = ttlNanos;
+        if (ttl == 0L) return loader.applyAsDouble(wallet, currency);
+
+        Key k = new Key(wallet, currency);
+        long now = System.nanoTime();
+        Entry e = entries.get(k);
+        if (e != null && now - e.loadedAt < ttl) {
+            hits.increment();
+            return e.balance;
+        }
+
+        misses.increment();
+        double bal = loader.applyAsDouble(wallet, k.currency());
+        if (Double.isFinite(bal)) {
+            entries.put(k, new Entry(bal, now));
+        } else {
+            entries.remove(k);
+        }
+        return bal;
+    }
+
+    /** A transfer the market made: shifts a cached balance by {@code delta} without refreshing it. */
+    void adjust(UUID wallet, String currency, double delta) {
+        if (ttlNanos == 0L || delta == 0.0) return;
+        entries.computeIfPresent(new Key(wallet, currency), (k, e) -> new Entry(e.balance + delta, e.loadedAt));
+    }
+
+    /** Forgets a balance the market can no longer vouch for (a refused or failed transfer). */
+    void invalidate(UUID wallet, String currency) {
+        entries.remove(new Key(wallet, currency));
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    /** {@code {hits, misses, entries}}. */
+    long[] stats() {
+        return new long[] {hits.sum(), misses.sum(), entries.size()};
+    }
+}
@@ -0,0 +1,261 @@
+package com.brandon.medievalmarkets.market;
+
+import com.brandon.medievalmarkets.market.storage.TreasuryNetJournal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Nets the town side of trades so a busy market makes one treasury transfer per town and currency
+ * per flush instead of one per trade.
+ *
+ * Players are still charged and paid immediately and exactly; only the matching treasury credit
+ * or debit is deferred. Each town/currency keeps a signed net (positive = owed to the town) that
+ * {@link #flush} settles with a single MPC deposit or withdrawal. A town's spendable balance is
+ * its MPC balance plus its net, so a sell is refused only when both together cannot cover it.
+ *
+ * Every change is journaled ({@link TreasuryNetJournal}) and on disk before the call that made it
+ * returns, so a crash loses no unflushed nets; they are replayed on the next start and flushed then.
+ * Records are appended under this object's lock but forced outside it, one force for every
+ * settlement thread waiting at the time, and {@link #pending} reads without the lock, so quotes on
+ * the main thread never wait for the disk.
+ */
+final class TreasuryNetting {
+
+    private record Key(UUID townId, String currency) {
+        Key {
+            currency = currency.toUpperCase(Locale.ROOT);
+        }
+    }
+
+    // Written under the TreasuryNetting lock; owed is also read without it
+    private static final class Net {
+        long pending;        // not yet sent to MPC
+        long flushing;       // sent, awaiting the result
+        volatile long owed;  // pending + flushing
+        boolean failing;     // last withdrawal was refused (logged once)
+
+        void update() {
+            owed = pending + flushing;
+        }
+    }
+
+    private static final long COMPACT_BYTES = 1L << 20;
+
+    private final EconomyGuard economy;
+    private final TreasuryCache cache;
+    private final TreasuryNetJournal journal;
+    private final Logger log;
+
+    private final Map<Key, Net> nets = new ConcurrentHashMap<>(); // written under this
+    private final Object flushLock = new Object();
+    private long flushSeq;
+
+    // stats
+    private long netted;    // town-side legs folded into a net
+    private long transfers; // treasury transfers made by flushes
+
+    TreasuryNetting(EconomyGuard economy, TreasuryCache cache, TreasuryNetJournal journal, Logger log) {
+        this.economy = economy;
+        this.cache = cache;
+        this.journal = journal;
+        this.log = log;
+    }
+
+    /** Restores the nets left by the last run. */
+    void open() throws IOException {
+        TreasuryNetJournal.Replayed r = journal.open();
+        synchronized (this) {
+            for (TreasuryNetJournal.Net n : r.nets()) {
+                Net net = net(new Key(n.townId(), n.currency()));
+                net.pending += n.coins();
+                net.update();
+            }
+        }
+        for (TreasuryNetJournal.Net n : r.uncertain()) {
+            log.warning("[MedievalMarkets] Treasury flush of " + n.coins() + " " + n.currency() + " for town "
+                    + n.townId() + " was interrupted; assuming it reached MPCBridge. Check that treasury.");
+        }
+        if (!r.nets().isEmpty()) {
+            log.info("[MedievalMarkets] Restored " + r.nets().size() + " unflushed treasury net(s).");
+        }
+    }
+
+    /* =========================
+       Trades
+       ========================= */
+
+    /** A player paid the town {@code coins}. */
+    void credit(UUID townId, String currency, long coins) {
+        long seq;
+        synchronized (this) {
+            seq = move(new Key(townId, currency), coins);
+        }
+        journal.sync(seq);
+    }
+
+    /**
+     * The town pays {@code coins}, if its balance plus net covers them. {@code balance} supplies
+     * the town's MPC balance and is only asked when the net alone does not cover the debit.
+     */
+    boolean debit(UUID townId, String currency, long coins, DoubleSupplier balance) {
+        Key k = new Key(townId, currency);
+        long seq = -1L;
+        synchronized (this) {
+            if (owed(k) >= coins) seq = move(k, -coins);
+        }
+
+        if (seq < 0L) {
+            double bal = balance.getAsDouble(); // may call MPC: outside the lock
+            if (!Double.isFinite(bal)) return false;
+
+            synchronized (this) {
+                if (bal + owed(k) < coins) return false;
+                seq = move(k, -coins);
+            }
+        }
+        journal.sync(seq);
+        return true;
+    }
+
+    /**
+     * Coins owed to (positive) or by (negative) the town and not yet reflected in its MPC balance.
+     * Lock-free: called on the main thread for quotes.
+     */
+    long pending(UUID townId, String currency) {
+        return owed(new Key(townId, currency));
+    }
+
+    private long owed(Key k) {
+        Net n = nets.get(k);
+        return (n == null) ? 0L : n.owed;
+    }
+
+    // Journals the change (not yet forced) and applies it; returns the journal sequence to sync
+    private long move(Key k, long coins) {
+        if (coins == 0L) return 0L;
+        long seq = journal.delta(k.townId(), k.currency(), coins);
+        Net n = net(k);
+        n.pending += coins;
+        n.update();
+        netted++;
+        return seq;
+    }
+
+    private Net net(Key k) {
+        return nets.computeIfAbsent(k, x -> new Net());
+    }
+
+    /* =========================
+       Flush
+       ========================= */
+
+    private record Transfer(long id, Key key, long coins) {}
+
+    /**
+     * Sends every non-zero net to MPC as one transfer. A refused or failed transfer stays in the
+     * net for the next flush, as does everything while the economy breaker is open. Returns the
+     * number of transfers that went through.
+     */
+    int flush() {
+        if (!economy.available()) return 0; // breaker open: nets wait, they are journaled
+        synchronized (flushLock) {
+            List<Transfer> batch = new ArrayList<>();
+            long seq = 0L;
+            synchronized (this) {
+                for (Map.Entry<Key, Net> e : nets.entrySet()) {
+                    Net n = e.getValue();
+                    if (n.pending == 0L) continue;
+                    Transfer t = new Transfer(++flushSeq, e.getKey(), n.pending);
+                    seq = journal.begin(t.id(), t.key().townId(), t.key().currency(), t.coins());
+                    n.flushing += t.coins();
+                    n.pending = 0L;
+                    batch.add(t);
+                }
+            }
+            journal.sync(seq); // every BEGIN on disk before its transfer is sent
+
+            int done = 0;
+            for (Transfer t : batch) {
+                boolean ok = send(t);
+                synchronized (this) {
+                    seq = journal.end(t.id(), ok);
+                    Net n = net(t.key());
+                    n.flushing -= t.coins();
+                    if (ok) {
+                        cache.adjust(t.key().townId(), t.key().currency(), t.coins());
+                        n.failing = false;
+                        transfers++;
+                        done++;
+                    } else {
+                        cache.invalidate(t.key().townId(), t.key().currency());
+                        n.pending += t.coins();
+                        if (!n.failing) {
+                            log.warning("[MedievalMarkets] Treasury of town " + t.key().townId() + " could not settle "
+                                    + t.coins() + " " + t.key().currency() + "; retrying on the next flush.");
+                        }
+                        n.failing = true;
+                    }
+                    n.update();
+                }
+                journal.sync(seq);
+            }
+
+            synchronized (this) {
+                Iterator<Net> it = nets.values().iterator();
+                while (it.hasNext()) {
+                    Net n = it.next();
+                    if (n.pending == 0L && n.flushing == 0L) it.remove();
+                }
+                if (journal.size() > COMPACT_BYTES) compact();
+            }
+            return done;
+        }
+    }
+
+    private boolean send(Transfer t) {
+        UUID town = t.key().townId();
+        String cur = t.key().currency();
+        try {
+            if (t.coins() > 0L) {
+                economy.deposit(town, cur, (double) t.coins());
+                return true;
+            }
+            return economy.withdraw(town, cur, (double) -t.coins());
+        } catch (RuntimeException ex) {
+            log.warning("[MedievalMarkets] Treasury flush for town " + town + " failed: " + ex.getMessage());
+            return false;
+        }
+    }
+
+    private void compact() {
+        List<TreasuryNetJournal.Net> out = new ArrayList<>(nets.size());
+        for (Map.Entry<Key, Net> e : nets.entrySet()) {
+            out.add(new TreasuryNetJournal.Net(e.getKey().townId(), e.getKey().currency(), e.getValue().pending));
+        }
+        try {
+            journal.compact(out);
+        } catch (IOException ex) {
+            log.severe("[MedievalMarkets] Treasury net journal compaction failed: " + ex.getMessage());
+        }
+    }
+
+    /** Flushes what can be flushed and closes the journal; anything left is replayed next start. */
+    void close() {
+        flush();
+        journal.close();
+    }
+
+    /** {@code {open nets, town-side legs netted, treasury transfers made}}. */
+    synchronized long[] stats() {
+        return new long[] {nets.size(), netted, transfers};
+    }
+}
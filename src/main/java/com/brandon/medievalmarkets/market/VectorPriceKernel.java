@@ -0,0 +1,130 @@
+package com.brandon.medievalmarkets.market;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link PriceKernel} on the JDK Vector API. Only loaded (reflectively, by
+ * {@link PriceKernel#select}) when the server was started with
+ * {@code --add-modules jdk.incubator.vector}; nothing else may reference this class.
+ *
+ * Each lane replays {@link PowCurve#apply} operation for operation: the square-root shortcuts are
+ * computed for every lane and blended by curve kind, and the table path uses the same tables,
+ * the same interpolation and the same rounding order, so results are bit-identical to the scalar
+ * path. Lanes whose curve is plain Math.pow are patched afterwards with the scalar kernel.
+ */
+final class VectorPriceKernel extends PriceKernel {
+
+    private static final VectorSpecies<Double> D = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Long> L = VectorSpecies.of(long.class, D.vectorShape());
+    private static final VectorSpecies<Integer> I =
+            VectorSpecies.of(int.class, VectorShape.forBitSize(D.vectorBitSize() / 2));
+
+    private static final long MANTISSA_MASK = (1L << 52) - 1;
+    private static final int INDEX_SHIFT = 52 - PowCurve.SEGMENT_BITS;
+    private static final long FRACTION_MASK = (1L << INDEX_SHIFT) - 1;
+    private static final double FRACTION_SCALE = 1.0 / (1L << INDEX_SHIFT);
+
+    private static final long ONE = PowCurve.Kind.ONE.ordinal();
+    private static final long LINEAR = PowCurve.Kind.LINEAR.ordinal();
+    private static final long SQRT = PowCurve.Kind.SQRT.ordinal();
+    private static final long QUARTER = PowCurve.Kind.QUARTER.ordinal();
+    private static final long THREE_QUARTERS = PowCurve.Kind.THREE_QUARTERS.ordinal();
+    private static final long TABLE = PowCurve.Kind.TABLE.ordinal();
+
+    @Override
+    String name() {
+        return "vector " + D.length() + " x double";
+    }
+
+    @Override
+    void price(Columns cols, int[] supply, int[] demand, double[] out) {
+        int n = Math.min(cols.width, Math.min(supply.length, Math.min(demand.length, out.length)));
+        int[] index = new int[D.length()];
+
+        int i = 0;
+        for (int bound = D.loopBound(n); i < bound; i += D.length()) {
+            DoubleVector s = counts(supply, i);
+            DoubleVector d = counts(demand, i);
+            LongVector kind = LongVector.fromArray(L, cols.kind, i);
+
+            DoubleVector ratio = d.div(s);
+            DoubleVector root = ratio.lanewise(VectorOperators.SQRT);
+            DoubleVector quarter = root.lanewise(VectorOperators.SQRT);
+
+            DoubleVector curve = DoubleVector.broadcast(D, 1.0)
+                    .blend(ratio, is(kind, LINEAR))
+                    .blend(root, is(kind, SQRT))
+                    .blend(quarter, is(kind, QUARTER))
+                    .blend(root.mul(quarter), is(kind, THREE_QUARTERS));
+
+            VectorMask<Double> table = is(kind, TABLE);
+            if (table.anyTrue()) {
+                DoubleVector e = DoubleVector.fromArray(D, cols.elasticity, i);
+                DoubleVector y = e.mul(log2(d, index).sub(log2(s, index)));
+                curve = curve.blend(exp2(y, index), table);
+            }
+
+            // demand == supply is exactly 1 whatever the curve (first check in PowCurve.apply)
+            curve = curve.blend(1.0, d.eq(s));
+            DoubleVector.fromArray(D, cols.base, i).mul(curve).intoArray(out, i);
+        }
+
+        for (; i < n; i++) out[i] = scalar(cols, i, supply[i], demand[i]);
+
+        if (cols.anyPow) {
+            for (int k = 0; k < n; k++) {
+                if (cols.curves[k].kind() == PowCurve.Kind.POW) out[k] = scalar(cols, k, supply[k], demand[k]);
+            }
+        }
+    }
+
+    // Counts at [i, i + lanes) as doubles, clamped to >= 1 like the scalar path
+    private static DoubleVector counts(int[] a, int i) {
+        return ((DoubleVector) IntVector.fromArray(I, a, i).convertShape(VectorOperators.I2D, D, 0)).max(1.0);
+    }
+
+    private static VectorMask<Double> is(LongVector kind, long code) {
+        return kind.eq(code).cast(D);
+    }
+
+    // PowCurve.log2 for whole counts held exactly in doubles: exponent k, then the top mantissa
+    // bits index the table and the rest interpolate (the same t as the scalar int code)
+    private static DoubleVector log2(DoubleVector n, int[] index) {
+        LongVector bits = n.reinterpretAsLongs();
+        DoubleVector k = (DoubleVector) bits.lanewise(VectorOperators.LSHR, 52).sub(1023L)
+                .convert(VectorOperators.L2D, 0);
+        LongVector mantissa = bits.and(MANTISSA_MASK);
+        ((IntVector) mantissa.lanewise(VectorOperators.LSHR, INDEX_SHIFT).convertShape(VectorOperators.L2I, I, 0))
+                .intoArray(index, 0);
+        DoubleVector t = ((DoubleVector) mantissa.and(FRACTION_MASK).convert(VectorOperators.L2D, 0)).mul(FRACTION_SCALE);
+
+        DoubleVector lo = DoubleVector.fromArray(D, PowCurve.LOG2, 0, index, 0);
+        DoubleVector hi = DoubleVector.fromArray(D, PowCurve.LOG2, 1, index, 0);
+        return k.add(lo).add(t.mul(hi.sub(lo)));
+    }
+
+    // PowCurve.exp2: floor by truncation plus a correction for negative fractions
+    private static DoubleVector exp2(DoubleVector y, int[] index) {
+        LongVector truncated = (LongVector) y.convert(VectorOperators.D2L, 0);
+        DoubleVector whole = (DoubleVector) truncated.convert(VectorOperators.L2D, 0);
+        VectorMask<Double> below = y.lt(whole);
+        whole = whole.sub(1.0, below);
+        LongVector wholeBits = truncated.sub(1L, below.cast(L));
+
+        DoubleVector f = y.sub(whole).mul(PowCurve.SEGMENTS);
+        LongVector idx = ((LongVector) f.convert(VectorOperators.D2L, 0)).min(PowCurve.SEGMENTS - 1);
+        ((IntVector) idx.convertShape(VectorOperators.L2I, I, 0)).intoArray(index, 0);
+        DoubleVector t = f.sub((DoubleVector) idx.convert(VectorOperators.L2D, 0));
+
+        DoubleVector lo = DoubleVector.fromArray(D, PowCurve.EXP2, 0, index, 0);
+        DoubleVector hi = DoubleVector.fromArray(D, PowCurve.EXP2, 1, index, 0);
+        DoubleVector scale = wholeBits.add(1023L).lanewise(VectorOperators.LSHL, 52).reinterpretAsDoubles();
+        return lo.add(t.mul(hi.sub(lo))).mul(scale);
+    }
+}
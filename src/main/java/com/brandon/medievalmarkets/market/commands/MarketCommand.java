@@ -1,13 +1,16 @@
 package com.brandon.medievalmarkets.market.commands;
 
+import com.brandon.medievalmarkets.market.EconomyGuard;
+import com.brandon.medievalmarkets.market.MarketLedger;
 import com.brandon.medievalmarkets.market.MarketService;
+import com.brandon.medievalmarkets.market.PricingBenchmark;
+import com.brandon.medievalmarkets.market.storage.PriceHistoryStore;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
 import java.util.*;
-import java.util.AbstractMap.SimpleEntry;
 
 import static net.kyori.adventure.text.Component.text;
 import static net.kyori.adventure.text.format.NamedTextColor.*;
@@ -16,6 +19,10 @@ public final class MarketCommand implements CommandExecutor {
 
     private final MarketService market;
     private static final int HOT_COLD_COUNT = 7;
+    private static final int HISTORY_LINES = 10;
+    private static final int BENCHMARK_TRADES = 200_000;
+    private static final int ECONOMY_BENCHMARK_TRADES = 5_000;
+    private static final String ADMIN_PERMISSION = "medievalmarkets.admin";
 
     public MarketCommand(MarketService market) {
         this.market = market;
@@ -33,11 +40,15 @@ public final class MarketCommand implements CommandExecutor {
             p.sendMessage(text("=== Medieval Markets ===", GOLD));
             p.sendMessage(text("Commands:", GRAY));
             p.sendMessage(text(" • /market list", YELLOW));
-            p.sendMessage(text(" • /market hot [currency]", YELLOW));
-            p.sendMessage(text(" • /market cold [currency]", YELLOW));
+            p.sendMessage(text(" • /market hot [currency|server]", YELLOW));
+            p.sendMessage(text(" • /market cold [currency|server]", YELLOW));
             p.sendMessage(text(" • /market price <commodity> [currency]", YELLOW));
+            p.sendMessage(text(" • /market history <commodity>", YELLOW));
             p.sendMessage(text(" • /market buy <commodity> <qty> [currency]", YELLOW));
             p.sendMessage(text(" • /market sell <commodity> <qty> [currency]", YELLOW));
+            if (p.hasPermission(ADMIN_PERMISSION)) {
+                p.sendMessage(text(" • /market admin <totals|saves|memory|models|economy|economy-bench|export|import>", YELLOW));
+            }
             return true;
         }
 
@@ -106,6 +117,11 @@ public final class MarketCommand implements CommandExecutor {
                 return true;
             }
 
+            case "history" -> {
+                if (args.length < 2) return usage(p, "/market history <commodity>");
+                return showHistory(p, args[1].toLowerCase(Locale.ROOT));
+            }
+
             case "buy" -> {
                 if (args.length < 3) return usage(p, "/market buy <commodity> <qty> [currency]");
 
@@ -122,8 +138,8 @@ public final class MarketCommand implements CommandExecutor {
 
                 String cur = (args.length >= 4) ? args[3].toUpperCase(Locale.ROOT) : market.defaultCurrency(p);
 
-                boolean ok = market.buy(p, id, qty, cur);
-                p.sendMessage(ok ? text("Bought.", GREEN) : text("Buy failed.", RED));
+                market.buy(p, id, qty, cur)
+                        .thenAccept(ok -> p.sendMessage(ok ? text("Bought.", GREEN) : text("Buy failed.", RED)));
                 return true;
             }
 
@@ -143,18 +159,260 @@ public final class MarketCommand implements CommandExecutor {
 
                 String cur = (args.length >= 4) ? args[3].toUpperCase(Locale.ROOT) : market.defaultCurrency(p);
 
-                boolean ok = market.sell(p, id, qty, cur);
-                p.sendMessage(ok ? text("Sold.", GREEN) : text("Sell failed.", RED));
+                market.sell(p, id, qty, cur)
+                        .thenAccept(ok -> p.sendMessage(ok ? text("Sold.", GREEN) : text("Sell failed.", RED)));
                 return true;
             }
 
+            case "admin" -> {
+                return handleAdmin(p, args);
+            }
+
             default -> {
                 return usage(p, "/market");
             }
         }
     }
 
+    private boolean handleAdmin(Player p, String[] args) {
+        if (!p.hasPermission(ADMIN_PERMISSION)) {
+            p.sendMessage(text("No permission.", RED));
+            return true;
+        }
+        if (args.length < 2) return usage(p, "/market admin <totals|saves|memory|models|economy|economy-bench|export|import>");
+
+        switch (args[1].toLowerCase(Locale.ROOT)) {
+
+            case "totals" -> {
+                p.sendMessage(text("Rebuilding global totals from every town...", GRAY));
+                market.rebuildGlobalTotals().thenAccept(drifted -> {
+                    p.sendMessage(text("Global totals rebuilt: ", GOLD)
+                            .append(text(drifted + " commodit" + (drifted == 1 ? "y" : "ies") + " corrected.",
+                                    drifted == 0 ? GREEN : YELLOW)));
+                }).exceptionally(ex -> {
+                    p.sendMessage(text("Global totals rebuild failed (see console).", RED));
+                    return null;
+                });
+                return true;
+            }
+
+            case "saves" -> {
+                MarketLedger.SaveStats s = market.lastSaveStats();
+                if (s == null) {
+                    p.sendMessage(text("No ledger save has completed yet.", GRAY));
+                    return true;
+                }
+                p.sendMessage(text("Last ledger save (v" + s.version() + (s.full() ? ", full" : "") + "): ", GOLD)
+                        .append(text(s.towns() + " towns written, " + s.removed() + " removed, " + s.bytes() + " bytes", WHITE)));
+                p.sendMessage(text(String.format(Locale.ROOT,
+                        " • gate wait %.2fms, capture %.3fms, copy %.1fms (%d rows by writers), write %.1fms",
+                        s.gateWaitNanos() / 1e6, s.captureNanos() / 1e6, s.copyNanos() / 1e6,
+                        s.copiedByWriters(), s.writeNanos() / 1e6), GRAY));
+                p.sendMessage(text(" • resident " + market.residentTowns() + " of " + market.knownTowns()
+                        + " towns (" + s.evicted() + " evicted after that save)", GRAY));
+                return true;
+            }
+
+            case "memory" -> {
+                MarketLedger.Footprint f = market.ledgerFootprint();
+                p.sendMessage(text("Ledger memory (estimated): ", GOLD)
+                        .append(text(kib(f.totalBytes()) + " KiB", WHITE)));
+                p.sendMessage(text(" • towns: " + f.residentTowns() + " resident of " + f.knownTowns(), GRAY));
+                p.sendMessage(text(" • cells: " + f.cells() + " stored, " + f.seeded() + " at baseline (elided)", GRAY));
+                p.sendMessage(text(" • rows " + kib(f.rowBytes()) + " KiB (dense would be " + kib(f.denseBytes())
+                        + " KiB), town map " + kib(f.mapBytes()) + " KiB", GRAY));
+                p.sendMessage(text(" • save tracking " + kib(f.trackingBytes()) + " KiB, global totals "
+                        + kib(f.totalsBytes()) + " KiB", GRAY));
+                long[] cache = market.priceCacheStats();
+                if (cache != null) {
+                    p.sendMessage(text(" • price cache: " + cache[0] + " hits, " + cache[1] + " misses", GRAY));
+                }
+                long[] treasury = market.treasuryCacheStats();
+                p.sendMessage(text(" • treasury cache: " + treasury[0] + " hits, " + treasury[1] + " misses, "
+                        + treasury[2] + " balances", GRAY));
+                p.sendMessage(text(" • trades in flight: " + market.tradesInFlight(), GRAY));
+                long[] netting = market.treasuryNettingStats();
+                if (netting != null) {
+                    p.sendMessage(text(" • treasury netting: " + netting[1] + " town-side legs in " + netting[2]
+                            + " transfers, " + netting[0] + " nets open", GRAY));
+                }
+                return true;
+            }
+
+            case "models" -> {
+                int trades = BENCHMARK_TRADES;
+                if (args.length >= 3) {
+                    try {
+                        trades = Integer.parseInt(args[2]);
+                    } catch (NumberFormatException ignored) {
+                        trades = 0;
+                    }
+                    if (trades <= 0) return usage(p, "/market admin models [trades]");
+                }
+                int n = trades;
+                p.sendMessage(text("Running " + n + " synthetic trades through every pricing model...", GRAY));
+                market.benchmarkPricingModels(n).thenAccept(results -> {
+                    p.sendMessage(text("Pricing models over " + n + " synthetic trades:", GOLD));
+                    for (PricingBenchmark.Result r : results) {
+                        p.sendMessage(text(" • " + r.model(), YELLOW)
+                                .append(text(String.format(Locale.ROOT, "  %.1f ns/quote, %.2f%% per-trade move, max swing x%.2f",
+                                        r.nsPerQuote(), r.volatility(), r.maxSwing()), GRAY)));
+                    }
+                }).exceptionally(ex -> {
+                    p.sendMessage(text("Pricing model benchmark failed (see console).", RED));
+                    return null;
+                });
+                return true;
+            }
+
+            case "economy" -> {
+                EconomyGuard.Status st = market.economyStatus();
+                if (st == null) {
+                    p.sendMessage(text("No economy hooked (standalone mode).", GRAY));
+                    return true;
+                }
+                p.sendMessage(text("Economy (" + st.backend() + ") breaker: ", GOLD).append(switch (st.state()) {
+                    case CLOSED -> text("closed (trading)", GREEN);
+                    case OPEN -> text("open (read-only, probing in " + (st.retryInMillis() / 1000 + 1) + "s)", RED);
+                    case HALF_OPEN -> text("half-open (probing)", YELLOW);
+                }));
+                p.sendMessage(text(" • " + st.consecutiveFailures() + " failures in a row, tripped " + st.trips() + " times", GRAY));
+                if (st.unreversed() > 0) {
+                    p.sendMessage(text(" • " + st.unreversed() + " late transfers could not be reversed (see console)", RED));
+                }
+                for (EconomyGuard.OpStats o : st.ops()) {
+                    p.sendMessage(text(" • " + o.op().name().toLowerCase(Locale.ROOT), YELLOW)
+                            .append(text(String.format(Locale.ROOT, "  %d calls, %d failed (%d timed out, %d rejected), p50 %s, p99 %s, max %.1fms",
+                                    o.calls(), o.failures(), o.timeouts(), o.rejected(), ms(o.p50Millis()), ms(o.p99Millis()), o.maxMillis()), GRAY)));
+                }
+                return true;
+            }
+
+            case "economy-bench" -> {
+                int trades = ECONOMY_BENCHMARK_TRADES;
+                if (args.length >= 3) {
+                    try {
+                        trades = Integer.parseInt(args[2]);
+                    } catch (NumberFormatException ignored) {
+                        trades = 0;
+                    }
+                    if (trades <= 0) return usage(p, "/market admin economy-bench [trades]");
+                }
+                int n = trades;
+                p.sendMessage(text("Running " + n + " trades against a simulated economy...", GRAY));
+                market.benchmarkEconomy(n).thenAccept(r -> {
+                    p.sendMessage(text("Economy benchmark (" + r.profile() + "):", GOLD));
+                    p.sendMessage(text(String.format(Locale.ROOT, " • %.0f trades/s on %d threads (%.1fs)",
+                            r.tradesPerSecond(), r.threads(), r.seconds()), YELLOW));
+                    p.sendMessage(text(" • " + r.completed() + " completed, " + r.refused() + " refused, "
+                            + r.failed() + " failed, breaker tripped " + r.trips() + " times", GRAY));
+                    p.sendMessage(text(String.format(Locale.ROOT, " • drift %.2f, lost to failed reversals %.2f",
+                            r.drift(), r.unrecovered()), (r.drift() == 0.0) ? GREEN : RED));
+                }).exceptionally(ex -> {
+                    p.sendMessage(text("Economy benchmark failed (see console).", RED));
+                    return null;
+                });
+                return true;
+            }
+
+            case "export" -> {
+                market.exportLedgerYaml().thenAccept(ok -> p.sendMessage(ok
+                        ? text("Ledger exported to ledger.yml.", GREEN)
+                        : text("Ledger export failed (see console).", RED)));
+                return true;
+            }
+
+            case "import" -> {
+                if (args.length < 3 || !args[2].equalsIgnoreCase("confirm")) {
+                    p.sendMessage(text("This replaces the live ledger with ledger.yml.", YELLOW));
+                    return usage(p, "/market admin import confirm");
+                }
+                p.sendMessage(text("Importing ledger.yml...", GRAY));
+                market.importLedgerYaml().thenAccept(towns -> {
+                    p.sendMessage(towns >= 0
+                            ? text("Ledger imported: " + towns + " towns.", GREEN)
+                            : text("ledger.yml not found.", RED));
+                }).exceptionally(ex -> {
+                    p.sendMessage(text("Ledger import failed (see console).", RED));
+                    return null;
+                });
+                return true;
+            }
+
+            default -> {
+                return usage(p, "/market admin <totals|saves|memory|models|economy|economy-bench|export|import>");
+            }
+        }
+    }
+
+    private boolean showHistory(Player p, String id) {
+        if (!market.historyEnabled()) {
+            p.sendMessage(text("Price history is disabled.", GRAY));
+            return true;
+        }
+
+        UUID townId = market.townId(p);
+        if (townId == null) {
+            p.sendMessage(text("No wilderness markets.", RED));
+            p.sendMessage(text("Stand inside a burg to view local pricing.", GRAY));
+            return true;
+        }
+        if (!market.commodities().containsKey(id)) {
+            p.sendMessage(text("Unknown commodity: " + id, RED));
+            return true;
+        }
+
+        String burgName = market.burgName(p);
+        if (burgName == null || burgName.isBlank()) burgName = "Unknown";
+
+        List<PriceHistoryStore.Sample> series = market.history(townId, id);
+        if (series.isEmpty()) {
+            p.sendMessage(text("No trades of " + id + " recorded here yet.", GRAY));
+            return true;
+        }
+
+        double lo = Double.MAX_VALUE, hi = 0.0;
+        for (PriceHistoryStore.Sample s : series) {
+            lo = Math.min(lo, s.raw());
+            hi = Math.max(hi, s.raw());
+        }
+
+        p.sendMessage(text(burgName + ": ", GOLD)
+                .append(text(id, YELLOW))
+                .append(text(" history (raw " + fmt(lo) + " – " + fmt(hi) + ", " + series.size() + " points)", GRAY)));
+
+        // Evenly spaced points, always ending on the newest
+        long now = System.currentTimeMillis() / 1000L;
+        int shown = Math.min(HISTORY_LINES, series.size());
+        for (int i = 0; i < shown; i++) {
+            int at = (shown == 1) ? series.size() - 1 : (int) Math.round(i * (series.size() - 1) / (double) (shown - 1));
+            PriceHistoryStore.Sample s = series.get(at);
+            p.sendMessage(text(ago(now - s.epochSecond()) + (s.coarse() ? " ~ " : "   "), DARK_GRAY)
+                    .append(text(fmt(s.raw()), GREEN))
+                    .append(text("  S " + s.supply() + " / D " + s.demand(), GRAY)));
+        }
+        return true;
+    }
+
+    private static String ago(long seconds) {
+        if (seconds < 120) return Math.max(0, seconds) + "s ago";
+        if (seconds < 7200) return (seconds / 60) + "m ago";
+        if (seconds < 172_800) return (seconds / 3600) + "h ago";
+        return (seconds / 86_400) + "d ago";
+    }
+
+    // histogram bucket bound: "<2ms", "<0.256ms"
+    private static String ms(double millis) {
+        return "<" + ((millis >= 1.0) ? String.format(Locale.ROOT, "%.0fms", millis) : String.format(Locale.ROOT, "%.3fms", millis));
+    }
+
+    private static String kib(long bytes) {
+        return String.format(Locale.ROOT, "%.1f", bytes / 1024.0);
+    }
+
     private boolean showHotCold(Player p, boolean hot, String[] args) {
+        if (args.length >= 2 && args[1].equalsIgnoreCase("server")) return showServerHotCold(p, hot);
+
         UUID townId = market.townId(p);
         if (townId == null) {
             p.sendMessage(text("No wilderness markets.", RED));
@@ -167,21 +425,8 @@ public final class MarketCommand implements CommandExecutor {
 
         String cur = (args.length >= 2) ? args[1].toUpperCase(Locale.ROOT) : market.defaultCurrency(p);
 
-        ArrayList<SimpleEntry<String, MarketService.Quote>> list = new ArrayList<>();
-        market.commodities().forEach((id, c) -> {
-            MarketService.Quote q = market.quote(townId, id, cur);
-            if (!(q.buyUnit() > 0.0) || Double.isNaN(q.buyUnit()) || Double.isInfinite(q.buyUnit())) return;
-            list.add(new SimpleEntry<>(id, q));
-        });
-
-        // Sort by BUY each (defended), tie-break by raw
-        list.sort((a, b) -> {
-            long ab = a.getValue().buyEach();
-            long bb = b.getValue().buyEach();
-            int primary = Long.compare(ab, bb);
-            if (primary == 0) primary = Double.compare(a.getValue().raw(), b.getValue().raw());
-            return hot ? -primary : primary;
-        });
+        // Ordered by raw price, which orders the defended BUY price the same way (one spread per town)
+        List<MarketService.RankedQuote> list = market.rankTown(townId, cur, HOT_COLD_COUNT, hot);
 
         p.sendMessage(
                 text(burgName + ": ", GOLD)
@@ -191,11 +436,9 @@ public final class MarketCommand implements CommandExecutor {
         );
 
         int shown = 0;
-        for (SimpleEntry<String, MarketService.Quote> e : list) {
-            if (shown >= HOT_COLD_COUNT) break;
-
-            String id = e.getKey();
-            MarketService.Quote q = e.getValue();
+        for (MarketService.RankedQuote e : list) {
+            String id = e.commodity().id();
+            MarketService.Quote q = e.quote();
 
             p.sendMessage(
                     text((shown + 1) + ". ", GRAY)
@@ -220,6 +463,33 @@ public final class MarketCommand implements CommandExecutor {
         return true;
     }
 
+    // Server-wide ranking by global raw price; works anywhere, wilderness included
+    private boolean showServerHotCold(Player p, boolean hot) {
+        List<MarketService.GlobalPrice> list = market.rankGlobal(HOT_COLD_COUNT, hot);
+
+        p.sendMessage(
+                text("All burgs: ", GOLD)
+                        .append(text(hot ? "Hottest (Top " + HOT_COLD_COUNT + ")" : "Coldest (Top " + HOT_COLD_COUNT + ")", GOLD))
+        );
+
+        int shown = 0;
+        for (MarketService.GlobalPrice e : list) {
+            p.sendMessage(
+                    text((shown + 1) + ". ", GRAY)
+                            .append(text(e.commodity().id(), YELLOW))
+                            .append(text("  raw ", DARK_GRAY))
+                            .append(text(fmt(e.raw()), GREEN))
+            );
+            shown++;
+        }
+
+        if (shown == 0) {
+            p.sendMessage(text("No priced commodities available yet.", GRAY));
+        }
+
+        return true;
+    }
+
     private boolean usage(Player p, String u) {
         p.sendMessage(text("Usage: ", RED).append(text(u, YELLOW)));
         return true;
@@ -85,9 +85,10 @@ public final class MarketGUI {
         inv.setItem(SLOT_NEXT, button(Material.ARROW, Component.text("Next", NamedTextColor.AQUA)));
         inv.setItem(SLOT_CLOSE, button(Material.BARRIER, Component.text("Close", NamedTextColor.RED)));
 
+        MarketService.QuoteTable quotes = market.quoteAll(s.townId(), s.currency());
         int idx = cur * PER_PAGE;
         for (int slot = GRID_START; slot < GRID_END && idx < list.size(); slot++) {
-            inv.setItem(slot, commodityButton(s, list.get(idx++)));
+            inv.setItem(slot, commodityButton(s, list.get(idx++), quotes));
         }
 
         p.openInventory(inv);
@@ -139,27 +140,27 @@ public final class MarketGUI {
                 : button(Material.GRAY_CONCRETE, Component.text("Out of stock", NamedTextColor.RED)));
 
         if (stock > 0) {
-            qty(inv, "buy", 29, 1, stock);
-            qty(inv, "buy", 30, 8, stock);
-            qty(inv, "buy", 31, 16, stock);
-            qty(inv, "buy", 32, 64, stock);
+            qty(inv, s, c, "buy", 29, 1, stock);
+            qty(inv, s, c, "buy", 30, 8, stock);
+            qty(inv, s, c, "buy", 31, 16, stock);
+            qty(inv, s, c, "buy", 32, 64, stock);
         }
 
         // Sell side
         inv.setItem(38, button(Material.LIGHT_BLUE_CONCRETE, Component.text("SELL", NamedTextColor.AQUA)));
-        qty(inv, "sell", 33, 1, Integer.MAX_VALUE);
-        qty(inv, "sell", 34, 8, Integer.MAX_VALUE);
-        qty(inv, "sell", 35, 16, Integer.MAX_VALUE);
-        qty(inv, "sell", 36, 64, Integer.MAX_VALUE);
+        qty(inv, s, c, "sell", 33, 1, Integer.MAX_VALUE);
+        qty(inv, s, c, "sell", 34, 8, Integer.MAX_VALUE);
+        qty(inv, s, c, "sell", 35, 16, Integer.MAX_VALUE);
+        qty(inv, s, c, "sell", 36, 64, Integer.MAX_VALUE);
 
         p.openInventory(inv);
     }
 
     // ---------- Buttons / Items ----------
 
-    private ItemStack commodityButton(MarketSession s, Commodity c) {
-        MarketService.Quote q = market.quote(s.townId(), c.id(), s.currency());
-        int stock = market.stock(s.townId(), c.id());
+    private ItemStack commodityButton(MarketSession s, Commodity c, MarketService.QuoteTable quotes) {
+        MarketService.Quote q = quotes.quote(c.ordinal());
+        int stock = quotes.stock(c.ordinal());
 
         NamedTextColor nameColor = stock > 0 ? NamedTextColor.YELLOW : NamedTextColor.RED;
 
@@ -193,13 +194,24 @@ public final class MarketGUI {
         );
     }
 
-    private void qty(Inventory inv, String side, int slot, int qty, int maxAllowed) {
+    private void qty(Inventory inv, MarketSession s, Commodity c, String side, int slot, int qty, int maxAllowed) {
         if (qty > maxAllowed) return;
 
-        Material mat = side.equals("buy") ? Material.LIME_DYE : Material.LIGHT_BLUE_DYE;
-        NamedTextColor color = side.equals("buy") ? NamedTextColor.GREEN : NamedTextColor.AQUA;
+        boolean buy = side.equals("buy");
+        Material mat = buy ? Material.LIME_DYE : Material.LIGHT_BLUE_DYE;
+        NamedTextColor color = buy ? NamedTextColor.GREEN : NamedTextColor.AQUA;
 
-        ItemStack it = button(mat, Component.text((side.equals("buy") ? "Buy " : "Sell ") + qty, color));
+        // The whole order's price along the curve, tax included: what the click actually charges or pays
+        MarketService.OrderQuote order = buy
+                ? market.quoteBuy(s.townId(), c.id(), s.currency(), qty, s.taxRate())
+                : market.quoteSell(s.townId(), c.id(), s.currency(), qty, s.taxRate());
+        long total = buy ? order.gross() : Math.max(0L, order.net());
+
+        ItemStack it = button(mat, Component.text((buy ? "Buy " : "Sell ") + qty, color),
+                List.of(
+                        Component.text((buy ? "You pay: " : "You get: ") + total + " " + s.currency(), NamedTextColor.GRAY),
+                        Component.text("incl. tax " + order.tax(), NamedTextColor.DARK_GRAY)
+                ));
         ItemMeta meta = it.getItemMeta();
         meta.getPersistentDataContainer().set(KEY_SIDE, PersistentDataType.STRING, side);
         meta.getPersistentDataContainer().set(KEY_QTY, PersistentDataType.INTEGER, qty);
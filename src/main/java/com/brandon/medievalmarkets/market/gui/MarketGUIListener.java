@@ -12,6 +12,8 @@ import org.bukkit.inventory.ItemStack;
 import org.bukkit.inventory.meta.ItemMeta;
 import org.bukkit.persistence.PersistentDataContainer;
 
+import java.util.concurrent.CompletableFuture;
+
 public final class MarketGUIListener implements Listener {
 
     private final MarketGUI gui;
@@ -112,21 +114,23 @@ public final class MarketGUIListener implements Listener {
         MarketService market = gui.market();
         String currency = holder.session().currency();
 
-        boolean ok;
+        CompletableFuture<Boolean> trade;
         if (side.equalsIgnoreCase("buy")) {
-            ok = market.buy(p, commodityId, qty, currency);
+            trade = market.buy(p, commodityId, qty, currency);
         }
 
          else if (side.equalsIgnoreCase("sell")) {
-            ok = market.sell(p, commodityId, qty, currency);
+            trade = market.sell(p, commodityId, qty, currency);
         } else {
             return;
         }
 
-        // Refresh trade screen (keeps it feeling responsive)
-        if (ok) {
-            gui.openTrade(p, commodityId);
-        }
+        // Refresh trade screen once the trade settles (next tick), unless the player has left it meanwhile
+        trade.thenAccept(ok -> {
+            if (ok && p.isOnline() && p.getOpenInventory().getTopInventory().getHolder() instanceof MarketGUI.Holder) {
+                gui.openTrade(p, commodityId);
+            }
+        });
     }
 
     @EventHandler(priority = EventPriority.HIGHEST, ignoreCancelled = true)
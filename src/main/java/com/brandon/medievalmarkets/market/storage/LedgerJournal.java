@@ -0,0 +1,422 @@
+package com.brandon.medievalmarkets.market.storage;
+
+import com.brandon.medievalmarkets.market.CommodityIndex;
+import com.brandon.medievalmarkets.market.MarketLedger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Append-only binary journal of ledger mutations.
+ *
+ * The ledger appends one small record per mutation (from inside the row lock, so per-town order
+ * is preserved); a single background thread drains the queue in batches and forces the file
+ * once per batch (group commit). Snapshots fold the journal away: a compaction rotates to a new
+ * segment, writes the changed town shards tagged with that segment number, then prunes older
+ * segments. On startup, every segment at or after the manifest's tag is replayed, skipping the
+ * records of any town whose shard was written after that segment.
+ *
+ * Segment layout: header (magic, version), then records. Commodity ordinals are process-local,
+ * so each segment defines an ordinal with a DICT record before its first use. Since version 2
+ * each record also carries its ledger clock second, so replay decays counters exactly as the
+ * live ledger did; version 1 segments replay as if every record happened at replay time.
+ */
+public final class LedgerJournal implements AutoCloseable {
+
+    public enum Op {
+        SUPPLY(1), DEMAND(2), ADD_STOCK(3), REMOVE_STOCK(4), CLEAR_TOWN(5), SEED(6);
+
+        final byte code;
+
+        Op(int code) { this.code = (byte) code; }
+
+        static Op of(byte code) {
+            for (Op op : values()) if (op.code == code) return op;
+            return null;
+        }
+    }
+
+    private static final int MAGIC = 0x4D4D4A4C; // "MMJL"
+    private static final short VERSION = 2;
+
+    private static final byte DICT = 0;
+    private static final int RECORD_BYTES = 1 + 16 + 4 + 4 + 4;
+
+    private static final String PREFIX = "ledger-";
+    private static final String SUFFIX = ".journal";
+
+    private final Logger log;
+    private final File dir;
+    private final CommodityIndex index;
+    private final boolean fsync;
+    private final int maxBatch;
+
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong segment = new AtomicLong(0L);
+
+    private volatile boolean running;
+    private Thread writer;
+
+    // writer-thread state
+    private FileChannel channel;
+    private boolean[] defined = new boolean[0];
+    private final ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+    private boolean failing;
+
+    public LedgerJournal(Logger log, File dir, CommodityIndex index, boolean fsync, int maxBatch) {
+        this.log = log;
+        this.dir = dir;
+        this.index = index;
+        this.fsync = fsync;
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    /* =========================
+       Lifecycle
+       ========================= */
+
+    /** Opens a fresh segment after any existing ones and starts the writer thread. */
+    public synchronized void start() {
+        if (running) return;
+
+        if (!dir.exists()) dir.mkdirs();
+        List<Long> existing = segments();
+        segment.set(existing.isEmpty() ? 1L : existing.get(existing.size() - 1) + 1L);
+
+        running = true;
+        writer = new Thread(this::runWriter, "MedievalMarkets-LedgerJournal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Drains and forces everything queued so far, then stops the writer. */
+    @Override
+    public synchronized void close() {
+        if (!running) return;
+        flush();
+        running = false;
+        try {
+            writer.join(5_000L);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /* =========================
+       Producer side
+       ========================= */
+
+    public void append(Op op, UUID townId, int ordinal, int qty, int at) {
+        if (!running || op == null || townId == null) return;
+        queue.add(new Entry(op.code, townId.getMostSignificantBits(), townId.getLeastSignificantBits(),
+                ordinal, qty, at, null));
+    }
+
+    /**
+     * Switches appends to a new segment and returns its number. Must be called while the ledger
+     * holds writers out, so everything before the switch is in the snapshot being taken and
+     * everything after it is in the new segment.
+     */
+    public long rotate() {
+        if (!running) return 0L;
+        long next = segment.incrementAndGet();
+        queue.add(control(Control.ROTATE, next));
+        return next;
+    }
+
+    /** Deletes segments older than {@code seq} once a snapshot covering them is durable. */
+    public void pruneBelow(long seq) {
+        if (!running || seq <= 0) return;
+        queue.add(control(Control.PRUNE, seq));
+    }
+
+    /** Blocks until everything queued before this call has been written and forced. */
+    public void flush() {
+        if (!running) return;
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        queue.add(new Entry(Control.FLUSH, 0L, 0L, 0, 0, 0L, done));
+        try {
+            done.get(10, TimeUnit.SECONDS);
+        } catch (Exception ex) {
+            log.warning("[MedievalMarkets] Ledger journal flush timed out: " + ex.getMessage());
+        }
+    }
+
+    private static Entry control(byte kind, long arg) {
+        return new Entry(kind, 0L, 0L, 0, 0, arg, null);
+    }
+
+    /* =========================
+       Writer thread
+       ========================= */
+
+    private void runWriter() {
+        List<Entry> batch = new ArrayList<>(maxBatch);
+        openSegment(segment.get());
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Entry first = queue.poll(250, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1);
+
+                // One bad record must not take the rest of the batch with it: a ROTATE or FLUSH
+                // behind it still has to switch segments or release its caller
+                for (Entry e : batch) {
+                    try {
+                        handle(e);
+                    } catch (Throwable t) {
+                        if (!failing) log.severe("[MedievalMarkets] Ledger journal write failed: " + t.getMessage());
+                        failing = true;
+                        buf.clear(); // drop the half-encoded buffer, not every later batch
+                    }
+                }
+                commit();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            } finally {
+                batch.clear();
+            }
+        }
+
+        commit();
+        closeSegment();
+    }
+
+    private void handle(Entry e) throws IOException {
+        switch (e.kind) {
+            case Control.ROTATE -> {
+                commit();
+                closeSegment();
+                openSegment(e.arg);
+            }
+            case Control.PRUNE -> {
+                for (long seq : segments()) {
+                    if (seq < e.arg) segmentFile(seq).delete();
+                }
+            }
+            case Control.FLUSH -> {
+                try {
+                    commit();
+                } finally {
+                    e.done.complete(null);
+                }
+            }
+            default -> encode(e);
+        }
+    }
+
+    private void encode(Entry e) throws IOException {
+        if (e.ordinal >= 0 && !isDefined(e.ordinal)) {
+            String id = index.id(e.ordinal);
+            byte[] utf = (id == null ? "" : id).getBytes(StandardCharsets.UTF_8);
+            ensureRoom(1 + 4 + 2 + utf.length);
+            buf.put(DICT).putInt(e.ordinal).putShort((short) utf.length).put(utf);
+            markDefined(e.ordinal);
+        }
+
+        ensureRoom(RECORD_BYTES);
+        buf.put(e.kind).putLong(e.msb).putLong(e.lsb).putInt(e.ordinal).putInt(e.qty).putInt((int) e.arg);
+    }
+
+    private void ensureRoom(int bytes) throws IOException {
+        if (buf.remaining() < bytes) drain();
+    }
+
+    private void drain() throws IOException {
+        if (buf.position() == 0) return;
+        if (channel == null) {
+            // the segment did not open (logged there); these records are lost until the next rotation
+            buf.clear();
+            return;
+        }
+        buf.flip();
+        try {
+            while (buf.hasRemaining()) channel.write(buf);
+        } finally {
+            buf.clear();
+        }
+    }
+
+    // one force per batch = group commit
+    private void commit() {
+        try {
+            drain();
+            if (channel == null) return;
+            if (fsync) channel.force(false);
+            failing = false;
+        } catch (IOException ex) {
+            if (!failing) log.severe("[MedievalMarkets] Ledger journal commit failed: " + ex.getMessage());
+            failing = true;
+        }
+    }
+
+    private void openSegment(long seq) {
+        try {
+            channel = FileChannel.open(segmentFile(seq).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            defined = new boolean[index.size()];
+            if (channel.size() == 0) {
+                buf.putInt(MAGIC).putShort(VERSION);
+            }
+        } catch (IOException ex) {
+            channel = null;
+            log.severe("[MedievalMarkets] Could not open ledger journal segment " + seq + ": " + ex.getMessage());
+        }
+    }
+
+    private void closeSegment() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+
+    private boolean isDefined(int ordinal) {
+        return ordinal < defined.length && defined[ordinal];
+    }
+
+    private void markDefined(int ordinal) {
+        if (ordinal >= defined.length) defined = Arrays.copyOf(defined, Math.max(ordinal + 1, index.size()));
+        defined[ordinal] = true;
+    }
+
+    /* =========================
+       Replay
+       ========================= */
+
+    /**
+     * Applies every segment numbered {@code fromSeq} or later to the ledger, oldest first.
+     * Records for a town whose shard already covers the segment ({@link MarketLedger#shardCovers})
+     * are skipped. The ledger must not have this journal attached while replaying. A torn record at the
+     * tail of a segment (crash mid-write) ends that segment. Returns records applied.
+     */
+    public long replayInto(MarketLedger ledger, long fromSeq) {
+        long applied = 0L;
+        for (long seq : segments()) {
+            if (seq < fromSeq) continue;
+            applied += replaySegment(ledger, seq, segmentFile(seq));
+        }
+        if (applied > 0) {
+            log.info("[MedievalMarkets] Replayed " + applied + " ledger journal records.");
+        }
+        return applied;
+    }
+
+    private long replaySegment(MarketLedger ledger, long seq, File file) {
+        long applied = 0L;
+        int[] ordinals = new int[0]; // journal ordinal -> current ordinal
+        int replayTime = MarketLedger.clockNow();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                log.warning("[MedievalMarkets] Skipping ledger journal with bad header: " + file.getName());
+                return 0L;
+            }
+            short version = in.readShort();
+
+            while (true) {
+                byte kind = in.readByte();
+
+                if (kind == DICT) {
+                    int jOrd = in.readInt();
+                    byte[] utf = new byte[in.readUnsignedShort()];
+                    in.readFully(utf);
+                    if (jOrd >= ordinals.length) ordinals = Arrays.copyOf(ordinals, jOrd + 1);
+                    ordinals[jOrd] = index.intern(new String(utf, StandardCharsets.UTF_8));
+                    continue;
+                }
+
+                UUID townId = new UUID(in.readLong(), in.readLong());
+                int jOrd = in.readInt();
+                int qty = in.readInt();
+                int at = (version >= 2) ? in.readInt() : 0;
+                if (at <= 0) at = replayTime;
+                int ord = (jOrd >= 0 && jOrd < ordinals.length) ? ordinals[jOrd] : -1;
+
+                Op op = Op.of(kind);
+                if (op == null) {
+                    log.warning("[MedievalMarkets] Unknown ledger journal record in " + file.getName() + "; stopping.");
+                    break;
+                }
+                if (ledger.shardCovers(townId, seq)) continue;
+
+                switch (op) {
+                    case SUPPLY -> ledger.recordSupply(townId, ord, qty, at);
+                    case DEMAND -> ledger.recordDemand(townId, ord, qty, at);
+                    case ADD_STOCK -> ledger.addStock(townId, ord, qty);
+                    case REMOVE_STOCK -> ledger.removeStock(townId, ord, qty);
+                    case CLEAR_TOWN -> ledger.clearTown(townId);
+                    case SEED -> ledger.seedTownIfMissing(townId, List.of(index.id(ord)), at);
+                }
+                applied++;
+            }
+        } catch (EOFException eof) {
+            // normal end of segment (or a torn tail record)
+        } catch (IOException ex) {
+            log.warning("[MedievalMarkets] Failed reading ledger journal " + file.getName() + ": " + ex.getMessage());
+        }
+        return applied;
+    }
+
+    /* =========================
+       Files
+       ========================= */
+
+    private List<Long> segments() {
+        List<Long> out = new ArrayList<>();
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) return out;
+
+        for (File f : files) {
+            String n = f.getName();
+            try {
+                out.add(Long.parseLong(n.substring(PREFIX.length(), n.length() - SUFFIX.length())));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        out.sort(Long::compare);
+        return out;
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, String.format("%s%08d%s", PREFIX, seq, SUFFIX));
+    }
+
+    private static final class Control {
+        static final byte ROTATE = -1;
+        static final byte PRUNE = -2;
+        static final byte FLUSH = -3;
+    }
+
+    // arg: segment for ROTATE/PRUNE, ledger clock second for records
+    private record Entry(byte kind, long msb, long lsb, int ordinal, int qty, long arg, CompletableFuture<Void> done) {}
+}
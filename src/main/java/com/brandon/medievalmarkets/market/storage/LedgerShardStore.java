@@ -0,0 +1,228 @@
+package com.brandon.medievalmarkets.market.storage;
+
+import com.brandon.medievalmarkets.market.CommodityIndex;
+import com.brandon.medievalmarkets.market.MarketLedger.RowSnapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Per-town ledger shards on disk.
+ *
+ * <pre>
+ *   dir/towns/&lt;uuid&gt;.bin   one town, in the {@link LedgerSnapshotFile} layout
+ *   dir/manifest.bin        global totals and the journal segment to replay from
+ *   dir/save.pending        present while a save is writing shards
+ * </pre>
+ * A shard's journal segment is the first segment whose records it does not reflect, so replay
+ * can skip records a newer shard already contains. The manifest is written after all shards of a
+ * save; if {@code save.pending} survives a crash, the manifest totals may predate some shards and
+ * must be recomputed from the shards themselves.
+ */
+public final class LedgerShardStore {
+
+    private static final int MANIFEST_MAGIC = 0x4D4D4C4D; // "MMLM"
+    private static final short MANIFEST_VERSION = 1;
+
+    private static final String SUFFIX = ".bin";
+
+    private final File dir;
+    private final File townsDir;
+    private final File manifestFile;
+    private final File pendingMarker;
+    private final CommodityIndex index;
+
+    /** One town as stored: rows re-indexed to current ordinals. */
+    public record Shard(long journalSegment, RowSnapshot row) {}
+
+    /**
+     * Server-wide totals as of a save, keyed by commodity id (ordinals are process-local).
+     * Excess sums are relative to {@code decayOrigin} under {@code halfLifeSeconds}.
+     */
+    public record Manifest(long journalSegment, long halfLifeSeconds, int decayOrigin, String[] ids,
+                           long[] supply, long[] demand, long[] supplyTowns, long[] demandTowns,
+                           double[] supplyExcess, double[] demandExcess) {}
+
+    public LedgerShardStore(File dir, CommodityIndex index) {
+        this.dir = dir;
+        this.townsDir = new File(dir, "towns");
+        this.manifestFile = new File(dir, "manifest.bin");
+        this.pendingMarker = new File(dir, "save.pending");
+        this.index = index;
+    }
+
+    public File dir() {
+        return dir;
+    }
+
+    /* =========================
+       Shards
+       ========================= */
+
+    /** Towns that have a shard file. */
+    public Set<UUID> list() {
+        Set<UUID> out = new HashSet<>();
+        File[] files = townsDir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) return out;
+
+        for (File f : files) {
+            String n = f.getName();
+            try {
+                out.add(UUID.fromString(n.substring(0, n.length() - SUFFIX.length())));
+            } catch (IllegalArgumentException ignored) {
+            }
+        }
+        return out;
+    }
+
+    /** Null if the town has no shard. */
+    public Shard read(UUID townId) throws IOException {
+        File file = shardFile(townId);
+        if (!file.exists()) return null;
+
+        LedgerSnapshotFile.Loaded loaded = LedgerSnapshotFile.read(file, index);
+        RowSnapshot row = loaded.rows().get(townId);
+        if (row == null) throw new IOException("Shard " + file.getName() + " does not contain its town");
+        return new Shard(loaded.journalSegment(), row);
+    }
+
+    public void write(UUID townId, long journalSegment, RowSnapshot row) throws IOException {
+        if (!townsDir.exists()) townsDir.mkdirs();
+        LedgerSnapshotFile.write(shardFile(townId), journalSegment, index, Map.of(townId, row));
+    }
+
+    public void delete(UUID townId) {
+        shardFile(townId).delete();
+    }
+
+    /** Bytes on disk; 0 if the town has no shard. */
+    public long size(UUID townId) {
+        return shardFile(townId).length();
+    }
+
+    /** 0 if the town has no shard. */
+    public long lastModified(UUID townId) {
+        return shardFile(townId).lastModified();
+    }
+
+    /** Moves an unreadable shard aside so the next save does not overwrite the evidence. */
+    public void quarantine(UUID townId) {
+        File file = shardFile(townId);
+        file.renameTo(new File(file.getPath() + ".corrupt"));
+    }
+
+    private File shardFile(UUID townId) {
+        return new File(townsDir, townId + SUFFIX);
+    }
+
+    /* =========================
+       Save bracket
+       ========================= */
+
+    public void beginSave() throws IOException {
+        if (!dir.exists()) dir.mkdirs();
+        if (!pendingMarker.exists()) Files.createFile(pendingMarker.toPath());
+    }
+
+    public void endSave() {
+        pendingMarker.delete();
+    }
+
+    /** True if the last save died between writing shards and writing the manifest. */
+    public boolean saveInterrupted() {
+        return pendingMarker.exists();
+    }
+
+    /* =========================
+       Manifest
+       ========================= */
+
+    public boolean hasManifest() {
+        return manifestFile.exists();
+    }
+
+    /** Null if there is no manifest yet. */
+    public Manifest readManifest() throws IOException {
+        if (!manifestFile.exists()) return null;
+
+        byte[] bytes = Files.readAllBytes(manifestFile.toPath());
+        if (bytes.length < 4 + 2 + 8 + 8 + 4 + 4 + 8) throw new IOException("Ledger manifest truncated");
+
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 8);
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        if (buf.getLong(bytes.length - 8) != crc.getValue()) throw new IOException("Ledger manifest checksum mismatch");
+
+        if (buf.getInt() != MANIFEST_MAGIC) throw new IOException("Not a ledger manifest");
+        short version = buf.getShort();
+        if (version != MANIFEST_VERSION) throw new IOException("Unsupported ledger manifest version " + version);
+
+        long segment = buf.getLong();
+        long halfLife = buf.getLong();
+        int origin = buf.getInt();
+
+        int n = buf.getInt();
+        String[] ids = new String[n];
+        long[] supply = new long[n], demand = new long[n], supplyTowns = new long[n], demandTowns = new long[n];
+        double[] supplyExcess = new double[n], demandExcess = new double[n];
+        for (int i = 0; i < n; i++) {
+            byte[] utf = new byte[Short.toUnsignedInt(buf.getShort())];
+            buf.get(utf);
+            ids[i] = new String(utf, StandardCharsets.UTF_8);
+            supply[i] = buf.getLong();
+            demand[i] = buf.getLong();
+            supplyTowns[i] = buf.getLong();
+            demandTowns[i] = buf.getLong();
+            supplyExcess[i] = buf.getDouble();
+            demandExcess[i] = buf.getDouble();
+        }
+        return new Manifest(segment, halfLife, origin, ids, supply, demand, supplyTowns, demandTowns,
+                supplyExcess, demandExcess);
+    }
+
+    /** Written to a temp file and atomically moved into place. */
+    public void writeManifest(Manifest m) throws IOException {
+        int n = m.ids().length;
+        byte[][] utf = new byte[n][];
+        int size = 4 + 2 + 8 + 8 + 4 + 4 + 8;
+        for (int i = 0; i < n; i++) {
+            utf[i] = (m.ids()[i] == null ? "" : m.ids()[i]).getBytes(StandardCharsets.UTF_8);
+            size += 2 + utf[i].length + 6 * 8;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(MANIFEST_MAGIC).putShort(MANIFEST_VERSION);
+        buf.putLong(m.journalSegment()).putLong(m.halfLifeSeconds()).putInt(m.decayOrigin());
+        buf.putInt(n);
+        for (int i = 0; i < n; i++) {
+            buf.putShort((short) utf[i].length).put(utf[i]);
+            buf.putLong(m.supply()[i]).putLong(m.demand()[i]);
+            buf.putLong(m.supplyTowns()[i]).putLong(m.demandTowns()[i]);
+            buf.putDouble(m.supplyExcess()[i]).putDouble(m.demandExcess()[i]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, buf.position());
+        buf.putLong(crc.getValue());
+        buf.flip();
+
+        if (!dir.exists()) dir.mkdirs();
+        File tmp = new File(dir, manifestFile.getName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buf.hasRemaining()) ch.write(buf);
+            ch.force(false);
+        }
+        Files.move(tmp.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,361 @@
+package com.brandon.medievalmarkets.market.storage;
+
+import com.brandon.medievalmarkets.market.CommodityIndex;
+import com.brandon.medievalmarkets.market.MarketLedger.RowSnapshot;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * Versioned binary ledger snapshot, read and written through a {@link MappedByteBuffer}.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   int   magic "MMLS"
+ *   short version
+ *   long  journal segment to replay from
+ *   int   dictionary size N, then N x (ushort len, utf8 commodity id)   -- file ordinal = position
+ *   int   town count T, then T x:
+ *           long msb, long lsb, int cell count C,
+ *           C x (int file ordinal, int supply, int demand, int stock, int touched),
+ *           int W, W x long   -- bitset over file ordinals of seeded (baseline) commodities
+ *   long  CRC32 of everything above
+ * </pre>
+ * {@code touched} is the cell's ledger clock second (counter decay); version 1 files lack it and
+ * load with 0, i.e. "decay from now".
+ * Only the row's sparse cells are written; commodities at the baseline are a bit in the seeded
+ * set (version 3; older files wrote them as ordinary cells). The dictionary lets a snapshot be
+ * read back after config changes reorder or add commodities.
+ *
+ * The same layout serves as a whole-ledger snapshot (pre-shard installs) and as a single-town
+ * shard file (see {@link LedgerShardStore}); for a shard the journal segment is the first segment
+ * whose records are not yet reflected in the file.
+ *
+ * Pre-shard installs also kept a sibling delta file of appended frames holding only changed
+ * cells (absolute values). It is only read now, once, when migrating to shards:
+ * <pre>
+ *   int   frame length L (bytes after this field, CRC included)
+ *   int   magic "MMLT" ("MMLD" frames from before decay carry no touched field)
+ *   long  journal segment to replay from after this frame
+ *   int   dictionary entries D, then D x (int file ordinal, ushort len, utf8 id)
+ *   int   removed town count R, then R x (long msb, long lsb)
+ *   int   town count T, then T x (long msb, long lsb, int C, C x (int ord, int s, int d, int k, int t))
+ *   long  CRC32 of the frame body
+ * </pre>
+ * A torn or corrupt trailing frame ends the delta file; everything after it is covered by the journal.
+ */
+public final class LedgerSnapshotFile {
+
+    private static final int MAGIC = 0x4D4D4C53; // "MMLS"
+    private static final short VERSION = 3;
+
+    private static final int CELL_BYTES = 20;
+
+    private LedgerSnapshotFile() {}
+
+    private static final int DELTA_MAGIC = 0x4D4D4C54;    // "MMLT"
+    private static final int DELTA_MAGIC_V1 = 0x4D4D4C44; // "MMLD", no touched field
+
+    /** Decoded snapshot: rows are re-indexed to the current process's ordinals. */
+    public record Loaded(long journalSegment, Map<UUID, RowSnapshot> rows) {}
+
+    /** The changed cells of one town in a delta frame: parallel arrays of ordinal and absolute values. */
+    public record DirtyCells(int count, int[] ordinals, int[] supply, int[] demand, int[] stock, int[] touched) {}
+
+    /** Decoded delta frame, ordinals already translated to the current process. */
+    public record DeltaFrame(long journalSegment, List<UUID> removed, Map<UUID, DirtyCells> rows) {}
+
+    /* =========================
+       Write
+       ========================= */
+
+    /**
+     * Writes to a temp file and atomically moves it over {@code file}. The dictionary only lists
+     * commodities that have a populated cell, which keeps single-town shard files small.
+     */
+    public static void write(File file, long journalSegment, CommodityIndex index, Map<UUID, RowSnapshot> rows)
+            throws IOException {
+        int[] fileOrd = new int[index.size()];
+        List<byte[]> dict = new ArrayList<>();
+        for (RowSnapshot row : rows.values()) {
+            int max = row.maxOrdinal();
+            if (max >= fileOrd.length) fileOrd = Arrays.copyOf(fileOrd, max + 1);
+            int[] defined = fileOrd;
+            for (int ord : row.ordinals()) define(defined, dict, index, ord);
+            row.forEachSeeded(ord -> define(defined, dict, index, ord));
+        }
+
+        Map<UUID, long[]> seeded = new HashMap<>();
+        long size = 4 + 2 + 8 + 4;
+        for (byte[] utf : dict) size += 2 + utf.length;
+
+        size += 4;
+        for (Map.Entry<UUID, RowSnapshot> e : rows.entrySet()) {
+            long[] bits = seededBits(e.getValue(), fileOrd);
+            seeded.put(e.getKey(), bits);
+            size += 8 + 8 + 4 + (long) CELL_BYTES * e.getValue().cells() + 4 + 8L * bits.length;
+        }
+        size += 8;
+
+        if (size > Integer.MAX_VALUE) throw new IOException("Ledger snapshot too large: " + size + " bytes");
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) parent.mkdirs();
+        File tmp = new File(parent, file.getName() + ".tmp");
+
+        try (FileChannel ch = FileChannel.open(tmp.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            buf.putInt(MAGIC).putShort(VERSION).putLong(journalSegment);
+
+            buf.putInt(dict.size());
+            for (byte[] utf : dict) {
+                buf.putShort((short) utf.length).put(utf);
+            }
+
+            buf.putInt(rows.size());
+            for (Map.Entry<UUID, RowSnapshot> e : rows.entrySet()) {
+                RowSnapshot row = e.getValue();
+                buf.putLong(e.getKey().getMostSignificantBits());
+                buf.putLong(e.getKey().getLeastSignificantBits());
+                buf.putInt(row.cells());
+
+                for (int i = 0; i < row.cells(); i++) {
+                    buf.putInt(fileOrd[row.ordinals()[i]] - 1)
+                            .putInt(row.supply()[i]).putInt(row.demand()[i]).putInt(row.stock()[i])
+                            .putInt(row.touched()[i]);
+                }
+
+                long[] bits = seeded.get(e.getKey());
+                buf.putInt(bits.length);
+                for (long w : bits) buf.putLong(w);
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(buf.duplicate().flip());
+            buf.putLong(crc.getValue());
+
+            buf.force();
+        }
+
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* =========================
+       Read
+       ========================= */
+
+    /** Reads a snapshot, interning any ids the index has not seen yet. */
+    public static Loaded read(File file, CommodityIndex index) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < 4 + 2 + 8 + 4 + 4 + 8) throw new IOException("Ledger snapshot truncated: " + file.getName());
+
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            CRC32 crc = new CRC32();
+            crc.update(buf.duplicate().limit((int) size - 8));
+            if (buf.getLong((int) size - 8) != crc.getValue()) {
+                throw new IOException("Ledger snapshot checksum mismatch: " + file.getName());
+            }
+
+            if (buf.getInt() != MAGIC) throw new IOException("Not a ledger snapshot: " + file.getName());
+            short version = buf.getShort();
+            if (version < 1 || version > VERSION) throw new IOException("Unsupported ledger snapshot version " + version);
+
+            long journalSegment = buf.getLong();
+
+            int dictSize = buf.getInt();
+            int[] ordinals = new int[dictSize];
+            for (int i = 0; i < dictSize; i++) {
+                byte[] utf = new byte[Short.toUnsignedInt(buf.getShort())];
+                buf.get(utf);
+                ordinals[i] = index.intern(new String(utf, StandardCharsets.UTF_8));
+            }
+
+            int townCount = buf.getInt();
+            Map<UUID, RowSnapshot> rows = new HashMap<>(Math.max(16, townCount * 2));
+
+            for (int t = 0; t < townCount; t++) {
+                UUID townId = new UUID(buf.getLong(), buf.getLong());
+                int cells = buf.getInt();
+
+                // Cells sorted by current ordinal, which need not match file order
+                long[] keyed = new long[cells];
+                int[][] values = new int[cells][];
+                int kept = 0;
+                for (int c = 0; c < cells; c++) {
+                    int fileOrd = buf.getInt();
+                    int s = buf.getInt(), d = buf.getInt(), k = buf.getInt();
+                    int at = (version >= 2) ? buf.getInt() : 0;
+                    if (fileOrd < 0 || fileOrd >= dictSize || ordinals[fileOrd] < 0) continue;
+
+                    values[kept] = new int[] {s, d, k, at};
+                    keyed[kept] = ((long) ordinals[fileOrd] << 32) | kept;
+                    kept++;
+                }
+                Arrays.sort(keyed, 0, kept);
+
+                int[] ords = new int[kept], supply = new int[kept], demand = new int[kept], stock = new int[kept], touched = new int[kept];
+                int n = 0;
+                for (int i = 0; i < kept; i++) {
+                    int ord = (int) (keyed[i] >>> 32);
+                    if (n > 0 && ords[n - 1] == ord) continue; // duplicate after a dictionary merge
+                    int[] v = values[(int) keyed[i]];
+                    ords[n] = ord;
+                    supply[n] = v[0];
+                    demand[n] = v[1];
+                    stock[n] = v[2];
+                    touched[n] = v[3];
+                    n++;
+                }
+
+                long[] seeded = new long[0];
+                if (version >= 3) {
+                    long[] fileBits = new long[buf.getInt()];
+                    for (int w = 0; w < fileBits.length; w++) fileBits[w] = buf.getLong();
+                    seeded = remapBits(fileBits, ordinals);
+                }
+                rows.put(townId, new RowSnapshot(Arrays.copyOf(ords, n), Arrays.copyOf(supply, n), Arrays.copyOf(demand, n),
+                        Arrays.copyOf(stock, n), Arrays.copyOf(touched, n), seeded));
+            }
+
+            return new Loaded(journalSegment, rows);
+        }
+    }
+
+    /* =========================
+       Delta frames (legacy, read-only)
+       ========================= */
+
+    /**
+     * Reads delta frames whose journal segment is after {@code baseSegment} (older frames belong to a
+     * previous base and are skipped). Stops quietly at a torn or corrupt frame.
+     */
+    public static List<DeltaFrame> readDeltas(File deltaFile, long baseSegment, CommodityIndex index) throws IOException {
+        List<DeltaFrame> frames = new ArrayList<>();
+        if (!deltaFile.exists()) return frames;
+
+        try (FileChannel ch = FileChannel.open(deltaFile.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size == 0) return frames;
+            if (size > Integer.MAX_VALUE) throw new IOException("Ledger delta file too large: " + size + " bytes");
+
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            while (buf.remaining() >= 4) {
+                int len = buf.getInt();
+                if (len < 8 + 4 + 8 || len > buf.remaining()) break;
+
+                int start = buf.position();
+                CRC32 crc = new CRC32();
+                crc.update(buf.duplicate().position(start).limit(start + len - 8));
+                if (buf.getLong(start + len - 8) != crc.getValue()) break;
+                int magic = buf.getInt();
+                if (magic != DELTA_MAGIC && magic != DELTA_MAGIC_V1) break;
+
+                long segment = buf.getLong();
+                DeltaFrame frame = decodeFrame(buf, segment, index, magic == DELTA_MAGIC);
+                buf.position(start + len);
+
+                if (segment > baseSegment) frames.add(frame);
+            }
+        }
+        return frames;
+    }
+
+    private static DeltaFrame decodeFrame(ByteBuffer buf, long segment, CommodityIndex index, boolean hasTouched) {
+        Map<Integer, Integer> ordinals = new HashMap<>();
+        int dict = buf.getInt();
+        for (int i = 0; i < dict; i++) {
+            int fileOrd = buf.getInt();
+            byte[] utf = new byte[Short.toUnsignedInt(buf.getShort())];
+            buf.get(utf);
+            ordinals.put(fileOrd, index.intern(new String(utf, StandardCharsets.UTF_8)));
+        }
+
+        int removedCount = buf.getInt();
+        List<UUID> removed = new ArrayList<>(removedCount);
+        for (int i = 0; i < removedCount; i++) removed.add(new UUID(buf.getLong(), buf.getLong()));
+
+        int townCount = buf.getInt();
+        Map<UUID, DirtyCells> rows = new HashMap<>();
+        for (int t = 0; t < townCount; t++) {
+            UUID townId = new UUID(buf.getLong(), buf.getLong());
+            int n = buf.getInt();
+            int[] ords = new int[n], sup = new int[n], dem = new int[n], stk = new int[n], tch = new int[n];
+            int kept = 0;
+            for (int c = 0; c < n; c++) {
+                Integer ord = ordinals.get(buf.getInt());
+                int s = buf.getInt(), d = buf.getInt(), k = buf.getInt();
+                int at = hasTouched ? buf.getInt() : 0;
+                if (ord == null || ord < 0) continue;
+                ords[kept] = ord;
+                sup[kept] = s;
+                dem[kept] = d;
+                stk[kept] = k;
+                tch[kept] = at;
+                kept++;
+            }
+            rows.put(townId, new DirtyCells(kept, ords, sup, dem, stk, tch));
+        }
+        return new DeltaFrame(segment, removed, rows);
+    }
+
+    /* =========================
+       Helpers
+       ========================= */
+
+    // Adds ord to the file dictionary on first use; fileOrd is 1-based here (0 = not yet defined)
+    private static void define(int[] fileOrd, List<byte[]> dict, CommodityIndex index, int ord) {
+        if (fileOrd[ord] != 0) return;
+        String id = index.id(ord);
+        dict.add((id == null ? "" : id).getBytes(StandardCharsets.UTF_8));
+        fileOrd[ord] = dict.size();
+    }
+
+    // Row's seeded bitset re-keyed from process ordinals to file ordinals
+    private static long[] seededBits(RowSnapshot row, int[] fileOrd) {
+        long[][] bits = {new long[0]};
+        row.forEachSeeded(ord -> bits[0] = setBit(bits[0], fileOrd[ord] - 1));
+        return bits[0];
+    }
+
+    // File-ordinal bitset back to process ordinals; ids the index rejected are dropped
+    private static long[] remapBits(long[] fileBits, int[] ordinals) {
+        long[] out = new long[0];
+        for (int word = 0; word < fileBits.length; word++) {
+            long w = fileBits[word];
+            while (w != 0) {
+                int fileOrd = (word << 6) + Long.numberOfTrailingZeros(w);
+                w &= w - 1;
+                if (fileOrd < ordinals.length && ordinals[fileOrd] >= 0) out = setBit(out, ordinals[fileOrd]);
+            }
+        }
+        return out;
+    }
+
+    private static long[] setBit(long[] bits, int bit) {
+        int word = bit >>> 6;
+        if (word >= bits.length) bits = Arrays.copyOf(bits, word + 1);
+        bits[word] |= 1L << bit;
+        return bits;
+    }
+}
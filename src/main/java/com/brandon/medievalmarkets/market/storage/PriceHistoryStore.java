@@ -0,0 +1,331 @@
+package com.brandon.medievalmarkets.market.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Price history per town and commodity, kept in a memory-mapped file so samples live in the page
+ * cache rather than on the heap.
+ *
+ * Each town/commodity pair owns one fixed-size slot holding two ring buffers of
+ * (epoch second, raw price, supply, demand) samples:
+ * <ul>
+ *   <li>fine: the latest {@value #FINE} samples; a sample in the same sample interval as the
+ *       newest one replaces it, so a burst of trades costs one entry;</li>
+ *   <li>coarse: the latest {@value #COARSE} buckets of the coarse interval, each the mean of the
+ *       samples recorded in it, so older data survives at a lower resolution.</li>
+ * </ul>
+ * Nothing is sampled on a timer: callers {@link #record} after a mutation.
+ *
+ * Layout (big-endian):
+ * <pre>
+ *   header  int magic "MMPH", short version, short pad, int slot bytes, int slots used, (pad to 64)
+ *   slot    long msb, long lsb, ushort len, 30 bytes utf8 commodity id,
+ *           int fine head, int fine count, int coarse head, int coarse count,
+ *           long bucket start, double raw sum, long supply sum, long demand sum, int bucket n, int pad,
+ *           FINE x sample, COARSE x sample       -- sample: long second, double raw, int supply, int demand
+ * </pre>
+ * The file grows {@value #CHUNK_SLOTS} slots at a time, each chunk mapped separately. A file
+ * with another version or slot size is set aside as {@code .old} and history starts over.
+ */
+public final class PriceHistoryStore {
+
+    private static final int MAGIC = 0x4D4D5048; // "MMPH"
+    private static final short VERSION = 1;
+
+    static final int FINE = 64;
+    static final int COARSE = 64;
+    private static final int SAMPLE_BYTES = 24;
+    private static final int HEADER_BYTES = 64;
+    private static final int ID_BYTES = 30;
+
+    private static final int OFF_ID = 16;
+    private static final int OFF_FINE_HEAD = 48;
+    private static final int OFF_FINE_COUNT = 52;
+    private static final int OFF_COARSE_HEAD = 56;
+    private static final int OFF_COARSE_COUNT = 60;
+    private static final int OFF_BUCKET_START = 64;
+    private static final int OFF_RAW_SUM = 72;
+    private static final int OFF_SUPPLY_SUM = 80;
+    private static final int OFF_DEMAND_SUM = 88;
+    private static final int OFF_BUCKET_N = 96;
+    private static final int OFF_FINE = 104;
+    private static final int OFF_COARSE = OFF_FINE + FINE * SAMPLE_BYTES;
+    static final int SLOT_BYTES = OFF_COARSE + COARSE * SAMPLE_BYTES;
+
+    private static final int CHUNK_SLOTS = 256;
+    private static final long CHUNK_BYTES = (long) CHUNK_SLOTS * SLOT_BYTES;
+
+    /** One point of a series. {@code coarse} points are bucket means. */
+    public record Sample(long epochSecond, double raw, int supply, int demand, boolean coarse) {}
+
+    private record Key(UUID townId, String commodityId) {}
+
+    private final File file;
+    private final Logger log;
+    private final long sampleSeconds;
+    private final long coarseSeconds;
+    private final int maxSeries;
+
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private final List<MappedByteBuffer> chunks = new ArrayList<>();
+    private final Map<Key, Integer> slots = new HashMap<>();
+    private int used;
+    private boolean fullWarned;
+
+    public PriceHistoryStore(File file, Logger log, long sampleSeconds, long coarseSeconds, int maxSeries) {
+        this.file = file;
+        this.log = log;
+        this.sampleSeconds = Math.max(1L, sampleSeconds);
+        this.coarseSeconds = Math.max(this.sampleSeconds, coarseSeconds);
+        this.maxSeries = Math.max(1, maxSeries);
+    }
+
+    /* =========================
+       Lifecycle
+       ========================= */
+
+    /** Maps the file (creating it if needed) and indexes its slots. */
+    public synchronized void open() throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.exists()) parent.mkdirs();
+
+        if (file.exists() && !compatible()) {
+            File old = new File(parent, file.getName() + ".old");
+            old.delete();
+            if (!file.renameTo(old)) throw new IOException("Cannot set aside " + file);
+            log.warning("[MedievalMarkets] Price history file has another layout; moved to " + old.getName());
+        }
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        if (header.getInt(0) != MAGIC) {
+            header.putInt(0, MAGIC);
+            header.putShort(4, VERSION);
+            header.putInt(8, SLOT_BYTES);
+            header.putInt(12, 0);
+        }
+
+        used = header.getInt(12);
+        for (int slot = 0; slot < used; slot++) {
+            ByteBuffer b = slot(slot);
+            int base = base(slot);
+            UUID town = new UUID(b.getLong(base), b.getLong(base + 8));
+            int len = b.getShort(base + OFF_ID) & 0xFFFF;
+            byte[] id = new byte[Math.min(len, ID_BYTES)];
+            b.get(base + OFF_ID + 2, id);
+            slots.put(new Key(town, new String(id, StandardCharsets.UTF_8)), slot);
+        }
+    }
+
+    /** Forces written samples to disk (called with the ledger autosave). */
+    public synchronized void flush() {
+        if (header == null) return;
+        header.force();
+        for (MappedByteBuffer m : chunks) m.force();
+    }
+
+    public synchronized void close() {
+        flush();
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException ignored) {
+        }
+        channel = null;
+        header = null;
+        chunks.clear();
+        slots.clear();
+    }
+
+    private boolean compatible() {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (ch.size() < HEADER_BYTES) return false;
+            ByteBuffer b = ByteBuffer.allocate(HEADER_BYTES);
+            ch.read(b, 0);
+            return b.getInt(0) == MAGIC && b.getShort(4) == VERSION && b.getInt(8) == SLOT_BYTES;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /* =========================
+       Record / query
+       ========================= */
+
+    /** Adds a sample for a town/commodity at {@code epochSecond}; a no-op once {@code maxSeries} slots are taken. */
+    public synchronized void record(UUID townId, String commodityId, long epochSecond, double raw, int supply, int demand) {
+        if (header == null || townId == null || commodityId == null) return;
+
+        int slot;
+        ByteBuffer b;
+        try {
+            slot = slotFor(new Key(townId, commodityId));
+            if (slot < 0) return;
+            b = slot(slot);
+        } catch (IOException ex) {
+            log.warning("[MedievalMarkets] Price history: cannot grow file: " + ex.getMessage());
+            return;
+        }
+        int base = base(slot);
+
+        // Coarse: close the open bucket when this sample falls outside it
+        long bucket = epochSecond - Math.floorMod(epochSecond, coarseSeconds);
+        int n = b.getInt(base + OFF_BUCKET_N);
+        long open = b.getLong(base + OFF_BUCKET_START);
+        if (n > 0 && bucket != open) {
+            append(b, base, OFF_COARSE, OFF_COARSE_HEAD, OFF_COARSE_COUNT, COARSE, open,
+                    b.getDouble(base + OFF_RAW_SUM) / n,
+                    (int) (b.getLong(base + OFF_SUPPLY_SUM) / n),
+                    (int) (b.getLong(base + OFF_DEMAND_SUM) / n), false);
+            n = 0;
+        }
+        if (n == 0) {
+            b.putLong(base + OFF_BUCKET_START, bucket);
+            b.putDouble(base + OFF_RAW_SUM, 0.0);
+            b.putLong(base + OFF_SUPPLY_SUM, 0L);
+            b.putLong(base + OFF_DEMAND_SUM, 0L);
+        }
+        b.putDouble(base + OFF_RAW_SUM, b.getDouble(base + OFF_RAW_SUM) + raw);
+        b.putLong(base + OFF_SUPPLY_SUM, b.getLong(base + OFF_SUPPLY_SUM) + supply);
+        b.putLong(base + OFF_DEMAND_SUM, b.getLong(base + OFF_DEMAND_SUM) + demand);
+        b.putInt(base + OFF_BUCKET_N, n + 1);
+
+        // Fine: replace the newest entry if it falls in the same sample interval
+        int count = b.getInt(base + OFF_FINE_COUNT);
+        boolean replace = false;
+        if (count > 0) {
+            int last = Math.floorMod(b.getInt(base + OFF_FINE_HEAD) - 1, FINE);
+            long lastSecond = b.getLong(base + OFF_FINE + last * SAMPLE_BYTES);
+            replace = Math.floorDiv(lastSecond, sampleSeconds) == Math.floorDiv(epochSecond, sampleSeconds);
+        }
+        append(b, base, OFF_FINE, OFF_FINE_HEAD, OFF_FINE_COUNT, FINE, epochSecond, raw, supply, demand, replace);
+    }
+
+    /**
+     * The series for a town/commodity, oldest first: coarse buckets older than the oldest fine
+     * sample, then the fine samples. Empty if nothing was recorded.
+     */
+    public synchronized List<Sample> series(UUID townId, String commodityId) {
+        List<Sample> out = new ArrayList<>();
+        if (header == null) return out;
+        Integer slot = slots.get(new Key(townId, commodityId));
+        if (slot == null) return out;
+
+        ByteBuffer b;
+        try {
+            b = slot(slot);
+        } catch (IOException ex) {
+            return out;
+        }
+        int base = base(slot);
+
+        List<Sample> fine = read(b, base, OFF_FINE, OFF_FINE_HEAD, OFF_FINE_COUNT, FINE, false);
+        long oldestFine = fine.isEmpty() ? Long.MAX_VALUE : fine.get(0).epochSecond();
+        for (Sample s : read(b, base, OFF_COARSE, OFF_COARSE_HEAD, OFF_COARSE_COUNT, COARSE, true)) {
+            if (s.epochSecond() + coarseSeconds <= oldestFine) out.add(s);
+        }
+        out.addAll(fine);
+        return out;
+    }
+
+    /** Series stored / bytes mapped. */
+    public synchronized int seriesCount() {
+        return used;
+    }
+
+    public synchronized long mappedBytes() {
+        return HEADER_BYTES + chunks.size() * CHUNK_BYTES;
+    }
+
+    /* =========================
+       Rings
+       ========================= */
+
+    private static void append(ByteBuffer b, int base, int ring, int headOff, int countOff, int cap,
+                               long second, double raw, int supply, int demand, boolean replaceNewest) {
+        int head = b.getInt(base + headOff);
+        int count = b.getInt(base + countOff);
+        int at = replaceNewest ? Math.floorMod(head - 1, cap) : head;
+
+        int p = base + ring + at * SAMPLE_BYTES;
+        b.putLong(p, second);
+        b.putDouble(p + 8, raw);
+        b.putInt(p + 16, supply);
+        b.putInt(p + 20, demand);
+
+        if (!replaceNewest) {
+            b.putInt(base + headOff, (head + 1) % cap);
+            b.putInt(base + countOff, Math.min(cap, count + 1));
+        }
+    }
+
+    private static List<Sample> read(ByteBuffer b, int base, int ring, int headOff, int countOff, int cap, boolean coarse) {
+        int head = b.getInt(base + headOff);
+        int count = Math.min(cap, b.getInt(base + countOff));
+        List<Sample> out = new ArrayList<>(count);
+        for (int i = count; i > 0; i--) {
+            int p = base + ring + Math.floorMod(head - i, cap) * SAMPLE_BYTES;
+            out.add(new Sample(b.getLong(p), b.getDouble(p + 8), b.getInt(p + 16), b.getInt(p + 20), coarse));
+        }
+        return out;
+    }
+
+    /* =========================
+       Slots
+       ========================= */
+
+    private int slotFor(Key key) throws IOException {
+        Integer slot = slots.get(key);
+        if (slot != null) return slot;
+
+        if (used >= maxSeries) {
+            if (!fullWarned) {
+                log.warning("[MedievalMarkets] Price history is full (" + maxSeries + " series); new series are not recorded");
+                fullWarned = true;
+            }
+            return -1;
+        }
+
+        int s = used;
+        ByteBuffer b = slot(s);
+        int base = base(s);
+        byte[] id = key.commodityId().getBytes(StandardCharsets.UTF_8);
+        int len = Math.min(id.length, ID_BYTES);
+
+        b.putLong(base, key.townId().getMostSignificantBits());
+        b.putLong(base + 8, key.townId().getLeastSignificantBits());
+        b.putShort(base + OFF_ID, (short) len);
+        b.put(base + OFF_ID + 2, id, 0, len);
+        for (int off = OFF_FINE_HEAD; off < OFF_FINE; off += 4) b.putInt(base + off, 0);
+
+        used = s + 1;
+        header.putInt(12, used);
+        slots.put(key, s);
+        return s;
+    }
+
+    // The chunk holding a slot, mapping (and growing the file) on first use
+    private ByteBuffer slot(int slot) throws IOException {
+        int chunk = slot / CHUNK_SLOTS;
+        while (chunks.size() <= chunk) {
+            chunks.add(channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + chunks.size() * CHUNK_BYTES, CHUNK_BYTES));
+        }
+        return chunks.get(chunk);
+    }
+
+    private static int base(int slot) {
+        return (slot % CHUNK_SLOTS) * SLOT_BYTES;
+    }
+}
@@ -0,0 +1,270 @@
+package com.brandon.medievalmarkets.market.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Append-only journal of town treasury nets that have not reached MPC yet.
+ *
+ * Three records: DELTA (a trade moved a town's net), BEGIN (a flush is about to transfer an
+ * amount, tagged with a flush id) and END (that transfer went through, or did not). On startup the
+ * file is replayed into the nets still owed and rewritten as one DELTA per non-zero net. A BEGIN
+ * with no END means the server died while the transfer was in flight; whether it reached MPC is
+ * unknown, so it is counted as done and reported to the admin as uncertain rather than risk paying
+ * it twice.
+ *
+ * Layout: header (magic, version), then records. Each record is one append; a torn record at the
+ * tail (crash mid-write) ends the replay. Appends do not force the file: callers pass the sequence
+ * an append returns to {@link #sync}, which forces once for every caller waiting at the time (group
+ * commit), so a writer can append under its own lock and wait for the disk outside it.
+ */
+public final class TreasuryNetJournal implements AutoCloseable {
+
+    /** A town's net in one currency, in whole coins; positive = owed to the town. */
+    public record Net(UUID townId, String currency, long coins) {}
+
+    /** What replay found: nets still owed, and flushes that may or may not have happened. */
+    public record Replayed(List<Net> nets, List<Net> uncertain) {}
+
+    private static final int MAGIC = 0x4D4D544E; // "MMTN"
+    private static final short VERSION = 1;
+
+    private static final byte DELTA = 1;
+    private static final byte BEGIN = 2;
+    private static final byte END = 3;
+
+    private final File file;
+    private final Logger log;
+    private final boolean fsync;
+
+    private FileChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocate(256);
+    private boolean failing;
+    private long written;          // records appended so far; guarded by this
+
+    private final Object forceLock = new Object();
+    private volatile long forced;  // records known to be on disk
+
+    public TreasuryNetJournal(File file, Logger log, boolean fsync) {
+        this.file = file;
+        this.log = log;
+        this.fsync = fsync;
+    }
+
+    /* =========================
+       Lifecycle
+       ========================= */
+
+    /** Replays the existing file, rewrites it compacted and opens it for appending. */
+    public synchronized Replayed open() throws IOException {
+        Replayed r = file.exists() ? replay() : new Replayed(List.of(), List.of());
+        compact(r.nets());
+        return r;
+    }
+
+    /** Rewrites the file as one DELTA per net (atomically), then keeps appending to it. */
+    public synchronized void compact(List<Net> nets) throws IOException {
+        closeChannel();
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists()) dir.mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try {
+            try (FileChannel out = FileChannel.open(tmp.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(6).putInt(MAGIC).putShort(VERSION);
+                header.flip();
+                while (header.hasRemaining()) out.write(header);
+                for (Net n : nets) {
+                    if (n.coins() == 0L) continue;
+                    ByteBuffer b = encode(DELTA, 0L, n.townId(), n.currency(), n.coins(), false);
+                    while (b.hasRemaining()) out.write(b);
+                }
+                out.force(true);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            forced = written; // everything appended so far is in the nets just written
+        } finally {
+            // On failure the old file is intact: keep appending to it
+            if (file.exists()) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+        }
+    }
+
+    /** Bytes in the file so far; the owner compacts when this grows. */
+    public synchronized long size() {
+        try {
+            return (channel == null) ? 0L : channel.size();
+        } catch (IOException ex) {
+            return 0L;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closeChannel();
+    }
+
+    private void closeChannel() {
+        if (channel == null) return;
+        try {
+            if (fsync) channel.force(false);
+            channel.close();
+            forced = written;
+        } catch (IOException ignored) {
+        }
+        channel = null;
+    }
+
+    /* =========================
+       Append
+       ========================= */
+
+    // Each append returns its sequence for sync()
+
+    public synchronized long delta(UUID townId, String currency, long coins) {
+        return append(encode(DELTA, 0L, townId, currency, coins, false));
+    }
+
+    public synchronized long begin(long flushId, UUID townId, String currency, long coins) {
+        return append(encode(BEGIN, flushId, townId, currency, coins, false));
+    }
+
+    public synchronized long end(long flushId, boolean applied) {
+        return append(encode(END, flushId, null, null, 0L, applied));
+    }
+
+    /**
+     * Returns once the append numbered {@code seq}, and everything before it, is on disk (at once
+     * when {@code fsync} is off). One caller forces the file; those that queued behind it usually
+     * find their record already covered.
+     */
+    public void sync(long seq) {
+        if (!fsync || forced >= seq) return;
+        synchronized (forceLock) {
+            if (forced >= seq) return;
+            long upTo;
+            FileChannel ch;
+            synchronized (this) {
+                upTo = written;
+                ch = channel;
+            }
+            if (ch == null) return;
+            try {
+                ch.force(false);
+                forced = Math.max(forced, upTo);
+            } catch (IOException ex) {
+                // a compaction may have swapped the file under us; it forced everything it kept
+                if (forced < seq) log.severe("[MedievalMarkets] Treasury net journal sync failed: " + ex.getMessage());
+            }
+        }
+    }
+
+    private ByteBuffer encode(byte kind, long flushId, UUID townId, String currency, long coins, boolean applied) {
+        buf.clear();
+        buf.put(kind);
+        if (kind == END) {
+            buf.putLong(flushId).put((byte) (applied ? 1 : 0));
+        } else {
+            byte[] utf = currency.getBytes(StandardCharsets.UTF_8);
+            if (kind == BEGIN) buf.putLong(flushId);
+            buf.putLong(townId.getMostSignificantBits()).putLong(townId.getLeastSignificantBits())
+                    .putShort((short) utf.length).put(utf).putLong(coins);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private long append(ByteBuffer b) {
+        if (channel == null) return written;
+        try {
+            while (b.hasRemaining()) channel.write(b);
+            failing = false;
+        } catch (IOException ex) {
+            if (!failing) log.severe("[MedievalMarkets] Treasury net journal write failed: " + ex.getMessage());
+            failing = true;
+        }
+        return ++written;
+    }
+
+    /* =========================
+       Replay
+       ========================= */
+
+    private Replayed replay() {
+        Map<String, Net> nets = new LinkedHashMap<>();  // town|currency -> net
+        Map<Long, Net> open = new HashMap<>();          // flush id -> BEGIN without END
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                in.close();
+                File aside = new File(file.getPath() + ".bad");
+                log.warning("[MedievalMarkets] Treasury net journal has a bad header; moved to " + aside.getName());
+                Files.move(file.toPath(), aside.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                return new Replayed(List.of(), List.of());
+            }
+            in.readShort(); // version
+
+            while (true) {
+                byte kind = in.readByte();
+                if (kind == END) {
+                    long id = in.readLong();
+                    boolean applied = in.readByte() != 0;
+                    Net n = open.remove(id);
+                    if (n != null && !applied) add(nets, n.townId(), n.currency(), n.coins());
+                    continue;
+                }
+                if (kind != DELTA && kind != BEGIN) {
+                    log.warning("[MedievalMarkets] Unknown treasury net journal record; stopping replay.");
+                    break;
+                }
+
+                long id = (kind == BEGIN) ? in.readLong() : 0L;
+                UUID townId = new UUID(in.readLong(), in.readLong());
+                byte[] utf = new byte[in.readUnsignedShort()];
+                in.readFully(utf);
+                String currency = new String(utf, StandardCharsets.UTF_8);
+                long coins = in.readLong();
+
+                if (kind == DELTA) {
+                    add(nets, townId, currency, coins);
+                } else {
+                    add(nets, townId, currency, -coins); // taken out of the net when the flush began
+                    open.put(id, new Net(townId, currency, coins));
+                }
+            }
+        } catch (EOFException eof) {
+            // normal end of file (or a torn tail record)
+        } catch (IOException ex) {
+            log.warning("[MedievalMarkets] Failed reading treasury net journal: " + ex.getMessage());
+        }
+
+        List<Net> owed = new ArrayList<>();
+        for (Net n : nets.values()) if (n.coins() != 0L) owed.add(n);
+        return new Replayed(owed, new ArrayList<>(open.values()));
+    }
+
+    private static void add(Map<String, Net> nets, UUID townId, String currency, long coins) {
+        nets.merge(townId + "|" + currency, new Net(townId, currency, coins),
+                (a, b) -> new Net(a.townId(), a.currency(), a.coins() + b.coins()));
+    }
+}
@@ -0,0 +1,109 @@
+package com.brandon.medievalmarkets.market;
+
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Holds {@link PowCurve} to its documented {@link PowCurve#maxRelativeError} against Math.pow over
+ * the ledger's clamped count range, so a change to the tables cannot quietly break the bound that
+ * validation mode only checks at startup.
+ */
+class PowCurveTest {
+
+    private static final int RANDOM_PAIRS = 200_000;
+
+    @Test
+    void everyConfiguredElasticityStaysWithinItsBound() throws IOException {
+        for (double e : configuredElasticities()) {
+            PowCurve curve = PowCurve.of(e);
+            double worst = worstError(curve);
+            assertTrue(worst <= curve.maxRelativeError(), () -> String.format(
+                    "elasticity %s (%s): max relative error %.3g exceeds bound %.3g",
+                    e, curve.kind(), worst, curve.maxRelativeError()));
+        }
+    }
+
+    @Test
+    void tablePathStaysUnderOneInTenMillionUpToElasticityOne() {
+        for (int i = 1; i <= 100; i++) {
+            double e = i / 100.0;
+            PowCurve curve = PowCurve.of(e);
+            double worst = worstError(curve);
+            assertTrue(worst <= curve.maxRelativeError(), () -> String.format(
+                    "elasticity %s: max relative error %.3g exceeds bound %.3g", e, worst, curve.maxRelativeError()));
+            assertTrue(curve.maxRelativeError() < 1e-7, () -> "bound for elasticity " + e + " is " + curve.maxRelativeError());
+        }
+    }
+
+    @Test
+    void validationModeAgreesWithTheBound() throws IOException {
+        for (double e : configuredElasticities()) {
+            PowCurve curve = PowCurve.of(e);
+            double worst = curve.validate(MarketLedger.MIN_COUNT, MarketLedger.MAX_COUNT, MarketLedger.BASELINE);
+            assertTrue(worst <= curve.maxRelativeError(), () -> "validate() rejects elasticity " + e);
+        }
+    }
+
+    // Largest relative error against Math.pow: the clamp edges, both sides of every power of two
+    // (where log2's table restarts) against the baseline, and random log-uniform pairs
+    private static double worstError(PowCurve curve) {
+        int min = MarketLedger.MIN_COUNT, max = MarketLedger.MAX_COUNT, base = MarketLedger.BASELINE;
+        double worst = 0.0;
+
+        int[] edges = {min, min + 1, base - 1, base, base + 1, max - 1, max};
+        for (int d : edges) {
+            for (int s : edges) worst = Math.max(worst, error(curve, d, s));
+        }
+        for (int k = 1; k < 31 && (1 << k) <= max; k++) {
+            for (int n = (1 << k) - 1; n <= (1 << k) + 1 && n <= max; n++) {
+                worst = Math.max(worst, error(curve, n, base));
+                worst = Math.max(worst, error(curve, base, n));
+            }
+        }
+
+        Random r = new Random(0x90C0L);
+        double span = Math.log((double) max / min);
+        for (int i = 0; i < RANDOM_PAIRS; i++) {
+            int d = (int) Math.min(max, Math.round(min * Math.exp(span * r.nextDouble())));
+            int s = (int) Math.min(max, Math.round(min * Math.exp(span * r.nextDouble())));
+            worst = Math.max(worst, error(curve, Math.max(min, d), Math.max(min, s)));
+        }
+        return worst;
+    }
+
+    private static double error(PowCurve curve, int demand, int supply) {
+        double ref = Math.pow((double) demand / supply, curve.elasticity());
+        return Math.abs(curve.apply(demand, supply) - ref) / ref;
+    }
+
+    // Distinct elasticities of the shipped config.yml's commodities, read the way loadDefaults does
+    private static Set<Double> configuredElasticities() throws IOException {
+        InputStream in = PowCurveTest.class.getResourceAsStream("/config.yml");
+        assertNotNull(in, "config.yml not on the test classpath");
+        try (Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            ConfigurationSection sec = YamlConfiguration.loadConfiguration(reader).getConfigurationSection("commodities");
+            assertNotNull(sec, "config.yml has no commodities section");
+
+            Set<Double> out = new TreeSet<>();
+            for (String key : sec.getKeys(false)) {
+                ConfigurationSection c = sec.getConfigurationSection(key);
+                if (c != null) out.add(c.getDouble("elasticity", 0.25));
+            }
+            assertTrue(out.size() > 1, "expected several configured elasticities, got " + out);
+            return out;
+        }
+    }
+}
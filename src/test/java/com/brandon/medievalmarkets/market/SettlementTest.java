@@ -0,0 +1,178 @@
+package com.brandon.medievalmarkets.market;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Differential test of {@link Settlement#FIXED} against the original {@link Settlement#DOUBLE}
+ * arithmetic: random trades must agree to within the one-coin rounding at a boundary, and the
+ * edge cases of the fixed-point rounding policy hold exactly.
+ */
+class SettlementTest {
+
+    private static final Settlement DOUBLE = Settlement.DOUBLE;
+    private static final Settlement FIXED = Settlement.FIXED;
+    private static final long MICROS = Settlement.MICROS;
+
+    // Widest spread defendedSpread() produces: 8% base plus 35% at full treasury stress
+    private static final double MAX_SPREAD = 0.08 + 0.35;
+
+    @Test
+    void randomTradesAgreeWithinOneCoin() {
+        Comparison c = compare(DOUBLE, FIXED, 200_000, 0x5E77L);
+        assertEquals(200_000, c.samples());
+        // Beyond one coin, only the half-ppm rounding of spread and tax rate may show
+        assertTrue(c.maxRelativeExcess() <= 2e-6, () -> "fixed-point drifted from double: " + c);
+    }
+
+    @Test
+    void zeroQuantitySettlesToNothing() {
+        for (Settlement s : new Settlement[] {DOUBLE, FIXED}) {
+            MarketService.Quote q = s.quote(12.5, 0.08);
+            assertEquals(0L, s.buyTotal(q, 0), s.name() + " buy total");
+            assertEquals(0L, s.sellTotal(q, 0), s.name() + " sell total");
+            assertEquals(0L, s.buyTotal(q, -3), s.name() + " negative buy total");
+            assertEquals(0L, s.sellTotal(q, -3), s.name() + " negative sell total");
+            assertEquals(0L, s.tax(0, 0.25), s.name() + " tax on nothing");
+            assertEquals(0L, s.tax(100, 0.0), s.name() + " tax at rate 0");
+        }
+    }
+
+    @Test
+    void halfMicroRoundsUp() {
+        // (k + 0.5) / MICROS lands exactly on the half for these k
+        for (long k : new long[] {0, 1, 7, 123_456, 999_999, 1_234_567}) {
+            double v = (k + 0.5) / MICROS;
+            assertEquals(k + 0.5, v * MICROS, 0.0, "not an exact half: " + k);
+            assertEquals(k + 1, Settlement.toMicros(v), "half-up at " + k);
+            assertEquals(k, Settlement.toMicros((k + 0.4) / MICROS), "below the half at " + k);
+        }
+
+        // The raw price rounds half-up once; buy rounds up from there and sell rounds down
+        MarketService.Quote q = FIXED.quote(1_234_567.5 / MICROS, 0.0);
+        assertEquals(1_234_568L, q.buyMicros());
+        assertEquals(1_234_568L, q.sellMicros());
+        assertEquals(2L, q.buyEach());
+        assertEquals(1L, q.sellEach());
+    }
+
+    @Test
+    void taxRoundsTowardTheTownAtTheHalf() {
+        // 0.5 ppm of rate rounds up to the next ppm
+        assertEquals(123_457L, FIXED.tax(MICROS, 123_456.5 / MICROS));
+        assertEquals(123_457L, DOUBLE.tax(MICROS, 123_456.5 / MICROS));
+
+        // Half a coin of tax is a whole coin, in both settlements
+        for (Settlement s : new Settlement[] {DOUBLE, FIXED}) {
+            assertEquals(1L, s.tax(1, 0.5), s.name());
+            assertEquals(2L, s.tax(3, 0.5), s.name());
+            assertEquals(500_001L, s.tax(1_000_001, 0.5), s.name());
+            assertEquals(1L, s.tax(1, 1.0 / MICROS), s.name() + " one ppm of one coin");
+        }
+    }
+
+    @Test
+    void saturatesAtLongMaxInsteadOfOverflowing() {
+        // Products past 2^63 micro-coins whose result still fits must come out exact
+        assertEquals(Long.MAX_VALUE / 4 + 1, FIXED.tax(Long.MAX_VALUE, 0.25));
+        MarketService.Quote two = FIXED.quote(2.0, 0.0);
+        assertEquals(10_000_000_000_000L, FIXED.buyTotal(two, 5_000_000_000_000L));
+        assertEquals(10_000_000_000_000L, FIXED.sellTotal(two, 5_000_000_000_000L));
+
+        // Results past Long.MAX_VALUE pin there, never wrap negative
+        MarketService.Quote huge = FIXED.quote(1e30, MAX_SPREAD);
+        assertEquals(Long.MAX_VALUE, huge.buyMicros());
+        assertEquals(Long.MAX_VALUE, FIXED.buyTotal(huge, Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, FIXED.sellTotal(huge, Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, DOUBLE.buyTotal(DOUBLE.quote(1e30, MAX_SPREAD), Long.MAX_VALUE));
+
+        // Near the top both settlements agree to double precision
+        long coins = Long.MAX_VALUE / 2;
+        double rel = Math.abs(FIXED.tax(coins, 0.2) - (double) DOUBLE.tax(coins, 0.2)) / (coins * 0.2);
+        assertTrue(rel < 1e-15, () -> "tax near Long.MAX_VALUE differs by " + rel);
+    }
+
+    @Test
+    void maximumSpreadAgreesAndKeepsBuyAboveSell() {
+        for (double raw = 0.0001; raw < 1e6; raw *= 1.37) {
+            MarketService.Quote d = DOUBLE.quote(raw, MAX_SPREAD), f = FIXED.quote(raw, MAX_SPREAD);
+            String at = "raw " + raw;
+            assertTrue(f.buyEach() >= f.sellEach(), at);
+            assertTrue(f.sellMicros() >= 0, at);
+            assertTrue(Math.abs(d.buyEach() - f.buyEach()) <= 1, at + " buy");
+            assertTrue(Math.abs(d.sellEach() - f.sellEach()) <= 1, at + " sell");
+
+            for (long qty : new long[] {1, 64, 2304}) {
+                long db = DOUBLE.buyTotal(d, qty), fb = FIXED.buyTotal(f, qty);
+                long ds = DOUBLE.sellTotal(d, qty), fs = FIXED.sellTotal(f, qty);
+                // one coin of boundary rounding plus half a ppm of the price
+                assertTrue(Math.abs(db - fb) <= 1 + 1e-6 * db, at + " x" + qty + ": buy " + db + " vs " + fb);
+                assertTrue(Math.abs(ds - fs) <= 1 + 1e-6 * ds, at + " x" + qty + ": sell " + ds + " vs " + fs);
+            }
+        }
+
+        // A spread of 100% or more can never pay a seller a negative amount
+        assertEquals(0L, FIXED.quote(10.0, 1.0).sellMicros());
+        assertEquals(0L, FIXED.quote(10.0, 1.5).sellMicros());
+    }
+
+    /* =========================
+       Differential check
+       ========================= */
+
+    /**
+     * How often two settlements disagree, by how many coins at most, and the largest disagreement
+     * beyond one coin relative to the amount settled (for tax, the taxed amount).
+     */
+    private record Comparison(int samples, int quoteDiffs, int totalDiffs, int taxDiffs,
+                              long maxCoinDiff, double maxRelativeExcess) {}
+
+    /**
+     * Settles the same random trades (prices 0.0001 to 100k coins, spreads 8-43%, tax 0-25%,
+     * quantities 1 to 2304) through both settlements and counts differing coin amounts. Double and
+     * fixed-point differ by the one-coin rounding at a boundary plus the half-ppm rounding of the
+     * spread and tax rate, so {@code maxRelativeExcess} is expected to stay below about 1e-6
+     * (half a ppm of a sell price at the widest spread).
+     */
+    private static Comparison compare(Settlement a, Settlement b, int samples, long seed) {
+        Random r = new Random(seed);
+        int quoteDiffs = 0, totalDiffs = 0, taxDiffs = 0;
+        long[] max = new long[1];
+        double[] excess = new double[1];
+
+        for (int i = 0; i < samples; i++) {
+            double raw = Math.pow(10.0, -4.0 + 9.0 * r.nextDouble());
+            double spread = 0.08 + 0.35 * r.nextDouble();
+            double rate = (r.nextInt(4) == 0) ? 0.0 : 0.25 * r.nextDouble();
+            long qty = 1 + r.nextInt(36 * 64);
+
+            MarketService.Quote qa = a.quote(raw, spread), qb = b.quote(raw, spread);
+            if (qa.buyEach() != qb.buyEach() || qa.sellEach() != qb.sellEach()) quoteDiffs++;
+            diff(qa.buyEach(), qb.buyEach(), qa.buyEach(), max, excess);
+            diff(qa.sellEach(), qb.sellEach(), qa.sellEach(), max, excess);
+
+            long buyA = a.buyTotal(qa, qty), buyB = b.buyTotal(qb, qty);
+            long sellA = a.sellTotal(qa, qty), sellB = b.sellTotal(qb, qty);
+            if (buyA != buyB || sellA != sellB) totalDiffs++;
+            diff(buyA, buyB, buyA, max, excess);
+            diff(sellA, sellB, sellA, max, excess);
+
+            // Tax on the same base, so tax rounding is compared on its own
+            long taxA = a.tax(buyA, rate), taxB = b.tax(buyA, rate);
+            if (taxA != taxB) taxDiffs++;
+            diff(taxA, taxB, buyA, max, excess);
+        }
+        return new Comparison(samples, quoteDiffs, totalDiffs, taxDiffs, max[0], excess[0]);
+    }
+
+    // Excess is measured against the amount the rounding applied to (the pre-tax total for tax)
+    private static void diff(long a, long b, long amount, long[] max, double[] excess) {
+        long d = Math.abs(a - b);
+        max[0] = Math.max(max[0], d);
+        if (d > 1) excess[0] = Math.max(excess[0], (d - 1) / (double) Math.max(1L, amount));
+    }
+}
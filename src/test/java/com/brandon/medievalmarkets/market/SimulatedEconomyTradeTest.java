@@ -0,0 +1,138 @@
+package com.brandon.medievalmarkets.market;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs buys and sells through {@link TradePipeline} and the {@link TradeLegs} MarketService
+ * settles with, against a {@link SimulatedEconomy} that fails and stalls calls, and checks that no
+ * coins are created or lost beyond what the trade path itself reports: failed reversals of a
+ * trade's first leg, and the guard's late transfers it could not undo. With treasury netting on,
+ * the towns' unflushed nets count as theirs.
+ */
+class SimulatedEconomyTradeTest {
+
+    private static final int PLAYERS = 16;
+    private static final int TOWNS = 4;
+
+    // 20ms deadline against 60ms stalls: stalled transfers time out and land late
+    private static final SimulatedEconomy.Profile FLAKY = new SimulatedEconomy.Profile(1_000.0, 0.05, 0.5, 0.05, 0.03, 60L);
+
+    @Test
+    void failuresAndStallsNeitherCreateNorDestroyCoins() throws Exception {
+        SimulatedTrades sim = SimulatedTrades.direct(FLAKY, PLAYERS, TOWNS);
+        sim.guard().configure(20L, 20L, Integer.MAX_VALUE, 1, 8);
+
+        Run run = trade(sim, 2_000);
+
+        long timeouts = 0L, failures = 0L;
+        for (EconomyGuard.OpStats o : sim.guard().status().ops()) {
+            timeouts += o.timeouts();
+            failures += o.failures();
+        }
+        assertTrue(timeouts > 0, "no call timed out");
+        assertTrue(failures > timeouts, "no injected failure");
+        assertTrue(run.settled > 0 && run.unsettled > 0, () -> run.settled + " settled, " + run.unsettled + " not");
+        run.assertConserved();
+    }
+
+    @Test
+    void nettedTradesAndFlushesNeitherCreateNorDestroyCoins() throws Exception {
+        File dir = Files.createTempDirectory("mm-nets").toFile();
+        File journal = new File(dir, "treasury-nets.journal");
+        SimulatedTrades sim = SimulatedTrades.netted(FLAKY, PLAYERS, TOWNS, journal);
+        sim.guard().configure(20L, 20L, Integer.MAX_VALUE, 1, 8);
+
+        Run run = trade(sim, 2_000);
+
+        assertTrue(run.settled > 0 && run.unsettled > 0, () -> run.settled + " settled, " + run.unsettled + " not");
+        assertTrue(run.transfers > 0, "no net was flushed");
+        run.assertConserved();
+        journal.delete();
+        dir.delete();
+    }
+
+    @Test
+    void openBreakerTurnsTradesAwayWithoutMovingCoins() throws Exception {
+        // Every call stalls past the deadline, so the breaker opens after three and stays open
+        SimulatedTrades sim = SimulatedTrades.direct(
+                new SimulatedEconomy.Profile(1_000.0, 0.0, 0.0, 0.0, 1.0, 40L), PLAYERS, TOWNS);
+        sim.guard().configure(10L, 10L, 3, 60, 8);
+
+        Run run = trade(sim, 200);
+
+        assertEquals(EconomyGuard.State.OPEN, sim.guard().status().state());
+        assertEquals(1L, sim.guard().status().trips());
+        assertEquals(0L, run.settled);
+        run.assertConserved();
+    }
+
+    /* =========================
+       Harness
+       ========================= */
+
+    private static final class Run {
+        final double before;
+        final double after;
+        final double reported; // + created, - destroyed, as the trade path knows it
+        final long settled;
+        final long unsettled;
+        final int transfers;   // treasury net flushes that went through
+
+        Run(double before, double after, double reported, long settled, long unsettled, int transfers) {
+            this.before = before;
+            this.after = after;
+            this.reported = reported;
+            this.settled = settled;
+            this.unsettled = unsettled;
+            this.transfers = transfers;
+        }
+
+        void assertConserved() {
+            // whole coins throughout, so the doubles are exact
+            assertEquals(before + reported, after, 0.0,
+                    () -> "balances moved by " + (after - before) + ", trade path reported " + reported);
+        }
+    }
+
+    private static Run trade(SimulatedTrades sim, int trades) throws Exception {
+        double before = sim.total();
+
+        // A single thread stands in for the server's: trades are submitted and applied on it
+        ExecutorService main = Executors.newSingleThreadExecutor();
+        TradePipeline pipeline = new TradePipeline(SimulatedTrades.silent(), 4, main::execute);
+        LongAdder settled = new LongAdder(), unsettled = new LongAdder();
+        CountDownLatch applied = new CountDownLatch(trades);
+
+        for (int i = 0; i < trades; i++) {
+            SimulatedTrades.Trade t = sim.next();
+            main.execute(() -> pipeline.submit(new UUID[] {t.player(), t.town()}, t.toString(),
+                    () -> sim.settle(t) == TradeLegs.Outcome.SETTLED,
+                    paid -> {
+                        (paid ? settled : unsettled).increment();
+                        applied.countDown();
+                    }));
+        }
+        assertTrue(applied.await(60, TimeUnit.SECONDS), "trades not applied: " + applied.getCount() + " left");
+        main.submit(pipeline::close).get();
+        main.shutdown();
+
+        sim.awaitQuiet(10_000L);
+        int transfers = sim.flush();
+        sim.awaitQuiet(10_000L);
+        double reported = sim.reported(), after = sim.total();
+        sim.close();
+        return new Run(before, after, reported, settled.sum(), unsettled.sum(), transfers);
+    }
+}